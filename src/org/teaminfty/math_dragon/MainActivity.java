@@ -1,32 +1,50 @@
 package org.teaminfty.math_dragon;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 import org.matheclipse.core.eval.EvalEngine;
 import org.matheclipse.core.expression.F;
 import org.matheclipse.core.interfaces.IExpr;
+import org.teaminfty.math_dragon.exceptions.BudgetExceededException;
 import org.teaminfty.math_dragon.exceptions.EmptyChildException;
 import org.teaminfty.math_dragon.exceptions.MathException;
+import org.teaminfty.math_dragon.model.ApproximationHelper;
 import org.teaminfty.math_dragon.model.EvalHelper;
+import org.teaminfty.math_dragon.model.EvaluationBudget;
+import org.teaminfty.math_dragon.model.EvaluationCache;
+import org.teaminfty.math_dragon.model.Expression;
+import org.teaminfty.math_dragon.model.ExpressionInterner;
 import org.teaminfty.math_dragon.model.ModelHelper;
 import org.teaminfty.math_dragon.model.ParenthesesHelper;
+import org.teaminfty.math_dragon.model.Polynomial;
+import org.teaminfty.math_dragon.model.SymbolHelper;
 import org.teaminfty.math_dragon.view.TypefaceHolder;
 import org.teaminfty.math_dragon.view.fragments.FragmentEvaluation;
 import org.teaminfty.math_dragon.view.fragments.FragmentMainScreen;
 import org.teaminfty.math_dragon.view.fragments.FragmentOperationsSource;
+import org.teaminfty.math_dragon.view.fragments.FragmentSubstitute;
+import org.teaminfty.math_dragon.view.math.MathFactory;
 import org.teaminfty.math_dragon.view.math.MathObject;
 
 import android.app.Activity;
+import android.app.ProgressDialog;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.res.Configuration;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Process;
 import android.support.v4.app.ActionBarDrawerToggle;
 import android.support.v4.widget.DrawerLayout;
 import android.view.Gravity;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.Toast;
 
-public class MainActivity extends Activity implements FragmentOperationsSource.CloseMeListener
+public class MainActivity extends Activity implements FragmentOperationsSource.CloseMeListener, FragmentMainScreen.OnFormulaChangeListener
 {
 
     /** The ActionBarDrawerToggle that is used to toggle the drawer using the action bar */
@@ -63,6 +81,9 @@ public class MainActivity extends Activity implements FragmentOperationsSource.C
         // Load Symja
         new SymjaLoader().execute();
 
+        // Running evaluations are cancelled when the formula changes
+        ((FragmentMainScreen) getFragmentManager().findFragmentById(R.id.fragmentMainScreen)).setOnFormulaChangeListener(this);
+
         // Get the DrawerLayout object
         DrawerLayout drawerLayout = (DrawerLayout) findViewById(R.id.drawerLayout);
 
@@ -149,57 +170,443 @@ public class MainActivity extends Activity implements FragmentOperationsSource.C
         }
     }
 
-    public void evaluate(View view)
+    /** The evaluation that is currently running (or <tt>null</tt> if there is none) */
+    private Evaluator evaluator = null;
+    
+    /** The speculative evaluation of the current formula that is running (or <tt>null</tt> if there is none) */
+    private Evaluator speculation = null;
+    
+    /** The speculative evaluation of which the thread hasn't returned yet, even if it has been stopped or promoted (or <tt>null</tt> if there is none) */
+    private Evaluator runningSpeculation = null;
+    
+    /** Whether a speculative evaluation should be started as soon as the thread of {@link MainActivity#runningSpeculation runningSpeculation} returns */
+    private boolean speculationPending = false;
+    
+    /** The thread speculative evaluations run on, one at a time, so that they never hold up other work */
+    private static final ExecutorService SPECULATION_EXECUTOR = Executors.newSingleThreadExecutor();
+    
+    /** The results of the last evaluations */
+    private EvaluationCache evaluationCache = new EvaluationCache();
+    
+    /** The limits of every evaluation */
+    private EvaluationBudget evaluationBudget = EvaluationBudget.DEFAULT;
+    
+    /** The time (in milliseconds) the formula shouldn't change before it's evaluated speculatively */
+    private static final long SPECULATION_DELAY = 500;
+    
+    /** The handler that is used to start speculative evaluations */
+    private Handler handler = new Handler();
+    
+    /** Starts a speculative evaluation of the current formula */
+    private Runnable speculate = new Runnable()
     {
-        try
-        {
-            // Calculate the answer
-            FragmentMainScreen fragmentMainScreen = (FragmentMainScreen) getFragmentManager().findFragmentById(R.id.fragmentMainScreen);
-            IExpr result = EvalEngine.eval( EvalHelper.eval(fragmentMainScreen.getMathObject()) );
+        @Override
+        public void run()
+        { startSpeculation(); }
+    };
 
-            // Create an evaluation fragment and show the result
-            FragmentEvaluation fragmentEvaluation = new FragmentEvaluation();
-            fragmentEvaluation.showMathObject(ParenthesesHelper.setParentheses(ModelHelper.toMathObject(result)));
-            fragmentEvaluation.setEvalType(true);
-            fragmentEvaluation.show(getFragmentManager(), "evaluation");
+    /** Class that evaluates an {@link Expression} in a separate thread and shows the result.
+     * A speculative evaluation runs at the lowest priority and only stores the result in the cache, until it's promoted. */
+    private class Evaluator extends AsyncTask<Void, Void, MathObject>
+    {
+        /** The expression that is evaluated */
+        private final Expression expr;
+        
+        /** Whether to evaluate exactly (<tt>true</tt>) or to approximate (<tt>false</tt>) */
+        private final boolean exact;
+        
+        /** The limits of the evaluation */
+        private final EvaluationBudget budget = evaluationBudget;
+        
+        /** The exception that was thrown when the budget was exceeded (or <tt>null</tt> if it wasn't) */
+        private BudgetExceededException budgetExceeded = null;
+        
+        /** Gives up when the evaluation takes too long */
+        private Runnable timeout = new Runnable()
+        {
+            @Override
+            public void run()
+            { timedOut(); }
+        };
+        
+        /** Whether the evaluation is speculative (i.e. the user hasn't asked for the result yet) */
+        private volatile boolean speculative;
+        
+        /** The ID of the thread that evaluates (0 if it hasn't started yet) */
+        private volatile int threadId = 0;
+        
+        /** The engine that evaluates with Symja (or <tt>null</tt> if the evaluation hasn't started yet) */
+        private volatile EvalEngine engine = null;
+        
+        /** Whether the evaluation has been stopped (see {@link Evaluator#stop()}) */
+        private volatile boolean stopped = false;
+        
+        /** The result from Symja (stays <tt>null</tt> if Symja isn't used) */
+        private IExpr result = null;
+        
+        /** The dialog that is shown while evaluating */
+        private ProgressDialog progressDialog = null;
+        
+        /** Constructor
+         * @param expr The expression that is to be evaluated
+         * @param exact Whether to evaluate exactly (<tt>true</tt>) or to approximate (<tt>false</tt>)
+         * @param speculative Whether the evaluation is speculative */
+        public Evaluator(Expression expr, boolean exact, boolean speculative)
+        {
+            this.expr = expr;
+            this.exact = exact;
+            this.speculative = speculative;
         }
-        catch(EmptyChildException e)
+        
+        /** Makes a speculative evaluation a normal evaluation: its result will be shown */
+        public void promote()
         {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            speculative = false;
+            if(threadId != 0)
+                Process.setThreadPriority(threadId, Process.THREAD_PRIORITY_BACKGROUND);
+            showProgressDialog();
+            
+            // The user has only just asked for the result, so the time limit starts now
+            handler.removeCallbacks(timeout);
+            handler.postDelayed(timeout, budget.getTimeLimit());
         }
-        catch(MathException e)
+        
+        @Override
+        protected void onPreExecute()
+        {
+            handler.postDelayed(timeout, budget.getTimeLimit());
+            if(!speculative)
+                showProgressDialog();
+        }
+        
+        /** Stops the evaluation: Symja is asked to stop and the result is thrown away */
+        public void stop()
+        {
+            stopped = true;
+            final EvalEngine runningEngine = engine;
+            if(runningEngine != null)
+                runningEngine.stopRequest();
+            cancel(true);
+        }
+        
+        /** Gives up the evaluation since it takes too long, the unevaluated formula is shown instead */
+        private void timedOut()
+        {
+            stop();
+            if(progressDialog != null)
+            {
+                progressDialog.dismiss();
+                progressDialog = null;
+            }
+            if(speculation == this)
+                speculation = null;
+            if(evaluator == this)
+                evaluator = null;
+            if(!speculative)
+                showPartialResult(expr, exact, new BudgetExceededException(BudgetExceededException.Limit.TIME));
+        }
+        
+        /** Shows a dialog that allows the user to cancel the evaluation */
+        private void showProgressDialog()
+        {
+            progressDialog = new ProgressDialog(MainActivity.this);
+            progressDialog.setMessage(getString(R.string.evaluating));
+            progressDialog.setIndeterminate(true);
+            progressDialog.setCancelable(true);
+            progressDialog.setOnCancelListener(new DialogInterface.OnCancelListener()
+            {
+                @Override
+                public void onCancel(DialogInterface dialog)
+                { cancelEvaluation(); }
+            });
+            progressDialog.setButton(DialogInterface.BUTTON_NEGATIVE, getString(R.string.cancel), new DialogInterface.OnClickListener()
+            {
+                @Override
+                public void onClick(DialogInterface dialog, int which)
+                { cancelEvaluation(); }
+            });
+            progressDialog.show();
+        }
+        
+        @Override
+        protected MathObject doInBackground(Void... args)
         {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            // Speculative evaluations shouldn't slow down anything else
+            threadId = Process.myTid();
+            if(speculative)
+                Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+            
+            // Evaluate with an engine of our own, so that stopping it doesn't affect other evaluations on this thread
+            final EvalEngine oldEngine = EvalEngine.get();
+            engine = new EvalEngine();
+            EvalEngine.set(engine);
+            if(stopped)
+                engine.stopRequest();
+            
+            try
+            {
+                // Calculate the answer
+                MathObject answer;
+                Polynomial polynomial = exact ? Polynomial.valueOf(expr) : null;
+                if(polynomial != null)
+                    answer = MathFactory.fromExpression(polynomial.toExpression(), new ExpressionInterner());   // Polynomials don't need Symja
+                else if(!exact)
+                {
+                    // Approximate with double precision, the formula itself is shown above the approximation
+                    result = ApproximationHelper.approximate(expr, budget);
+                    if(isCancelled())
+                        return null;
+                    answer = MathFactory.fromExpression(expr, new ExpressionInterner());
+                }
+                else
+                {
+                    result = budget.evaluate(EvalHelper.eval(SymbolHelper.evaluateSymbols(expr)));
+                    if(isCancelled())
+                        return null;
+                    answer = ModelHelper.toMathObject(result, new ExpressionInterner(), budget.getNodeLimit());
+                }
+                
+                // Set the parentheses, so that the result can be shown right away
+                return isCancelled() ? null : ParenthesesHelper.setParentheses(answer);
+            }
+            catch(BudgetExceededException e)
+            {
+                // Show the formula as far as we've got
+                budgetExceeded = e;
+                return isCancelled() ? null : partialResult(expr);
+            }
+            catch(EmptyChildException e)
+            {
+                // TODO Auto-generated catch block
+                e.printStackTrace();
+            }
+            catch(MathException e)
+            {
+                // TODO Auto-generated catch block
+                e.printStackTrace();
+            }
+            catch(RuntimeException e)
+            {
+                // Symja throws when it's asked to stop, the result is thrown away anyway
+                if(!stopped)
+                    throw e;
+            }
+            finally
+            {
+                EvalEngine.set(oldEngine);
+            }
+            return null;
+        }
+        
+        @Override
+        protected void onPostExecute(MathObject answer)
+        {
+            // We're done
+            handler.removeCallbacks(timeout);
+            if(progressDialog != null)
+                progressDialog.dismiss();
+            speculationReturned(this);
+            if(speculation == this)
+                speculation = null;
+            if(evaluator == this)
+                evaluator = null;
+            if(answer == null)
+                return;
+            
+            // Don't remember anything if the budget was exceeded, the next evaluation may have a larger budget
+            if(budgetExceeded != null)
+            {
+                if(!speculative)
+                    showResult(answer, exact, null, budgetExceeded);
+                return;
+            }
+            
+            // Remember the result and show it, unless nobody has asked for it yet
+            evaluationCache.put(expr, exact, new EvaluationCache.Result(result, answer.getExpression()));
+            if(!speculative)
+                showResult(answer, exact, result, null);
+        }
+        
+        @Override
+        protected void onCancelled(MathObject answer)
+        {
+            // The result (if any) is thrown away
+            handler.removeCallbacks(timeout);
+            if(progressDialog != null)
+                progressDialog.dismiss();
+            speculationReturned(this);
         }
     }
-
-    public void approximate(View view)
+    
+    /** Starts evaluating the current formula in a separate thread, cancelling the evaluation that is still running (if any)
+     * @param exact Whether to evaluate exactly (<tt>true</tt>) or to approximate (<tt>false</tt>) */
+    private void startEvaluation(boolean exact)
     {
-        try
+        cancelEvaluation();
+        
+        // Show the result right away if we know it already
+        FragmentMainScreen fragmentMainScreen = (FragmentMainScreen) getFragmentManager().findFragmentById(R.id.fragmentMainScreen);
+        Expression expr = fragmentMainScreen.getMathObject().getExpression();
+        EvaluationCache.Result cached = evaluationCache.get(expr, exact);
+        if(cached != null)
         {
-            // Calculate the answer
-            FragmentMainScreen fragmentMainScreen = (FragmentMainScreen) getFragmentManager().findFragmentById(R.id.fragmentMainScreen);
-            IExpr result = EvalEngine.eval( EvalHelper.eval(fragmentMainScreen.getMathObject()) );
-            // TODO Approximate the result
-
-            // Create an evaluation fragment and show the result
-            FragmentEvaluation fragmentEvaluation = new FragmentEvaluation();
-            fragmentEvaluation.showMathObject(ParenthesesHelper.setParentheses(ModelHelper.toMathObject(result)));
-            fragmentEvaluation.setEvalType(false);
-            fragmentEvaluation.show(getFragmentManager(), "evaluation");
+            showResult(MathFactory.fromExpression(cached.getAnswer()), exact, cached.getResult(), null);
+            return;
+        }
+        
+        // Wait for the speculative evaluation if it's evaluating the same thing
+        if(speculation != null && speculation.exact == exact && speculation.expr.equals(expr))
+        {
+            evaluator = speculation;
+            speculation = null;
+            evaluator.promote();
+            return;
+        }
+        
+        // The expression never changes, so the evaluator can safely use it while the formula is being edited
+        evaluator = new Evaluator(expr, exact, false);
+        evaluator.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+    
+    /** Starts evaluating the current formula speculatively (if it's completed and its result isn't known yet) */
+    private void startSpeculation()
+    {
+        cancelSpeculation();
+        
+        // Check if there's anything to evaluate
+        FragmentMainScreen fragmentMainScreen = (FragmentMainScreen) getFragmentManager().findFragmentById(R.id.fragmentMainScreen);
+        MathObject mathObject = fragmentMainScreen.getMathObject();
+        if(!mathObject.isCompleted() || evaluationCache.get(mathObject.getExpression(), true) != null)
+            return;
+        
+        // Symja may still be busy with the previous speculation, in which case this one is started when it returns
+        if(runningSpeculation != null)
+        {
+            speculationPending = true;
+            return;
         }
-        catch(EmptyChildException e)
+        
+        // Evaluate exactly, since that's what's asked for most
+        speculation = new Evaluator(mathObject.getExpression(), true, true);
+        runningSpeculation = speculation;
+        speculation.executeOnExecutor(SPECULATION_EXECUTOR);
+    }
+    
+    /** Called when the thread of an evaluation has returned, starts the speculation that is waiting for it (if any)
+     * @param returned The evaluation of which the thread has returned */
+    private void speculationReturned(Evaluator returned)
+    {
+        if(runningSpeculation != returned)
+            return;
+        runningSpeculation = null;
+        if(speculationPending)
         {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            speculationPending = false;
+            startSpeculation();
         }
-        catch(MathException e)
+    }
+    
+    /** Cancels the speculative evaluation that is running or about to start (if any) */
+    private void cancelSpeculation()
+    {
+        handler.removeCallbacks(speculate);
+        speculationPending = false;
+        if(speculation == null)
+            return;
+        speculation.stop();
+        speculation = null;
+    }
+    
+    /** Creates the result that is shown when the budget of an evaluation is exceeded: the formula with only its products of symbols calculated
+     * @param expr The expression that was evaluated
+     * @return The result, with its parentheses set */
+    private static MathObject partialResult(Expression expr)
+    { return ParenthesesHelper.setParentheses(MathFactory.fromExpression(SymbolHelper.evaluateSymbols(expr))); }
+    
+    /** Shows the partial result of an evaluation of which the budget was exceeded
+     * @param expr The expression that was evaluated
+     * @param exact Whether the result should have been exact (<tt>true</tt>) or approximated (<tt>false</tt>)
+     * @param e The exception that tells which limit was exceeded */
+    private void showPartialResult(Expression expr, boolean exact, BudgetExceededException e)
+    {
+        showResult(partialResult(expr), exact, null, e);
+    }
+    
+    /** Shows the result of an evaluation
+     * @param answer The result, with its parentheses set
+     * @param exact Whether the result is exact (<tt>true</tt>) or approximated (<tt>false</tt>)
+     * @param result The result from Symja, when approximating this is the approximation with double precision of <tt>answer</tt> (may be <tt>null</tt>)
+     * @param budgetExceeded The exception that tells which limit was exceeded, or <tt>null</tt> if the result is complete */
+    private void showResult(MathObject answer, boolean exact, IExpr result, BudgetExceededException budgetExceeded)
+    {
+        // Tell the user why the result isn't complete
+        if(budgetExceeded != null)
         {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            final int msg = budgetExceeded.getLimit() == BudgetExceededException.Limit.NODES ? R.string.result_too_large : R.string.evaluation_too_long;
+            Toast.makeText(this, msg, Toast.LENGTH_LONG).show();
         }
+        
+        // Create an evaluation fragment and show the result
+        FragmentEvaluation fragmentEvaluation = new FragmentEvaluation();
+        fragmentEvaluation.showMathObject(answer);
+        fragmentEvaluation.setEvalType(exact);
+        if(!exact && result != null)
+            fragmentEvaluation.showApproximation(answer.getExpression(), result);
+        fragmentEvaluation.show(getFragmentManager(), "evaluation");
+    }
+    
+    /** Cancels the evaluation that is running (if any), its result will never be shown */
+    private void cancelEvaluation()
+    {
+        if(evaluator == null)
+            return;
+        evaluator.stop();
+        evaluator = null;
+    }
+
+    public void evaluate(View view)
+    {
+        startEvaluation(true);
+    }
+
+    public void approximate(View view)
+    {
+        startEvaluation(false);
+    }
+
+    public void substitute(View view)
+    {
+        // Get the MathObject
+        FragmentMainScreen fragmentMainScreen = (FragmentMainScreen) getFragmentManager().findFragmentById(R.id.fragmentMainScreen);
+        MathObject obj = fragmentMainScreen.getMathObject();
+
+        // Only substitute if the MathObject is completed
+        if(!obj.isCompleted())
+            return;
+
+        // Show the substitute dialog
+        FragmentSubstitute fragmentSubstitute = new FragmentSubstitute();
+        fragmentSubstitute.setExpression(obj.getExpression());
+        fragmentSubstitute.show(getFragmentManager(), "substitute");
+    }
+
+    @Override
+    public void formulaChanged()
+    {
+        // The result of the running evaluations would be outdated
+        cancelEvaluation();
+        cancelSpeculation();
+        
+        // Evaluate the new formula when the user stops editing for a moment
+        handler.postDelayed(speculate, SPECULATION_DELAY);
+    }
+
+    @Override
+    protected void onDestroy()
+    {
+        cancelEvaluation();
+        cancelSpeculation();
+        super.onDestroy();
     }
 
     public void clear(View view)
@@ -0,0 +1,41 @@
+package org.teaminfty.math_dragon.exceptions;
+
+import org.teaminfty.math_dragon.model.EvaluationBudget;
+
+/** An exception that is thrown when an evaluation exceeds one of the limits of its {@link EvaluationBudget}
+ */
+public class BudgetExceededException extends MathException
+{
+    private static final long serialVersionUID = -2398813410375092531L;
+
+    /** The limits of an {@link EvaluationBudget} */
+    public enum Limit
+    {
+        TIME, RECURSION, ITERATION, NODES
+    }
+
+    /** The limit that was exceeded */
+    private final Limit limit;
+
+    /** Constructor, constructs a default message
+     * @param limit The limit that was exceeded */
+    public BudgetExceededException(Limit limit)
+    {
+        super("The " + limit.toString().toLowerCase() + " limit of the evaluation was exceeded.");
+        this.limit = limit;
+    }
+
+    /** Constructor, constructs a default message
+     * @param limit The limit that was exceeded
+     * @param cause The exception that reported that the limit was exceeded */
+    public BudgetExceededException(Limit limit, Throwable cause)
+    {
+        this(limit);
+        initCause(cause);
+    }
+
+    /** Retrieve the limit that was exceeded
+     * @return The limit that was exceeded */
+    public Limit getLimit()
+    { return limit; }
+}
@@ -0,0 +1,62 @@
+package org.teaminfty.math_dragon.exceptions;
+
+import org.teaminfty.math_dragon.model.Substitution;
+
+/** An exception that is thrown when a value that is to be {@link Substitution substituted} is invalid
+ */
+public class InvalidValueException extends ParseException
+{
+    private static final long serialVersionUID = 4087652186913052247L;
+
+    /** The reasons a value can be invalid */
+    public enum Problem
+    {
+        /** The value isn't a number or a symbol */
+        NOT_A_VALUE,
+        /** The list of values doesn't have as many values as the other lists */
+        WRONG_COUNT
+    }
+
+    /** Why the value is invalid */
+    private final Problem problem;
+
+    /** The value (or the list of values) as it was entered */
+    private final String value;
+
+    /** The number of values that was expected (only used for {@link Problem#WRONG_COUNT WRONG_COUNT}) */
+    private final int expectedCount;
+
+    /** Constructor, constructs a default message
+     * @param problem Why the value is invalid
+     * @param value The value (or the list of values) as it was entered
+     * @param expectedCount The number of values that was expected (only used for {@link Problem#WRONG_COUNT WRONG_COUNT}) */
+    public InvalidValueException(Problem problem, String value, int expectedCount)
+    {
+        super(problem == Problem.WRONG_COUNT ? value + ": expected " + expectedCount + " values" : value + ": not a number or a symbol");
+        this.problem = problem;
+        this.value = value;
+        this.expectedCount = expectedCount;
+    }
+
+    /** Constructor, constructs a default message
+     * @param value The value that isn't a number or a symbol */
+    public InvalidValueException(String value)
+    {
+        this(Problem.NOT_A_VALUE, value, 0);
+    }
+
+    /** Retrieve why the value is invalid
+     * @return Why the value is invalid */
+    public Problem getProblem()
+    { return problem; }
+
+    /** Retrieve the value (or the list of values) as it was entered
+     * @return The value */
+    public String getValue()
+    { return value; }
+
+    /** Retrieve the number of values that was expected
+     * @return The expected number of values (only used for {@link Problem#WRONG_COUNT WRONG_COUNT}) */
+    public int getExpectedCount()
+    { return expectedCount; }
+}
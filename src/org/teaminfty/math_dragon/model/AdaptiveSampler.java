@@ -0,0 +1,184 @@
+package org.teaminfty.math_dragon.model;
+
+/**
+ * Samples a formula with one variable for a plot. The formula is sampled
+ * uniformly first, after which samples are added where the plot bends or
+ * jumps (i.e. where a straight line between two samples isn't a good
+ * approximation of the formula).
+ * <p>
+ * All samples of a pass are evaluated at once with the {@link BatchEvaluator},
+ * so every pass uses all cores. Each pass returns new {@link Samples}, so that
+ * the plot can be drawn while it's being refined.
+ */
+public class AdaptiveSampler
+{
+    /** The number of samples of the uniform pass */
+    public static final int UNIFORM_SAMPLES = 64;
+
+    /** The maximum number of samples, the plot isn't refined any further after this */
+    public static final int MAX_SAMPLES = 16384;
+
+    /** The minimum number of samples in a chunk of a pass, passes are much smaller than {@link BatchEvaluator#MIN_CHUNK_SIZE} */
+    private static final int MIN_CHUNK_SIZE = 256;
+
+    /** The samples of a formula, ordered by the value of the variable */
+    public static class Samples
+    {
+        /** The values of the variable */
+        private final double[] x;
+        /** The values of the formula (NaN where the formula isn't defined) */
+        private final double[] y;
+
+        /** Constructor
+         * @param x The values of the variable
+         * @param y The values of the formula */
+        Samples(double[] x, double[] y)
+        {
+            this.x = x;
+            this.y = y;
+        }
+
+        /** Retrieve the number of samples
+         * @return The number of samples */
+        public int size()
+        { return x.length; }
+
+        /** Retrieve the value of the variable of a sample
+         * @param i The index of the sample
+         * @return The value of the variable */
+        public double getX(int i)
+        { return x[i]; }
+
+        /** Retrieve the value of the formula of a sample
+         * @param i The index of the sample
+         * @return The value of the formula (NaN or infinite if the formula isn't defined) */
+        public double getY(int i)
+        { return y[i]; }
+    }
+
+    /** The formula that is sampled */
+    private final CompiledFormula formula;
+    /** The index of the variable of the formula */
+    private final int variable;
+
+    /**
+     * Constructor
+     *
+     * @param formula
+     *        The formula that is to be sampled
+     * @param variable
+     *        The index of the variable (0 for <tt>a</tt>, 25 for <tt>z</tt>)
+     */
+    public AdaptiveSampler(CompiledFormula formula, int variable)
+    {
+        this.formula = formula;
+        this.variable = variable;
+    }
+
+    /**
+     * Samples the formula uniformly.
+     *
+     * @param xMin
+     *        The lowest value of the variable
+     * @param xMax
+     *        The highest value of the variable
+     * @return The samples
+     * @throws InterruptedException
+     *         Thrown when the thread is interrupted
+     */
+    public Samples sampleUniformly(double xMin, double xMax) throws InterruptedException
+    {
+        double[] x = new double[UNIFORM_SAMPLES];
+        for(int i = 0; i < x.length; ++i)
+            x[i] = xMin + (xMax - xMin) * i / (x.length - 1);
+        return new Samples(x, evaluate(x));
+    }
+
+    /**
+     * Refines the samples, by adding a sample in the middle of every interval
+     * that needs one. An interval needs another sample when the plot bends
+     * more than the given tolerance at one of its ends, when it jumps more
+     * than the given maximum, or when the formula is only defined at one of
+     * its ends.
+     *
+     * @param samples
+     *        The samples to refine
+     * @param tolerance
+     *        How much the plot may bend, i.e. the maximum distance between a
+     *        sample and the line through its neighbours
+     * @param maxJump
+     *        The maximum difference between the values of neighbouring samples
+     * @param minWidth
+     *        The minimum width of an interval, smaller intervals aren't
+     *        refined
+     * @return The refined samples, or <tt>null</tt> if they're precise enough
+     * @throws InterruptedException
+     *         Thrown when the thread is interrupted
+     */
+    public Samples refine(Samples samples, double tolerance, double maxJump, double minWidth) throws InterruptedException
+    {
+        final double[] x = samples.x;
+        final double[] y = samples.y;
+        final int n = x.length;
+
+        // Find the intervals that need another sample
+        boolean[] split = new boolean[n - 1];
+        for(int i = 1; i < n - 1; ++i)
+        {
+            // Compare the sample with the line through its neighbours
+            final double line = y[i - 1] + (y[i + 1] - y[i - 1]) * (x[i] - x[i - 1]) / (x[i + 1] - x[i - 1]);
+            if(Math.abs(y[i] - line) > tolerance)
+                split[i - 1] = split[i] = true;
+        }
+        int count = 0;
+        for(int i = 0; i < n - 1; ++i)
+        {
+            final boolean defined = isDefined(y[i]);
+            if(defined != isDefined(y[i + 1]) || (defined && Math.abs(y[i + 1] - y[i]) > maxJump))
+                split[i] = true;
+            if(split[i] && x[i + 1] - x[i] < minWidth)
+                split[i] = false;
+            if(split[i])
+                ++count;
+        }
+        if(count == 0 || n + count > MAX_SAMPLES)
+            return null;
+
+        // Evaluate the middle of those intervals
+        double[] middles = new double[count];
+        for(int i = 0, j = 0; i < n - 1; ++i)
+        {
+            if(split[i])
+                middles[j++] = (x[i] + x[i + 1]) / 2;
+        }
+        double[] values = evaluate(middles);
+
+        // Merge the new samples with the old ones
+        double[] newX = new double[n + count];
+        double[] newY = new double[n + count];
+        for(int i = 0, j = 0, k = 0; i < n; ++i)
+        {
+            newX[k] = x[i];
+            newY[k++] = y[i];
+            if(i < n - 1 && split[i])
+            {
+                newX[k] = middles[j];
+                newY[k++] = values[j++];
+            }
+        }
+        return new Samples(newX, newY);
+    }
+
+    /** Checks whether a value of the formula is defined
+     * @param y The value
+     * @return <tt>true</tt> if it's a finite number, <tt>false</tt> otherwise */
+    private static boolean isDefined(double y)
+    { return !Double.isNaN(y) && !Double.isInfinite(y); }
+
+    /** Evaluates the formula for the given values of the variable
+     * @param x The values of the variable
+     * @return The values of the formula
+     * @throws InterruptedException Thrown when the thread is interrupted */
+    private double[] evaluate(double[] x) throws InterruptedException
+    { return BatchEvaluator.evaluate(formula, null, new int[] {variable}, new double[][] {x}, MIN_CHUNK_SIZE); }
+}
@@ -0,0 +1,83 @@
+package org.teaminfty.math_dragon.model;
+
+import org.matheclipse.core.expression.F;
+import org.matheclipse.core.interfaces.IExpr;
+import org.teaminfty.math_dragon.exceptions.BudgetExceededException;
+import org.teaminfty.math_dragon.exceptions.MathException;
+
+/**
+ * Approximates expressions numerically with Symja.
+ * <p>
+ * An approximation with double precision is fast, so that's what is shown
+ * first. It can then be refined with Symja's arbitrary precision arithmetic
+ * (<tt>N[expr, digits]</tt>) to one of the {@link ApproximationHelper#PRECISIONS
+ * PRECISIONS}, which takes longer.
+ */
+public class ApproximationHelper
+{
+    private ApproximationHelper()
+    {}
+
+    /** The precision (in digits) of an approximation with double precision */
+    public static final int DOUBLE_PRECISION = 15;
+
+    /** The precisions (in digits) an approximation can be refined to, in ascending order */
+    public static final int[] PRECISIONS = {30, 100, 300, 1000};
+
+    /**
+     * Approximates an expression with double precision. Formulas without
+     * variables are calculated natively by the {@link DoubleEvaluator}, Symja
+     * is only used if that's not possible.
+     *
+     * @param expr
+     *        The expression. May not be <tt>null</tt>.
+     * @param budget
+     *        The limits of the evaluation
+     * @return The approximation from Symja
+     * @throws MathException
+     *         Thrown when the expression can't be converted to Symja, or when
+     *         the budget is exceeded ({@link BudgetExceededException})
+     */
+    public static IExpr approximate(Expression expr, EvaluationBudget budget) throws MathException
+    {
+        // Try to calculate the value natively first
+        Double value = DoubleEvaluator.evaluate(expr);
+        if(value != null)
+            return F.num(value);
+        return budget.evaluate(F.N(EvalHelper.eval(SymbolHelper.evaluateSymbols(expr))));
+    }
+
+    /**
+     * Approximates an expression with the given precision, using arbitrary
+     * precision arithmetic.
+     *
+     * @param expr
+     *        The expression. May not be <tt>null</tt>.
+     * @param digits
+     *        The number of significant digits
+     * @param budget
+     *        The limits of the evaluation
+     * @return The approximation from Symja
+     * @throws MathException
+     *         Thrown when the expression can't be converted to Symja, or when
+     *         the budget is exceeded ({@link BudgetExceededException})
+     */
+    public static IExpr approximate(Expression expr, int digits, EvaluationBudget budget) throws MathException
+    {
+        return budget.evaluate(F.N(EvalHelper.eval(SymbolHelper.evaluateSymbols(expr)), F.integer(digits)));
+    }
+
+    /**
+     * Converts an approximation (or another result from Symja, e.g. of a
+     * {@link Substitution}) to the text that is shown to the user.
+     *
+     * @param approximation
+     *        The approximation from Symja
+     * @return The text
+     */
+    public static String toString(IExpr approximation)
+    {
+        // Symja uses '*' for multiplication, which we show as a dot
+        return approximation.toString().replace("*", "\u00b7");
+    }
+}
@@ -0,0 +1,251 @@
+package org.teaminfty.math_dragon.model;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.teaminfty.math_dragon.view.math.MathObject;
+
+/**
+ * Evaluates a formula at many points at once (e.g. for tables, plots or to
+ * check whether two formulas are equal).
+ * <p>
+ * The values of the variables are given as columns: one array of doubles for
+ * every variable that changes, where the i-th element of every column belongs
+ * to the i-th point. The formula is {@link CompiledFormula compiled} and the
+ * points are split into chunks that are evaluated on all cores.
+ */
+public class BatchEvaluator
+{
+    private BatchEvaluator()
+    {}
+
+    /** The minimum number of points in a chunk, smaller batches aren't worth the overhead of another thread */
+    public static final int MIN_CHUNK_SIZE = 4096;
+
+    /** The number of threads that evaluate chunks */
+    private static final int THREAD_COUNT = Runtime.getRuntime().availableProcessors();
+
+    /** The threads that evaluate chunks (created when they're needed for the first time) */
+    private static ExecutorService executor = null;
+
+    /**
+     * Evaluates the formula of a {@link MathObject} at many points.
+     *
+     * @param mathObject
+     *        The {@link MathObject}. May not be <tt>null</tt>.
+     * @param vars
+     *        The values of the variables <tt>a</tt> to <tt>z</tt> that are the
+     *        same for all points (may be <tt>null</tt>, in which case they're 0)
+     * @param columnVars
+     *        The indices of the variables that change (0 for <tt>a</tt>, 25
+     *        for <tt>z</tt>)
+     * @param columns
+     *        The values of the variables that change, one column for every
+     *        variable in <tt>columnVars</tt>. All columns should have the same
+     *        length.
+     * @return The values of the formula, or <tt>null</tt> if the formula can't
+     *         be compiled
+     * @throws InterruptedException
+     *         Thrown when the thread is interrupted while waiting for the
+     *         result
+     */
+    public static double[] evaluate(MathObject mathObject, double[] vars, int[] columnVars, double[][] columns) throws InterruptedException
+    {
+        if(mathObject == null)
+            throw new NullPointerException("mathObject");
+        return evaluate(mathObject.getExpression(), vars, columnVars, columns);
+    }
+
+    /**
+     * Evaluates an expression at many points.
+     *
+     * @param expr
+     *        The expression. May not be <tt>null</tt>.
+     * @param vars
+     *        The values of the variables that are the same for all points
+     *        (may be <tt>null</tt>)
+     * @param columnVars
+     *        The indices of the variables that change
+     * @param columns
+     *        The values of the variables that change
+     * @return The values of the expression, or <tt>null</tt> if the expression
+     *         can't be compiled
+     * @throws InterruptedException
+     *         Thrown when the thread is interrupted while waiting for the
+     *         result
+     * @see BatchEvaluator#evaluate(MathObject, double[], int[], double[][])
+     */
+    public static double[] evaluate(Expression expr, double[] vars, int[] columnVars, double[][] columns) throws InterruptedException
+    {
+        CompiledFormula formula = CompiledFormula.compile(expr);
+        return formula == null ? null : evaluate(formula, vars, columnVars, columns);
+    }
+
+    /**
+     * Evaluates a compiled formula at many points.
+     *
+     * @param formula
+     *        The compiled formula. May not be <tt>null</tt>.
+     * @param vars
+     *        The values of the variables that are the same for all points
+     *        (may be <tt>null</tt>)
+     * @param columnVars
+     *        The indices of the variables that change
+     * @param columns
+     *        The values of the variables that change
+     * @return The values of the formula
+     * @throws InterruptedException
+     *         Thrown when the thread is interrupted while waiting for the
+     *         result
+     * @see BatchEvaluator#evaluate(MathObject, double[], int[], double[][])
+     */
+    public static double[] evaluate(CompiledFormula formula, double[] vars, int[] columnVars, double[][] columns) throws InterruptedException
+    { return evaluate(formula, vars, columnVars, columns, MIN_CHUNK_SIZE); }
+
+    /**
+     * Evaluates a compiled formula at many points, with chunks of the given
+     * minimum size.
+     *
+     * @param formula
+     *        The compiled formula. May not be <tt>null</tt>.
+     * @param vars
+     *        The values of the variables that are the same for all points
+     *        (may be <tt>null</tt>)
+     * @param columnVars
+     *        The indices of the variables that change
+     * @param columns
+     *        The values of the variables that change
+     * @param minChunkSize
+     *        The minimum number of points in a chunk (at least 1)
+     * @return The values of the formula
+     * @throws InterruptedException
+     *         Thrown when the thread is interrupted
+     * @see BatchEvaluator#MIN_CHUNK_SIZE
+     */
+    public static double[] evaluate(final CompiledFormula formula, double[] vars, final int[] columnVars, final double[][] columns, int minChunkSize) throws InterruptedException
+    {
+        if(formula == null)
+            throw new NullPointerException("formula");
+        if(minChunkSize < 1)
+            throw new IllegalArgumentException("The minimum chunk size should be at least 1.");
+        if(columnVars.length != columns.length)
+            throw new IllegalArgumentException("There should be a column for every variable.");
+        final int count = columns.length == 0 ? 1 : columns[0].length;
+        for(double[] column : columns)
+        {
+            if(column.length != count)
+                throw new IllegalArgumentException("All columns should have the same length.");
+        }
+        final double[] fixedVars = vars == null ? new double[Monomial.VAR_COUNT] : vars;
+        final double[] results = new double[count];
+
+        // Small batches are evaluated right away
+        final int chunkCount = Math.min(THREAD_COUNT, count / minChunkSize);
+        if(chunkCount <= 1)
+        {
+            evaluateChunk(formula, fixedVars, columnVars, columns, results, 0, count);
+            return results;
+        }
+
+        // Split the points into chunks, one for every thread
+        ArrayList<Future<?>> futures = new ArrayList<Future<?>>(chunkCount);
+        for(int i = 0; i < chunkCount; ++i)
+        {
+            final int start = (int) ((long) count * i / chunkCount);
+            final int end = (int) ((long) count * (i + 1) / chunkCount);
+            futures.add(getExecutor().submit(new Callable<Void>()
+            {
+                @Override
+                public Void call() throws InterruptedException
+                {
+                    evaluateChunk(formula, fixedVars, columnVars, columns, results, start, end);
+                    return null;
+                }
+            }));
+        }
+
+        // Wait until all chunks are done
+        try
+        {
+            for(Future<?> future : futures)
+                future.get();
+        }
+        catch(ExecutionException e)
+        {
+            if(e.getCause() instanceof InterruptedException)
+                throw (InterruptedException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+        finally
+        {
+            // Don't waste time on chunks nobody is waiting for anymore
+            for(Future<?> future : futures)
+                future.cancel(true);
+        }
+        return results;
+    }
+
+    /**
+     * Evaluates a compiled formula at the points in the given range.
+     *
+     * @param formula
+     *        The compiled formula
+     * @param fixedVars
+     *        The values of the variables that are the same for all points
+     * @param columnVars
+     *        The indices of the variables that change
+     * @param columns
+     *        The values of the variables that change
+     * @param results
+     *        The array the values are stored in
+     * @param start
+     *        The index of the first point
+     * @param end
+     *        The index after the last point
+     * @throws InterruptedException
+     *         Thrown when the thread is interrupted (e.g. because the chunk
+     *         has been cancelled)
+     */
+    private static void evaluateChunk(CompiledFormula formula, double[] fixedVars, int[] columnVars, double[][] columns, double[] results, int start, int end) throws InterruptedException
+    {
+        // Every chunk gets its own variables and stack
+        double[] vars = fixedVars.clone();
+        double[] stack = formula.createStack();
+        for(int i = start; i < end; ++i)
+        {
+            // Stop when nobody is waiting for the results anymore
+            if(Thread.interrupted())
+                throw new InterruptedException();
+
+            for(int j = 0; j < columnVars.length; ++j)
+                vars[columnVars[j]] = columns[j][i];
+            results[i] = formula.evaluate(vars, stack);
+        }
+    }
+
+    /** Returns the threads that evaluate chunks, creating them if necessary
+     * @return The executor */
+    private static synchronized ExecutorService getExecutor()
+    {
+        if(executor == null)
+        {
+            executor = Executors.newFixedThreadPool(THREAD_COUNT, new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    // The threads shouldn't keep the app alive
+                    Thread thread = new Thread(r, "BatchEvaluator");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+}
@@ -0,0 +1,338 @@
+package org.teaminfty.math_dragon.model;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.teaminfty.math_dragon.view.math.MathObject;
+import org.teaminfty.math_dragon.view.math.MathOperationFunction;
+
+/**
+ * A formula that is compiled to a compact program for a small stack machine,
+ * so that it can be evaluated at many points quickly (e.g. for substitution or
+ * plotting).
+ * <p>
+ * The program consists of an array of opcodes (some of which are followed by
+ * an operand) and an array of constants. The values of the variables <tt>a</tt>
+ * to <tt>z</tt> are passed as an array of 26 doubles, where <tt>a</tt> is at
+ * index 0. {@link CompiledFormula#evaluate(double[], double[]) evaluate()} is a
+ * single loop that doesn't allocate anything, so it can be called as often as
+ * needed.
+ * <p>
+ * The compiled form of every formula is remembered for as long as its
+ * {@link Expression} is used. Since the expression of a {@link MathObject}
+ * changes when it's edited, the compiled form is never outdated. A compiled
+ * formula never changes, so it can be shared between threads.
+ * <p>
+ * Powers, roots and functions are calculated the way the
+ * {@link DoubleEvaluator} calculates them, so <tt>0^0</tt> is NaN rather than
+ * 1. The {@link CompiledFormula#exact() exact} form of a formula is NaN
+ * wherever Symja knows an exact value as well, so that those points can be
+ * left to Symja.
+ */
+public final class CompiledFormula
+{
+    /** Pushes a constant, followed by the index of the constant */
+    private static final int CONST = 0;
+    /** Pushes the value of a variable, followed by the index of the variable */
+    private static final int LOAD = 1;
+    /** Pops two values and pushes their sum */
+    private static final int ADD = 2;
+    /** Pops two values and pushes their difference */
+    private static final int SUB = 3;
+    /** Pops two values and pushes their product */
+    private static final int MUL = 4;
+    /** Pops two values and pushes their quotient */
+    private static final int DIV = 5;
+    /** Pops the base and the exponent and pushes the power */
+    private static final int POW = 6;
+    /** Pops the index and the base and pushes the root */
+    private static final int ROOT = 7;
+    /** Pops a value and pushes the result of a function, followed by the ordinal of the {@link MathOperationFunction.FunctionType} */
+    private static final int FUNCTION = 8;
+
+    /** The function types, by their ordinal */
+    private static final MathOperationFunction.FunctionType[] FUNCTION_TYPES = MathOperationFunction.FunctionType.values();
+
+    /** The opcodes and their operands */
+    private final int[] code;
+    /** The constants */
+    private final double[] constants;
+    /** The maximum size of the stack */
+    private final int stackSize;
+    /** Whether values Symja knows exactly are NaN */
+    private final boolean exact;
+
+    /** The compiled forms of all expressions that are still in use, {@link CompiledFormula#NOT_COMPILABLE NOT_COMPILABLE} for expressions that can't be compiled */
+    private static final Map<Expression, CompiledFormula> COMPILED = Collections.synchronizedMap(new WeakHashMap<Expression, CompiledFormula>());
+
+    /** Remembered for expressions that can't be compiled, so that they aren't folded again */
+    private static final CompiledFormula NOT_COMPILABLE = new CompiledFormula(new int[0], new double[0], 0, false);
+
+    /** Constructor
+     * @param code The opcodes and their operands
+     * @param constants The constants
+     * @param stackSize The maximum size of the stack
+     * @param exact Whether values Symja knows exactly are NaN */
+    private CompiledFormula(int[] code, double[] constants, int stackSize, boolean exact)
+    {
+        this.code = code;
+        this.constants = constants;
+        this.stackSize = stackSize;
+        this.exact = exact;
+    }
+
+    /**
+     * Compiles the formula of a {@link MathObject}.
+     *
+     * @param mathObject
+     *        The {@link MathObject}. May not be <tt>null</tt>.
+     * @return The compiled formula, or <tt>null</tt> if the formula can't be
+     *         compiled
+     */
+    public static CompiledFormula compile(MathObject mathObject)
+    {
+        if(mathObject == null)
+            throw new NullPointerException("mathObject");
+        return compile(mathObject.getExpression());
+    }
+
+    /**
+     * Compiles an expression. The result is remembered, so compiling the same
+     * expression again takes no time. Expressions that contain anything else
+     * than symbols, the arithmetic operations, powers, roots and functions
+     * (e.g. derivatives or odd powers of <tt>i</tt>) can't be compiled.
+     *
+     * @param expr
+     *        The expression. May not be <tt>null</tt>.
+     * @return The compiled formula, or <tt>null</tt> if the expression can't
+     *         be compiled
+     */
+    public static CompiledFormula compile(Expression expr)
+    {
+        if(expr == null)
+            throw new NullPointerException("expr");
+
+        // Check if we've compiled the expression before
+        CompiledFormula compiled = COMPILED.get(expr);
+        if(compiled != null)
+            return compiled == NOT_COMPILABLE ? null : compiled;
+
+        // Compile the expression
+        Compiler compiler = new Compiler();
+        Integer stackSize = expr.fold(compiler);
+        compiled = stackSize == null ? NOT_COMPILABLE : compiler.toFormula(stackSize);
+        COMPILED.put(expr, compiled);
+        return compiled == NOT_COMPILABLE ? null : compiled;
+    }
+
+    /**
+     * Returns the exact form of this formula, which shares its code with this
+     * formula. Its value is NaN wherever Symja knows an exact value that the
+     * approximation would only come close to (e.g. <tt>sin &pi;x</tt> at
+     * <tt>x = 1</tt>), so that those points can be left to Symja. Plots don't
+     * need this, since a value that is close enough looks the same there.
+     *
+     * @return The exact form
+     */
+    public CompiledFormula exact()
+    { return exact ? this : new CompiledFormula(code, constants, stackSize, true); }
+
+    /** Creates a stack that is large enough to evaluate this formula
+     * @return The stack */
+    public double[] createStack()
+    { return new double[stackSize]; }
+
+    /**
+     * Evaluates this formula. Allocates a new stack, use
+     * {@link CompiledFormula#evaluate(double[], double[]) evaluate(vars,
+     * stack)} to evaluate the formula many times.
+     *
+     * @param vars
+     *        The values of the variables <tt>a</tt> to <tt>z</tt>
+     * @return The value of the formula
+     */
+    public double evaluate(double[] vars)
+    { return evaluate(vars, createStack()); }
+
+    /**
+     * Evaluates this formula.
+     *
+     * @param vars
+     *        The values of the variables <tt>a</tt> to <tt>z</tt>
+     * @param stack
+     *        The stack to use (see {@link CompiledFormula#createStack()
+     *        createStack()}), may be reused between calls but not between
+     *        threads
+     * @return The value of the formula (which may be NaN or infinite)
+     */
+    public double evaluate(double[] vars, double[] stack)
+    {
+        int sp = -1;
+        for(int pc = 0; pc < code.length; ++pc)
+        {
+            switch(code[pc])
+            {
+                case CONST:     stack[++sp] = constants[code[++pc]];                        break;
+                case LOAD:      stack[++sp] = vars[code[++pc]];                             break;
+                case ADD:       --sp; stack[sp] += stack[sp + 1];                           break;
+                case SUB:       --sp; stack[sp] -= stack[sp + 1];                           break;
+                case MUL:       --sp; stack[sp] *= stack[sp + 1];                           break;
+                case DIV:       --sp; stack[sp] /= stack[sp + 1];                           break;
+                case POW:       --sp; stack[sp] = DoubleEvaluator.power(stack[sp], stack[sp + 1]);  break;
+                case ROOT:      --sp; stack[sp] = DoubleEvaluator.root(stack[sp], stack[sp + 1]);   break;
+                case FUNCTION:
+                {
+                    final MathOperationFunction.FunctionType type = FUNCTION_TYPES[code[++pc]];
+                    stack[sp] = exact && DoubleEvaluator.isExactlyKnown(type, stack[sp]) ? Double.NaN : DoubleEvaluator.function(type, stack[sp]);
+                    break;
+                }
+            }
+        }
+        return stack[0];
+    }
+
+    /**
+     * Emits the code of an expression. Since {@link Expression#fold(Expression.Folder)
+     * fold()} visits the expression in post-order, the code of the children is
+     * emitted before the code of their parent. The result for every
+     * subexpression is the maximum size of the stack its code needs (or
+     * <tt>null</tt> if it can't be compiled).
+     */
+    private static class Compiler implements Expression.Folder<Integer, RuntimeException>
+    {
+        /** The code that has been emitted */
+        private int[] code = new int[32];
+        /** The length of the code */
+        private int codeLength = 0;
+        /** The constants */
+        private double[] constants = new double[8];
+        /** The number of constants */
+        private int constantCount = 0;
+
+        @Override
+        public Integer fold(Expression expr, List<Integer> children)
+        {
+            // If one of the children can't be compiled, the expression can't be either
+            if(children.contains(null))
+                return null;
+
+            // The i-th child is evaluated while the results of the children before it are on the stack
+            int stackSize = 0;
+            for(int i = 0; i < children.size(); ++i)
+                stackSize = Math.max(stackSize, i + children.get(i));
+
+            switch(expr.getType())
+            {
+                case SYMBOL:
+                    return symbol(expr.getMonomial());
+                case PARENTHESES:
+                    break;
+                case ADD:
+                    for(int i = 1; i < children.size(); ++i)
+                        emit(ADD);
+                    break;
+                case SUBTRACT:
+                    emit(SUB);
+                    break;
+                case MULTIPLY:
+                    for(int i = 1; i < children.size(); ++i)
+                        emit(MUL);
+                    break;
+                case DIVIDE:
+                    emit(DIV);
+                    break;
+                case POWER:
+                    emit(POW);
+                    break;
+                case ROOT:
+                    emit(ROOT);
+                    break;
+                case FUNCTION:
+                    emit(FUNCTION);
+                    emit(expr.getFunctionType().ordinal());
+                    break;
+                default:
+                    return null;
+            }
+            return stackSize;
+        }
+
+        /**
+         * Emits the code of a symbol: its constant part times the powers of
+         * its variables.
+         *
+         * @param m
+         *        The monomial of the symbol
+         * @return The maximum size of the stack the code needs, or
+         *         <tt>null</tt> if the symbol can't be compiled
+         */
+        private Integer symbol(Monomial m)
+        {
+            final double constant = DoubleEvaluator.constant(m);
+            if(Double.isNaN(constant))
+                return null;
+
+            // A factor of 1 is left out, unless there's nothing else
+            boolean pushed = constant != 1 || m.getVarMask() == 0;
+            if(pushed)
+                emitConst(constant);
+            for(int mask = m.getVarMask(); mask != 0; mask &= mask - 1)
+            {
+                final int var = Integer.numberOfTrailingZeros(mask);
+                emit(LOAD);
+                emit(var);
+                if(m.getVarPow(var) != 1)
+                {
+                    emitConst(m.getVarPow(var));
+                    emit(POW);
+                }
+                if(pushed)
+                    emit(MUL);
+                pushed = true;
+            }
+            return 3;
+        }
+
+        /** Emits an opcode or an operand
+         * @param i The opcode or operand */
+        private void emit(int i)
+        {
+            if(codeLength == code.length)
+            {
+                int[] grown = new int[code.length * 2];
+                System.arraycopy(code, 0, grown, 0, codeLength);
+                code = grown;
+            }
+            code[codeLength++] = i;
+        }
+
+        /** Emits the code that pushes a constant
+         * @param value The constant */
+        private void emitConst(double value)
+        {
+            if(constantCount == constants.length)
+            {
+                double[] grown = new double[constants.length * 2];
+                System.arraycopy(constants, 0, grown, 0, constantCount);
+                constants = grown;
+            }
+            constants[constantCount] = value;
+            emit(CONST);
+            emit(constantCount++);
+        }
+
+        /** Creates the compiled formula from the emitted code
+         * @param stackSize The maximum size of the stack
+         * @return The compiled formula */
+        public CompiledFormula toFormula(int stackSize)
+        {
+            int[] finalCode = new int[codeLength];
+            System.arraycopy(code, 0, finalCode, 0, codeLength);
+            double[] finalConstants = new double[constantCount];
+            System.arraycopy(constants, 0, finalConstants, 0, constantCount);
+            return new CompiledFormula(finalCode, finalConstants, stackSize, false);
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package org.teaminfty.math_dragon.model;
+
+import java.util.List;
+
+import org.teaminfty.math_dragon.view.math.MathOperationFunction;
+
+/**
+ * Calculates the value of formulas without variables natively, using
+ * <tt>double</tt> math.
+ * <p>
+ * Something like <tt>sin(&pi;/7)&middot;e&sup2; + ln 3</tt> is just a number,
+ * so there's no need to convert it to Symja and run its rule engine when only
+ * an approximation is asked for. Symbols, the arithmetic operations, powers,
+ * roots and functions are supported. Everything else (variables, <tt>i</tt>,
+ * derivatives, ...) and everything that doesn't have a finite real value (e.g.
+ * <tt>&radic;-1</tt> or <tt>1/0</tt>) is left to Symja.
+ * <p>
+ * Symja simplifies exactly before it approximates, so some values that doubles
+ * can only approximate are exact there: <tt>sin &pi;</tt> is 0 rather than
+ * <tt>1.2E-16</tt>, <tt>tan(&pi;/2)</tt> is infinite and <tt>0^0</tt> is
+ * indeterminate. Those (trigonometric functions of multiples of
+ * <tt>&pi;/120</tt> and <tt>0^0</tt>) are left to Symja as well, so that
+ * the result doesn't depend on which of the two calculated it.
+ */
+public class DoubleEvaluator
+{
+    private DoubleEvaluator()
+    {}
+
+    /** Trigonometric functions of multiples of pi divided by this are left to Symja (it's the least common multiple of the denominators Symja knows exact values for) */
+    private static final double SPECIAL_ANGLE_DENOMINATOR = 120;
+
+    /** The relative tolerance that is used to recognise multiples of pi */
+    private static final double SPECIAL_ANGLE_TOLERANCE = 1e-9;
+
+    /**
+     * Calculates the value of the given expression. No recursion is used.
+     *
+     * @param expr
+     *        The expression. May not be <tt>null</tt>.
+     * @return The value, or <tt>null</tt> if it can't be calculated natively
+     */
+    public static Double evaluate(Expression expr)
+    {
+        if(expr == null)
+            throw new NullPointerException("expr");
+        return expr.fold(EVALUATOR);
+    }
+
+    /** Calculates the value of an {@link Expression} given the values of its children */
+    private static final Expression.Folder<Double, RuntimeException> EVALUATOR = new Expression.Folder<Double, RuntimeException>()
+    {
+        @Override
+        public Double fold(Expression expr, List<Double> children)
+        {
+            // If one of the children can't be calculated, the expression can't be either
+            if(children.contains(null))
+                return null;
+
+            // Only finite values are passed on
+            double value = evaluateNode(expr, children);
+            return Double.isNaN(value) || Double.isInfinite(value) ? null : value;
+        }
+    };
+
+    /**
+     * Calculates a single node of which the values of all children are known.
+     *
+     * @param expr
+     *        The node
+     * @param children
+     *        The values of the children
+     * @return The value, or {@link Double#NaN NaN} if it can't be calculated
+     */
+    private static double evaluateNode(Expression expr, List<Double> children)
+    {
+        switch(expr.getType())
+        {
+            case SYMBOL:
+                return symbol(expr.getMonomial());
+            case PARENTHESES:
+                return children.get(0);
+            case ADD:
+            {
+                double sum = 0;
+                for(Double child : children)
+                    sum += child;
+                return sum;
+            }
+            case SUBTRACT:
+                return children.get(0) - children.get(1);
+            case MULTIPLY:
+            {
+                double product = 1;
+                for(Double child : children)
+                    product *= child;
+                return product;
+            }
+            case DIVIDE:
+                return children.get(0) / children.get(1);
+            case POWER:
+                return power(children.get(0), children.get(1));
+            case ROOT:
+                // The first child is the index, the second one is the base
+                return root(children.get(0), children.get(1));
+            case FUNCTION:
+                if(isExactlyKnown(expr.getFunctionType(), children.get(0)))
+                    return Double.NaN;
+                return function(expr.getFunctionType(), children.get(0));
+            default:
+                return Double.NaN;
+        }
+    }
+
+    /**
+     * Calculates a power. Also used by {@link CompiledFormula}.
+     *
+     * @param base
+     *        The base
+     * @param exponent
+     *        The exponent
+     * @return The power, or {@link Double#NaN NaN} if it isn't real or if it's
+     *         <tt>0^0</tt>
+     */
+    static double power(double base, double exponent)
+    {
+        // Symja says 0^0 is indeterminate, Math.pow() says it's 1
+        if(base == 0 && exponent == 0)
+            return Double.NaN;
+        return Math.pow(base, exponent);
+    }
+
+    /**
+     * Calculates a root. Also used by {@link CompiledFormula}.
+     *
+     * @param index
+     *        The index of the root
+     * @param base
+     *        The base
+     * @return The root, or {@link Double#NaN NaN} if it isn't real or if the
+     *         index is 0
+     */
+    static double root(double index, double base)
+    {
+        if(index == 0)
+            return Double.NaN;
+        if(index == 2)
+            return Math.sqrt(base);
+        return Math.pow(base, 1 / index);
+    }
+
+    /**
+     * Checks whether Symja knows the exact value of a function, i.e. whether
+     * it's a trigonometric function of a special angle. The approximation of
+     * such a value (e.g. <tt>1.2E-16</tt> for <tt>sin &pi;</tt>) shouldn't be
+     * shown. Also used by {@link CompiledFormula}.
+     *
+     * @param type
+     *        The type of the function
+     * @param arg
+     *        The value of the argument
+     * @return <tt>true</tt> if Symja may know the exact value, <tt>false</tt>
+     *         otherwise
+     */
+    static boolean isExactlyKnown(MathOperationFunction.FunctionType type, double arg)
+    { return isTrigonometric(type) && isSpecialAngle(arg); }
+
+    /** Checks whether a function is sin, cos or tan
+     * @param type The type of the function
+     * @return <tt>true</tt> if it's trigonometric, <tt>false</tt> otherwise */
+    private static boolean isTrigonometric(MathOperationFunction.FunctionType type)
+    { return type == MathOperationFunction.FunctionType.SIN || type == MathOperationFunction.FunctionType.COS || type == MathOperationFunction.FunctionType.TAN; }
+
+    /**
+     * Checks whether an angle is (close to) a multiple of
+     * <tt>&pi;/{@value #SPECIAL_ANGLE_DENOMINATOR}</tt>, i.e. whether Symja
+     * may know the exact value of a trigonometric function of it.
+     *
+     * @param angle
+     *        The angle
+     * @return <tt>true</tt> if it's a special angle, <tt>false</tt> otherwise
+     */
+    private static boolean isSpecialAngle(double angle)
+    {
+        final double multiple = angle / Math.PI * SPECIAL_ANGLE_DENOMINATOR;
+        return Math.abs(multiple - Math.rint(multiple)) <= SPECIAL_ANGLE_TOLERANCE * Math.max(1, Math.abs(multiple));
+    }
+
+    /**
+     * Calculates the value of a symbol.
+     *
+     * @param m
+     *        The monomial of the symbol
+     * @return The value, or {@link Double#NaN NaN} if the symbol contains a
+     *         variable or isn't real
+     */
+    private static double symbol(Monomial m)
+    {
+        // Variables don't have a value
+        return m.getVarMask() != 0 ? Double.NaN : constant(m);
+    }
+
+    /**
+     * Calculates the value of a symbol without its variables, i.e. the value
+     * of its factor and its powers of pi, e and i.
+     *
+     * @param m
+     *        The monomial of the symbol
+     * @return The value, or {@link Double#NaN NaN} if it isn't real
+     */
+    static double constant(Monomial m)
+    {
+        // Odd powers of i aren't real, i^2 = -1
+        if((m.getIPow() & 1) != 0)
+            return Double.NaN;
+        double value = m.isBigFactor() ? m.getBigFactor().doubleValue() : m.getFactor();
+        if((m.getIPow() & 2) != 0)
+            value = -value;
+        if(m.getPiPow() != 0)
+            value *= Math.pow(Math.PI, m.getPiPow());
+        if(m.getEPow() != 0)
+            value *= Math.pow(Math.E, m.getEPow());
+        return value;
+    }
+
+    /**
+     * Calculates the value of a function. Also used by
+     * {@link CompiledFormula}.
+     *
+     * @param type
+     *        The type of the function
+     * @param arg
+     *        The value of the argument
+     * @return The value, or {@link Double#NaN NaN} if it isn't real
+     */
+    static double function(MathOperationFunction.FunctionType type, double arg)
+    {
+        switch(type)
+        {
+            case ARCCOS:    return Math.acos(arg);
+            case ARCSIN:    return Math.asin(arg);
+            case ARCTAN:    return Math.atan(arg);
+            case COS:       return Math.cos(arg);
+            case COSH:      return Math.cosh(arg);
+            case LN:        return Math.log(arg);
+            case SIN:       return Math.sin(arg);
+            case SINH:      return Math.sinh(arg);
+            case TAN:       return Math.tan(arg);
+        }
+        return Double.NaN;
+    }
+}
@@ -1,6 +1,11 @@
 package org.teaminfty.math_dragon.model;
 
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
 import org.matheclipse.core.expression.F;
+import org.matheclipse.core.interfaces.IAST;
 import org.matheclipse.core.interfaces.IExpr;
 import org.matheclipse.core.interfaces.ISymbol;
 import org.teaminfty.math_dragon.exceptions.EmptyChildException;
@@ -17,7 +22,6 @@ import org.teaminfty.math_dragon.view.math.MathOperationMultiply;
 import org.teaminfty.math_dragon.view.math.MathOperationPower;
 import org.teaminfty.math_dragon.view.math.MathOperationRoot;
 import org.teaminfty.math_dragon.view.math.MathOperationSubtract;
-import org.teaminfty.math_dragon.view.math.MathParentheses;
 import org.teaminfty.math_dragon.view.math.MathSymbol;
 
 /**
@@ -45,34 +49,163 @@ public class EvalHelper
     {
         if(o == null)
             throw new NullPointerException("o");
-        if(o instanceof MathBinaryOperation)
+        return eval(o.getExpression());
+    }
+
+    /**
+     * Convert the expression to an expression for the symja library. Never
+     * returns <tt>null</tt>. On failure, a {@link MathException} is thrown.
+     * <p>
+     * Since expressions never change, this method can safely be called from
+     * any thread. The conversions of all subexpressions are remembered, so
+     * after a small edit only the nodes on the changed path to the root are
+     * created again, the conversions of the unchanged subexpressions are
+     * shared with the earlier conversions. Symja changes the expressions it
+     * evaluates in place (it sorts the operands of sums and products), which
+     * doesn't change their meaning but isn't safe while another thread uses
+     * them. So every thread has conversions of its own: the shared nodes are
+     * only handed to Symja by the thread that converted them, one evaluation
+     * at a time.
+     * 
+     * @param expr
+     *        The expression. May not be <tt>null</tt>.
+     * @return The mathematical expression for symja.
+     * @throws MathException
+     *         Thrown when it could not be converted.
+     */
+    public static IExpr eval(Expression expr) throws MathException
+    {
+        if(expr == null)
+            throw new NullPointerException("expr");
+        
+        // Convert the expression bottom-up, without recursion, reusing the conversions of unchanged subexpressions
+        IExpr result = expr.fold(CONVERTER, CONVERSIONS.get());
+        if(result == null)
+            throw new EmptyChildException();
+        return result;
+    }
+    
+    /** The conversions of the expressions that were converted before by the current thread.
+     * The keys are weak, so conversions are forgotten together with their expressions. */
+    private static final ThreadLocal<Map<Expression, IExpr>> CONVERSIONS = new ThreadLocal<Map<Expression, IExpr>>()
+    {
+        @Override
+        protected Map<Expression, IExpr> initialValue()
+        { return new WeakHashMap<Expression, IExpr>(); }
+    };
+    
+    /** Converts an {@link Expression} given the converted children */
+    private static final Expression.Folder<IExpr, MathException> CONVERTER = new Expression.Folder<IExpr, MathException>()
+    {
+        @Override
+        public IExpr fold(Expression expr, List<IExpr> children) throws MathException
+        { return evalNode(expr, children); }
+    };
+    
+    /**
+     * Convert a single expression to an expression for the symja library,
+     * given the converted children. Empty children are passed as
+     * <tt>null</tt>, so that the parent can report which child is empty.
+     * 
+     * @param expr
+     *        The expression.
+     * @param children
+     *        The converted children of <tt>expr</tt>.
+     * @return The mathematical expression, or <tt>null</tt> if <tt>expr</tt>
+     *         is empty.
+     * @throws MathException
+     *         Thrown when it could not be converted.
+     */
+    static IExpr evalNode(Expression expr, List<IExpr> children) throws MathException
+    {
+        switch(expr.getType())
         {
-            MathBinaryOperation op = (MathBinaryOperation) o;
-            if(op instanceof MathOperationAdd)
-                return add((MathOperationAdd) op);
-            if(op instanceof MathOperationSubtract)
-                return sub((MathOperationSubtract) op);
-            if(op instanceof MathOperationMultiply)
-                return mul((MathOperationMultiply) op);
-            if(op instanceof MathOperationDivide)
-                return div((MathOperationDivide) op);
-            if(op instanceof MathOperationPower)
-                return pow((MathOperationPower) op);
-            if(op instanceof MathOperationRoot)
-                return root((MathOperationRoot) op);
-            if(op instanceof MathOperationDerivative)
-                return derivative((MathOperationDerivative) op);
+            case EMPTY:
+                return null;
+            case SYMBOL:
+                return symbol(expr.getMonomial());
+            case ADD:
+                if(children.size() == 2)
+                    return F.Plus(operand(children, 0), operand(children, 1));
+                return operands(F.Plus(), children);
+            case SUBTRACT:
+                return F.Subtract(operand(children, 0), operand(children, 1));
+            case MULTIPLY:
+                if(children.size() == 2)
+                    return F.Times(operand(children, 0), operand(children, 1));
+                return operands(F.Times(), children);
+            case DIVIDE:
+                return F.Divide(operand(children, 0), operand(children, 1));
+            case POWER:
+                return F.Power(operand(children, 0), operand(children, 1));
+            case ROOT:
+            {
+                IExpr exponent = operand(children, 0);
+                return F.Power(operand(children, 1), F.Divide(F.ZZ(1), exponent));
+            }
+            case DERIVATIVE:
+                return F.D(operand(children, 0), operand(children, 1));
+            case FUNCTION:
+                return function(expr.getFunctionType(), nonEmpty(children.get(0)));
+            case PARENTHESES:
+                return nonEmpty(children.get(0));
+            default:
+                throw new ParseException(expr.getType().toString());
         }
-        else if(o instanceof MathOperationFunction)
-            return function((MathOperationFunction) o);
-        else if(o instanceof MathSymbol)
-            return symbol((MathSymbol) o);
-        else if(o instanceof MathParentheses)
-            return eval(o.getChild(0));
-        else if(o instanceof MathObjectEmpty)
+    }
+    
+    /**
+     * Returns the converted operand of a binary operation at the given index.
+     * 
+     * @param children
+     *        The converted children of the binary operation.
+     * @param index
+     *        The index of the operand.
+     * @return The converted operand.
+     * @throws EmptyChildException
+     *         Thrown when the operand is empty.
+     */
+    private static IExpr operand(List<IExpr> children, int index) throws EmptyChildException
+    {
+        IExpr expr = children.get(index);
+        if(expr == null)
+            throw new EmptyChildException(index);
+        return expr;
+    }
+    
+    /**
+     * Adds all converted operands of an n-ary operation to one flat
+     * expression for the symja library.
+     * 
+     * @param ast
+     *        The expression without any operands (e.g. <tt>F.Plus()</tt>).
+     * @param children
+     *        The converted operands.
+     * @return <tt>ast</tt>
+     * @throws EmptyChildException
+     *         Thrown when an operand is empty.
+     */
+    private static IAST operands(IAST ast, List<IExpr> children) throws EmptyChildException
+    {
+        for(int i = 0; i < children.size(); ++i)
+            ast.add(operand(children, i));
+        return ast;
+    }
+    
+    /**
+     * Ensures a converted child is not empty.
+     * 
+     * @param expr
+     *        The converted child.
+     * @return <tt>expr</tt>
+     * @throws EmptyChildException
+     *         Thrown when the child is empty.
+     */
+    private static IExpr nonEmpty(IExpr expr) throws EmptyChildException
+    {
+        if(expr == null)
             throw new EmptyChildException();
-
-        throw new ParseException(o.toString());
+        return expr;
     }
 
     /**
@@ -98,28 +231,51 @@ public class EvalHelper
             F.e, F.f, F.g, F.h, F.i, F.j, F.k, F.l, F.m, F.n, F.o, F.p, F.q,
             F.r, F.s, F.t, F.u, F.v, F.w, F.x, F.y, F.z};
 
+    /**
+     * Returns the symbol of a variable for the symja library.
+     * 
+     * @param index
+     *        The index of the variable (0 for <tt>a</tt>, 25 for <tt>z</tt>).
+     * @return The symbol of the variable.
+     */
+    public static ISymbol variable(int index)
+    {
+        return SYMBOLS[index];
+    }
+
     public static IExpr symbol(MathSymbol symbol)
     {
         if(symbol == null)
             throw new NullPointerException("symbol");
-        IExpr result = F.ZZ(symbol.getFactor());
-        if(symbol.getFactor() == 0)
+        return symbol(symbol.getMonomial());
+    }
+
+    /**
+     * Convert a monomial to an expression for the symja library.
+     * 
+     * @param m
+     *        The monomial.
+     * @return The mathematical expression for symja.
+     */
+    public static IExpr symbol(Monomial m)
+    {
+        IExpr result = m.isBigFactor() ? F.integer(m.getBigFactor()) : F.ZZ(m.getFactor());
+        if(m.getFactorSign() == 0 || m.isNumber())
             return result;
 
         // Add the constants and their powers
-        if(symbol.getPiPow() != 0)
-            result = F.Times(result, F.Power(F.Pi, symbol.getPiPow()));
-        if(symbol.getEPow() != 0)
-            result = F.Times(result, F.Power(F.E, symbol.getEPow()));
-        if(symbol.getIPow() != 0)
-            result = F.Times(result, F.Power(F.I, symbol.getIPow()));
+        if(m.getPiPow() != 0)
+            result = F.Times(result, F.Power(F.Pi, m.getPiPow()));
+        if(m.getEPow() != 0)
+            result = F.Times(result, F.Power(F.E, m.getEPow()));
+        if(m.getIPow() != 0)
+            result = F.Times(result, F.Power(F.I, m.getIPow()));
 
         // Add the variables
-        for(int i = 0; i < symbol.varPowCount(); i++)
+        for(int mask = m.getVarMask(); mask != 0; mask &= mask - 1)
         {
-            if(symbol.getVarPow(i) != 0)
-                result = F.Times(result,
-                        F.Power(SYMBOLS[i], symbol.getVarPow(i)));
+            final int i = Integer.numberOfTrailingZeros(mask);
+            result = F.Times(result, F.Power(SYMBOLS[i], m.getVarPow(i)));
         }
 
         // Return the result
@@ -138,7 +294,7 @@ public class EvalHelper
     public static IExpr add(MathOperationAdd add) throws MathException
     {
         checkChildren(add);
-        return F.Plus(eval(add.getLeft()), eval(add.getRight()));
+        return eval(add);
     }
 
     /**
@@ -153,7 +309,7 @@ public class EvalHelper
     public static IExpr div(MathOperationDivide div) throws MathException
     {
         checkChildren(div);
-        return F.Divide(eval(div.getLeft()), eval(div.getRight()));
+        return eval(div);
     }
 
     /**
@@ -168,7 +324,7 @@ public class EvalHelper
     public static IExpr mul(MathOperationMultiply mul) throws MathException
     {
         checkChildren(mul);
-        return F.Times(eval(mul.getLeft()), eval(mul.getRight()));
+        return eval(mul);
     }
 
     /**
@@ -183,7 +339,7 @@ public class EvalHelper
     public static IExpr pow(MathOperationPower pow) throws MathException
     {
         checkChildren(pow);
-        return F.Power(eval(pow.getBase()), eval(pow.getExponent()));
+        return eval(pow);
     }
 
     /**
@@ -198,7 +354,7 @@ public class EvalHelper
     public static IExpr root(MathOperationRoot root) throws MathException
     {
         checkChildren(root);
-        return F.Power(eval(root.getBase()), F.Divide(F.ZZ(1), eval(root.getExponent())));
+        return eval(root);
     }
 
     /**
@@ -213,7 +369,7 @@ public class EvalHelper
     public static IExpr sub(MathOperationSubtract sub) throws MathException
     {
         checkChildren(sub);
-        return F.Subtract(eval(sub.getLeft()), eval(sub.getRight()));
+        return eval(sub);
     }
 
     /**
@@ -228,7 +384,7 @@ public class EvalHelper
     public static IExpr derivative(MathOperationDerivative ddx) throws MathException
     {
         checkChildren(ddx);
-        return F.D(eval(ddx.getLeft()), eval(ddx.getRight()));
+        return eval(ddx);
     }
 
     /**
@@ -241,19 +397,33 @@ public class EvalHelper
      */
     public static IExpr function(MathOperationFunction f) throws MathException
     {
-        switch(f.getType())
+        return eval(f);
+    }
+    
+    /**
+     * Apply a mathematical function to an already converted argument.
+     * 
+     * @param type The type of the function.
+     * @param arg The converted argument.
+     * @return The mathematical function applied to <tt>arg</tt>
+     * @throws ParseException
+     *         Thrown when the function type is unknown
+     */
+    static IExpr function(MathOperationFunction.FunctionType type, IExpr arg) throws ParseException
+    {
+        switch(type)
         {
-            case ARCCOS:    return F.ArcCos(eval(f.getChild(0)));
-            case ARCSIN:    return F.ArcSin(eval(f.getChild(0)));
-            case ARCTAN:    return F.ArcTan(eval(f.getChild(0)));
-            case COS:       return F.Cos(eval(f.getChild(0)));
-            case COSH:      return F.Cosh(eval(f.getChild(0)));
-            case LN:        return F.Log(eval(f.getChild(0)));
-            case SIN:       return F.Sin(eval(f.getChild(0)));
-            case SINH:      return F.Sinh(eval(f.getChild(0)));
-            case TAN:       return F.Tan(eval(f.getChild(0)));
+            case ARCCOS:    return F.ArcCos(arg);
+            case ARCSIN:    return F.ArcSin(arg);
+            case ARCTAN:    return F.ArcTan(arg);
+            case COS:       return F.Cos(arg);
+            case COSH:      return F.Cosh(arg);
+            case LN:        return F.Log(arg);
+            case SIN:       return F.Sin(arg);
+            case SINH:      return F.Sinh(arg);
+            case TAN:       return F.Tan(arg);
         }
         
-        throw new ParseException(f.toString());
+        throw new ParseException(type.toString());
     }
 }
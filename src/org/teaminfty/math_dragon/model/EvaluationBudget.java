@@ -0,0 +1,116 @@
+package org.teaminfty.math_dragon.model;
+
+import org.matheclipse.core.eval.EvalEngine;
+import org.matheclipse.core.eval.exception.IterationLimitExceeded;
+import org.matheclipse.core.eval.exception.RecursionLimitExceeded;
+import org.matheclipse.core.interfaces.IExpr;
+import org.teaminfty.math_dragon.exceptions.BudgetExceededException;
+
+/**
+ * The limits of a single evaluation: how long it may take, how deep and how
+ * long Symja may recurse and iterate, and how large the result may be.
+ * <p>
+ * The recursion and iteration limits are enforced by Symja's
+ * {@link EvalEngine} (see {@link EvaluationBudget#evaluate(IExpr)
+ * evaluate()}), the node limit by
+ * {@link ModelHelper#toMathObject(IExpr, ExpressionInterner, int)
+ * ModelHelper}. The time limit has to be enforced by whoever runs the
+ * evaluation, by asking the {@link EvalEngine} that evaluates to stop (see
+ * {@link EvalEngine#stopRequest()}).
+ * <p>
+ * An evaluation budget never changes, so it can be shared between threads.
+ */
+public final class EvaluationBudget
+{
+    /** The default budget: 10 seconds, a recursion limit of 256, an iteration limit of 10000 and 20000 nodes */
+    public static final EvaluationBudget DEFAULT = new EvaluationBudget(10000, 256, 10000, 20000);
+
+    /** The maximum time in milliseconds */
+    private final long timeLimit;
+    /** The maximum recursion depth of Symja */
+    private final int recursionLimit;
+    /** The maximum number of iterations of Symja */
+    private final int iterationLimit;
+    /** The maximum number of nodes in the result */
+    private final int nodeLimit;
+
+    /**
+     * Constructor
+     *
+     * @param timeLimit
+     *        The maximum time in milliseconds
+     * @param recursionLimit
+     *        The maximum recursion depth of Symja
+     * @param iterationLimit
+     *        The maximum number of iterations of Symja
+     * @param nodeLimit
+     *        The maximum number of nodes in the result
+     */
+    public EvaluationBudget(long timeLimit, int recursionLimit, int iterationLimit, int nodeLimit)
+    {
+        this.timeLimit = timeLimit;
+        this.recursionLimit = recursionLimit;
+        this.iterationLimit = iterationLimit;
+        this.nodeLimit = nodeLimit;
+    }
+
+    /** Retrieve the maximum time
+     * @return The maximum time in milliseconds */
+    public long getTimeLimit()
+    { return timeLimit; }
+
+    /** Retrieve the maximum recursion depth of Symja
+     * @return The maximum recursion depth */
+    public int getRecursionLimit()
+    { return recursionLimit; }
+
+    /** Retrieve the maximum number of iterations of Symja
+     * @return The maximum number of iterations */
+    public int getIterationLimit()
+    { return iterationLimit; }
+
+    /** Retrieve the maximum number of nodes in the result
+     * @return The maximum number of nodes */
+    public int getNodeLimit()
+    { return nodeLimit; }
+
+    /**
+     * Evaluates an expression with the {@link EvalEngine} of the current
+     * thread, using the recursion and iteration limits of this budget. The
+     * limits of the engine are restored afterwards.
+     *
+     * @param expr
+     *        The expression to evaluate
+     * @return The result
+     * @throws BudgetExceededException
+     *         Thrown when the recursion or the iteration limit is exceeded
+     */
+    public IExpr evaluate(IExpr expr) throws BudgetExceededException
+    {
+        // Set the limits
+        EvalEngine engine = EvalEngine.get();
+        final int oldRecursionLimit = engine.getRecursionLimit();
+        final int oldIterationLimit = engine.getIterationLimit();
+        engine.setRecursionLimit(recursionLimit);
+        engine.setIterationLimit(iterationLimit);
+
+        try
+        {
+            return engine.evaluate(expr);
+        }
+        catch(RecursionLimitExceeded e)
+        {
+            throw new BudgetExceededException(BudgetExceededException.Limit.RECURSION, e);
+        }
+        catch(IterationLimitExceeded e)
+        {
+            throw new BudgetExceededException(BudgetExceededException.Limit.ITERATION, e);
+        }
+        finally
+        {
+            // Restore the limits
+            engine.setRecursionLimit(oldRecursionLimit);
+            engine.setIterationLimit(oldIterationLimit);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package org.teaminfty.math_dragon.model;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.matheclipse.core.interfaces.IExpr;
+
+/**
+ * Remembers the results of the last few evaluations, so that evaluating the
+ * same formula again (e.g. after undo/redo) doesn't need Symja.
+ * <p>
+ * The results are looked up by the {@link Expression} of the formula and the
+ * evaluation mode. Since expressions never change and their hash codes are
+ * calculated once, a lookup is cheap. When the cache is full, the result that
+ * was used least recently is forgotten.
+ * <p>
+ * The cache isn't thread-safe, it should only be used from one thread.
+ */
+public class EvaluationCache
+{
+    /** The default maximum number of results */
+    public static final int DEFAULT_MAX_SIZE = 32;
+
+    /** The result of an evaluation */
+    public static class Result
+    {
+        /** The result from Symja (may be <tt>null</tt>) */
+        private final IExpr result;
+        /** The expression of the result, with its parentheses set */
+        private final Expression answer;
+
+        /** Constructor
+         * @param result The result from Symja (may be <tt>null</tt> if Symja wasn't used)
+         * @param answer The expression of the result, with its parentheses set */
+        public Result(IExpr result, Expression answer)
+        {
+            this.result = result;
+            this.answer = answer;
+        }
+
+        /** Retrieve the result from Symja
+         * @return The result from Symja, or <tt>null</tt> if Symja wasn't used */
+        public IExpr getResult()
+        { return result; }
+
+        /** Retrieve the expression of the result
+         * @return The expression of the result, with its parentheses set */
+        public Expression getAnswer()
+        { return answer; }
+    }
+
+    /** The key of a result: the evaluated expression and the evaluation mode */
+    private static class Key
+    {
+        /** The evaluated expression */
+        private final Expression expr;
+        /** Whether the expression was evaluated exactly or approximated */
+        private final boolean exact;
+
+        /** Constructor
+         * @param expr The evaluated expression
+         * @param exact Whether the expression was evaluated exactly or approximated */
+        public Key(Expression expr, boolean exact)
+        {
+            this.expr = expr;
+            this.exact = exact;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if(!(o instanceof Key))
+                return false;
+            Key key = (Key) o;
+            return key.exact == exact && key.expr.equals(expr);
+        }
+
+        @Override
+        public int hashCode()
+        { return 2 * expr.hashCode() + (exact ? 1 : 0); }
+    }
+
+    /** The results, in the order in which they were used (least recently used first) */
+    private final LinkedHashMap<Key, Result> results;
+
+    /** Default constructor, uses {@link EvaluationCache#DEFAULT_MAX_SIZE DEFAULT_MAX_SIZE} */
+    public EvaluationCache()
+    {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param maxSize
+     *        The maximum number of results
+     */
+    public EvaluationCache(final int maxSize)
+    {
+        results = new LinkedHashMap<Key, Result>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Result> eldest)
+            { return size() > maxSize; }
+        };
+    }
+
+    /**
+     * Looks up the result of an evaluation.
+     *
+     * @param expr
+     *        The evaluated expression
+     * @param exact
+     *        Whether the expression was evaluated exactly or approximated
+     * @return The result, or <tt>null</tt> if it isn't known
+     */
+    public Result get(Expression expr, boolean exact)
+    { return results.get(new Key(expr, exact)); }
+
+    /**
+     * Remembers the result of an evaluation.
+     *
+     * @param expr
+     *        The evaluated expression
+     * @param exact
+     *        Whether the expression was evaluated exactly or approximated
+     * @param result
+     *        The result
+     */
+    public void put(Expression expr, boolean exact, Result result)
+    { results.put(new Key(expr, exact), result); }
+
+    /** Forgets all results */
+    public void clear()
+    { results.clear(); }
+}
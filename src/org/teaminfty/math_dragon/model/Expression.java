@@ -0,0 +1,279 @@
+package org.teaminfty.math_dragon.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.teaminfty.math_dragon.view.math.MathObject;
+import org.teaminfty.math_dragon.view.math.MathOperationFunction;
+
+/**
+ * An immutable mathematical expression.
+ * <p>
+ * A {@link MathObject} mixes the math with the state of the view (its level,
+ * its size, its hover state, its paints). An expression only holds the math
+ * and never changes, so it can safely be shared between trees, snapshots and
+ * threads. {@link MathObject#getExpression()} returns the expression of a
+ * {@link MathObject}; the expressions of subtrees that didn't change are
+ * reused, so after an edit only the expressions on the path to the root are
+ * created again.
+ */
+public final class Expression
+{
+    /** The types of expressions, {@link Type#ADD ADD} and {@link Type#MULTIPLY MULTIPLY} can have two or more children */
+    public enum Type
+    {
+        EMPTY, SYMBOL, ADD, SUBTRACT, MULTIPLY, DIVIDE, POWER, ROOT, DERIVATIVE, INTEGRAL, FUNCTION, LOG, PARENTHESES
+    }
+
+    /** An expression without children */
+    private static final Expression[] NO_CHILDREN = new Expression[0];
+
+    /** The empty expression */
+    public static final Expression EMPTY = new Expression(Type.EMPTY, null);
+
+    /** The type of this expression */
+    private final Type type;
+    /** The value of this expression (a {@link Monomial} for symbols, a {@link MathOperationFunction.FunctionType} for functions) */
+    private final Object value;
+    /** The children of this expression */
+    private final Expression[] children;
+    /** The structural hash code of this expression */
+    private final int hash;
+
+    /**
+     * Construct an expression.
+     *
+     * @param type
+     *        The type of the expression
+     * @param value
+     *        The {@link Monomial} for symbols, the
+     *        {@link MathOperationFunction.FunctionType} for functions, or
+     *        <tt>null</tt>
+     * @param children
+     *        The children
+     */
+    public Expression(Type type, Object value, Expression... children)
+    {
+        if(type == null)
+            throw new NullPointerException("type");
+        this.type = type;
+        this.value = value;
+        this.children = children.length == 0 ? NO_CHILDREN : children.clone();
+
+        // The hash code only depends on the hash codes of the children, so it's calculated in constant time
+        int h = 31 * type.ordinal() + valueHash(value);
+        for(Expression child : this.children)
+            h = 31 * h + child.hash;
+        hash = h;
+    }
+
+    /** Retrieve the type of this expression.
+     * @return The type */
+    public Type getType()
+    { return type; }
+
+    /** Retrieve the monomial of a symbol.
+     * @return The monomial, or <tt>null</tt> if this isn't a symbol */
+    public Monomial getMonomial()
+    { return type == Type.SYMBOL ? (Monomial) value : null; }
+
+    /** Retrieve the function type of a function.
+     * @return The function type, or <tt>null</tt> if this isn't a function */
+    public MathOperationFunction.FunctionType getFunctionType()
+    { return type == Type.FUNCTION ? (MathOperationFunction.FunctionType) value : null; }
+
+    /** Retrieve the value of this expression.
+     * @return The value (may be <tt>null</tt>) */
+    public Object getValue()
+    { return value; }
+
+    /** Retrieve the number of children.
+     * @return The number of children */
+    public int getChildCount()
+    { return children.length; }
+
+    /** Retrieve a child.
+     * @param index The index of the child
+     * @return The child */
+    public Expression getChild(int index)
+    { return children[index]; }
+
+    @Override
+    public int hashCode()
+    { return hash; }
+
+    /** Calculates the hash code of the value of an expression.
+     * Enums use their ordinal, so that hash codes are the same every time the app runs.
+     * @param value The value (may be <tt>null</tt>)
+     * @return The hash code */
+    private static int valueHash(Object value)
+    {
+        if(value == null)
+            return 0;
+        if(value instanceof Enum)
+            return ((Enum<?>) value).ordinal();
+        return value.hashCode();
+    }
+
+    /**
+     * Checks whether the given object is an expression with the same
+     * structure. Shared subexpressions are only compared by identity and
+     * expressions with different hash codes are never compared any further,
+     * so comparing an expression with a slightly changed version of itself is
+     * cheap. No recursion is used.
+     *
+     * @param o
+     *        The object to compare with
+     * @return <tt>true</tt> when equal, <tt>false</tt> otherwise
+     */
+    @Override
+    public boolean equals(Object o)
+    {
+        if(o == this)
+            return true;
+        if(!(o instanceof Expression))
+            return false;
+
+        // The pairs of expressions that still have to be compared
+        ArrayList<Expression> stack = new ArrayList<Expression>();
+        stack.add(this);
+        stack.add((Expression) o);
+        while(!stack.isEmpty())
+        {
+            Expression b = stack.remove(stack.size() - 1);
+            Expression a = stack.remove(stack.size() - 1);
+            if(a == b)
+                continue;
+            if(a.hash != b.hash || a.type != b.type || a.children.length != b.children.length)
+                return false;
+            if(a.value == null ? b.value != null : !a.value.equals(b.value))
+                return false;
+            for(int i = 0; i < a.children.length; ++i)
+            {
+                stack.add(a.children[i]);
+                stack.add(b.children[i]);
+            }
+        }
+        return true;
+    }
+
+    /** Combines the results of the children of an expression into the result for that expression
+     * @param <T> The type of the results
+     * @param <E> The type of exception that can be thrown while folding */
+    public interface Folder<T, E extends Exception>
+    {
+        /** Calculates the result for the given expression
+         * @param expr The expression
+         * @param children The results of the children of the expression, in the same order as the children
+         * @return The result for the given expression
+         * @throws E If the result can't be calculated */
+        public T fold(Expression expr, List<T> children) throws E;
+    }
+
+    /**
+     * Calculates a result for this expression by combining the results of the
+     * children of every subexpression in post-order. No recursion is used, so
+     * the depth of the expression is only limited by the available memory.
+     *
+     * @param folder
+     *        The {@link Folder} that calculates the results
+     * @return The result for this expression
+     * @throws E
+     *         If the {@link Folder} throws it
+     */
+    public <T, E extends Exception> T fold(Folder<T, E> folder) throws E
+    {
+        return fold(folder, null);
+    }
+
+    /**
+     * Calculates a result for this expression like
+     * {@link Expression#fold(Folder) fold(Folder)}, but looks up the results of
+     * subexpressions in the given cache first. Subexpressions of which the
+     * result is in the cache aren't visited at all, and the results that are
+     * calculated are added to the cache. So if only a small part of an
+     * expression has changed since it was folded last time, only that part
+     * (and the path to the root) is folded again.
+     *
+     * @param folder
+     *        The {@link Folder} that calculates the results
+     * @param cache
+     *        The results of subexpressions that are known already (may be
+     *        <tt>null</tt> to use no cache)
+     * @return The result for this expression
+     * @throws E
+     *         If the {@link Folder} throws it
+     */
+    public <T, E extends Exception> T fold(Folder<T, E> folder, Map<Expression, T> cache) throws E
+    {
+        // Leaves don't need a stack
+        T cached = cache == null ? null : cache.get(this);
+        if(cached != null)
+            return cached;
+        if(children.length == 0)
+            return remember(cache, this, folder.fold(this, Collections.<T>emptyList()));
+
+        // The results that haven't been combined yet
+        ArrayList<T> results = new ArrayList<T>();
+
+        // The stack of expressions and the index of the next child to visit for each of them
+        ArrayList<Expression> exprs = new ArrayList<Expression>();
+        int[] nextChild = new int[16];
+        exprs.add(this);
+
+        while(true)
+        {
+            final int top = exprs.size() - 1;
+            Expression expr = exprs.get(top);
+            if(nextChild[top] < expr.children.length)
+            {
+                Expression child = expr.children[nextChild[top]++];
+
+                // Known results and leaves can be used right away, otherwise we push the child on the stack
+                cached = cache == null ? null : cache.get(child);
+                if(cached != null)
+                    results.add(cached);
+                else if(child.children.length == 0)
+                    results.add(remember(cache, child, folder.fold(child, Collections.<T>emptyList())));
+                else
+                {
+                    if(top + 1 == nextChild.length)
+                    {
+                        int[] grown = new int[nextChild.length * 2];
+                        System.arraycopy(nextChild, 0, grown, 0, nextChild.length);
+                        nextChild = grown;
+                    }
+                    nextChild[top + 1] = 0;
+                    exprs.add(child);
+                }
+            }
+            else
+            {
+                // Combine the results of the children
+                List<T> childResults = results.subList(results.size() - expr.children.length, results.size());
+                T result = remember(cache, expr, folder.fold(expr, new ArrayList<T>(childResults)));
+                childResults.clear();
+
+                // Return the result if this was the root, otherwise hand it to the parent
+                exprs.remove(top);
+                if(top == 0)
+                    return result;
+                results.add(result);
+            }
+        }
+    }
+
+    /** Adds a result to a cache
+     * @param cache The cache (may be <tt>null</tt>)
+     * @param expr The expression
+     * @param result The result for the expression (<tt>null</tt> results aren't added)
+     * @return The result */
+    private static <T> T remember(Map<Expression, T> cache, Expression expr, T result)
+    {
+        if(cache != null && result != null)
+            cache.put(expr, result);
+        return result;
+    }
+}
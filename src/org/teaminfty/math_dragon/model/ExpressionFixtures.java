@@ -0,0 +1,36 @@
+package org.teaminfty.math_dragon.model;
+
+import org.teaminfty.math_dragon.view.math.MathOperationFunction.FunctionType;
+
+/** Creates the expressions the tests of the model are built from */
+final class ExpressionFixtures
+{
+	private ExpressionFixtures()
+	{}
+
+	/** Creates a symbol with only a variable, e.g. <tt>x</tt> */
+	static Expression var(char name)
+	{
+		long[] pows = new long[Monomial.VAR_COUNT];
+		pows[name - 'a'] = 1;
+		return new Expression(Expression.Type.SYMBOL, new Monomial(1, 0, 0, 0, pows));
+	}
+
+	/** Creates a symbol with only a factor */
+	static Expression num(long factor)
+	{
+		return new Expression(Expression.Type.SYMBOL, new Monomial(factor));
+	}
+
+	/** Creates an operation with the given children */
+	static Expression op(Expression.Type type, Expression... children)
+	{
+		return new Expression(type, null, children);
+	}
+
+	/** Creates a function of the given argument, e.g. <tt>sin(x)</tt> */
+	static Expression function(FunctionType type, Expression arg)
+	{
+		return new Expression(Expression.Type.FUNCTION, type, arg);
+	}
+}
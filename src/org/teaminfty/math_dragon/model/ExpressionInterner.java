@@ -0,0 +1,157 @@
+package org.teaminfty.math_dragon.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Makes sure that equal (sub)expressions are the same instance.
+ * <p>
+ * Results from Symja often contain the same subexpression many times (e.g.
+ * <tt>x^2</tt> or <tt>pi</tt> in an expanded polynomial). An interner keeps
+ * one instance of every expression and every {@link Monomial} it has seen,
+ * and replaces equal ones with that instance. Since expressions and monomials
+ * never change, sharing them is always safe.
+ * <p>
+ * Interned expressions can also be compared by identity. Interning an
+ * expression that only differs from an already interned one in a few places
+ * (like the next state in the undo history) only visits the parts that are
+ * new.
+ * <p>
+ * An interner remembers everything it has seen, so it should live as long as
+ * the expressions it's used for. It isn't thread-safe.
+ */
+public final class ExpressionInterner
+{
+    /** The initial size of the stack */
+    private static final int INITIAL_STACK_SIZE = 16;
+
+    /** The interned expressions, every expression is mapped to itself */
+    private final HashMap<Expression, Expression> expressions = new HashMap<Expression, Expression>();
+
+    /** The interned monomials, every monomial is mapped to itself */
+    private final HashMap<Monomial, Monomial> monomials = new HashMap<Monomial, Monomial>();
+
+    /**
+     * Returns the interned monomial that's equal to the given monomial.
+     *
+     * @param monomial
+     *        The monomial
+     * @return The interned monomial
+     */
+    public Monomial intern(Monomial monomial)
+    {
+        Monomial out = monomials.get(monomial);
+        if(out == null)
+        {
+            monomials.put(monomial, monomial);
+            out = monomial;
+        }
+        return out;
+    }
+
+    /**
+     * Returns the interned expression that's equal to the given expression.
+     * All subexpressions (and monomials) of the returned expression are
+     * interned as well. No recursion is used.
+     *
+     * @param expr
+     *        The expression
+     * @return The interned expression
+     */
+    public Expression intern(Expression expr)
+    {
+        if(isInterned(expr))
+            return expr;
+
+        // The stack of expressions, their interned children and the index of the next child to intern
+        ArrayList<Expression> exprs = new ArrayList<Expression>();
+        ArrayList<Expression[]> children = new ArrayList<Expression[]>();
+        int[] nextChild = new int[INITIAL_STACK_SIZE];
+        exprs.add(expr);
+        children.add(new Expression[expr.getChildCount()]);
+
+        while(true)
+        {
+            final int top = exprs.size() - 1;
+            Expression current = exprs.get(top);
+            Expression[] interned = children.get(top);
+            if(nextChild[top] < interned.length)
+            {
+                // Subtrees that are interned already don't have to be visited
+                Expression child = current.getChild(nextChild[top]);
+                if(isInterned(child))
+                    interned[nextChild[top]++] = child;
+                else
+                {
+                    if(top + 1 == nextChild.length)
+                    {
+                        int[] grown = new int[nextChild.length * 2];
+                        System.arraycopy(nextChild, 0, grown, 0, nextChild.length);
+                        nextChild = grown;
+                    }
+                    nextChild[top + 1] = 0;
+                    exprs.add(child);
+                    children.add(new Expression[child.getChildCount()]);
+                }
+            }
+            else
+            {
+                // All children are interned, intern the expression itself
+                Expression result = intern(current, interned);
+                exprs.remove(top);
+                children.remove(top);
+                if(top == 0)
+                    return result;
+                children.get(top - 1)[nextChild[top - 1]++] = result;
+            }
+        }
+    }
+
+    /**
+     * Interns an expression of which all children have been interned already.
+     *
+     * @param expr
+     *        The expression
+     * @param children
+     *        The interned children of the expression
+     * @return The interned expression
+     */
+    private Expression intern(Expression expr, Expression[] children)
+    {
+        // Only create a new expression if something has been replaced
+        Object value = expr.getType() == Expression.Type.SYMBOL ? intern(expr.getMonomial()) : expr.getValue();
+        boolean same = value == expr.getValue();
+        for(int i = 0; same && i < children.length; ++i)
+            same = children[i] == expr.getChild(i);
+        if(!same)
+            expr = new Expression(expr.getType(), value, children);
+
+        // Comparing with an interned expression is cheap now, since all children are interned
+        Expression out = expressions.get(expr);
+        if(out == null)
+        {
+            expressions.put(expr, expr);
+            out = expr;
+        }
+        return out;
+    }
+
+    /**
+     * Checks whether the given expression is interned (i.e. the instance
+     * itself is remembered by this interner).
+     *
+     * @param expr
+     *        The expression
+     * @return <tt>true</tt> if it's interned, <tt>false</tt> otherwise
+     */
+    public boolean isInterned(Expression expr)
+    { return expressions.get(expr) == expr; }
+
+    /**
+     * Retrieve the number of interned expressions.
+     *
+     * @return The number of interned expressions
+     */
+    public int size()
+    { return expressions.size(); }
+}
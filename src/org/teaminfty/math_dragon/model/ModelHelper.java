@@ -1,5 +1,8 @@
 package org.teaminfty.math_dragon.model;
 
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+
 import org.matheclipse.core.expression.AST;
 import org.matheclipse.core.expression.F;
 import org.matheclipse.core.expression.Symbol;
@@ -7,13 +10,18 @@ import org.matheclipse.core.interfaces.IComplex;
 import org.matheclipse.core.interfaces.IExpr;
 import org.matheclipse.core.interfaces.IInteger;
 import org.matheclipse.core.interfaces.IRational;
+import org.teaminfty.math_dragon.exceptions.BudgetExceededException;
 import org.teaminfty.math_dragon.exceptions.ParseException;
+import org.teaminfty.math_dragon.view.math.MathFactory;
 import org.teaminfty.math_dragon.view.math.MathObject;
 import org.teaminfty.math_dragon.view.math.MathOperationAdd;
 import org.teaminfty.math_dragon.view.math.MathOperationDivide;
 import org.teaminfty.math_dragon.view.math.MathOperationMultiply;
 import org.teaminfty.math_dragon.view.math.MathOperationPower;
+import org.teaminfty.math_dragon.view.math.MathOperationProduct;
+import org.teaminfty.math_dragon.view.math.MathOperationSum;
 import org.teaminfty.math_dragon.view.math.MathSymbol;
+import org.teaminfty.math_dragon.view.math.MathTransaction;
 
 import android.annotation.SuppressLint;
 
@@ -21,6 +29,9 @@ import android.annotation.SuppressLint;
  * Hack helper class that communicates as a wrapper between our model and the
  * symja library.
  * <p>
+ * Expressions are converted with an explicit stack instead of recursion, so
+ * very deep results (like long sums) can't overflow the stack of the thread.
+ * <p>
  * <h1>Reporting issues</h1>
  * Use our repo to report issues and show how to reproduce incorrect output.
  * 
@@ -40,8 +51,259 @@ public final class ModelHelper
      * @throws ParseException
      *         Thrown when conversion is impossible.
      */
-    @SuppressLint("DefaultLocale")
     public static MathObject toMathObject(IExpr expr) throws ParseException
+    {
+        // Build the whole tree in one transaction
+        MathTransaction transaction = MathTransaction.begin();
+        try
+        {
+            return transaction.commit(convert(expr));
+        }
+        finally
+        { transaction.end(); }
+    }
+
+    /**
+     * Convert a mathematical expression from Symja to a graphical viewer that
+     * contains the mathematical expression, sharing the monomials, expressions
+     * and paints of equal subexpressions. Use this for results that are shown
+     * rather than edited, they often contain the same subexpression many times.
+     * Unknown mathematical expressions result in a {@link ParseException}.
+     * 
+     * @param expr
+     *        The mathematical expression from Symja.
+     * @param interner
+     *        The {@link ExpressionInterner} to intern the result with.
+     * @return A viewer that contains <tt>expr</tt>.
+     * @throws ParseException
+     *         Thrown when conversion is impossible.
+     * @see MathFactory#fromExpression(Expression, ExpressionInterner)
+     */
+    public static MathObject toMathObject(IExpr expr, ExpressionInterner interner) throws ParseException
+    {
+        try
+        {
+            return MathFactory.fromExpression(toExpression(expr, Integer.MAX_VALUE), interner);
+        }
+        catch(BudgetExceededException e)
+        {
+            // Can't happen without a node limit
+            throw new ParseException(e);
+        }
+    }
+
+    /**
+     * Like {@link ModelHelper#toMathObject(IExpr, ExpressionInterner)}, but
+     * gives up when the result gets too large.
+     * 
+     * @param expr
+     *        The mathematical expression from Symja.
+     * @param interner
+     *        The {@link ExpressionInterner} to intern the result with.
+     * @param nodeLimit
+     *        The maximum number of nodes of <tt>expr</tt> that are converted.
+     * @return A viewer that contains <tt>expr</tt>.
+     * @throws ParseException
+     *         Thrown when conversion is impossible.
+     * @throws BudgetExceededException
+     *         Thrown when <tt>expr</tt> has more than <tt>nodeLimit</tt> nodes.
+     * @see EvaluationBudget#getNodeLimit()
+     */
+    public static MathObject toMathObject(IExpr expr, ExpressionInterner interner, int nodeLimit) throws ParseException, BudgetExceededException
+    {
+        return MathFactory.fromExpression(toExpression(expr, nodeLimit), interner);
+    }
+
+    /**
+     * Converts a mathematical expression from Symja to an {@link Expression}.
+     * The tree that is converted to is only used for its expression, so it's
+     * built in a transaction that is never committed (i.e. the tree is never
+     * refreshed).
+     * 
+     * @param expr
+     *        The mathematical expression from Symja.
+     * @param nodeLimit
+     *        The maximum number of nodes of <tt>expr</tt> that are converted.
+     * @return The expression of <tt>expr</tt>.
+     * @throws ParseException
+     *         Thrown when conversion is impossible.
+     * @throws BudgetExceededException
+     *         Thrown when <tt>expr</tt> has more than <tt>nodeLimit</tt> nodes.
+     */
+    private static Expression toExpression(IExpr expr, int nodeLimit) throws ParseException, BudgetExceededException
+    {
+        MathTransaction transaction = MathTransaction.begin();
+        try
+        {
+            return convert(expr, nodeLimit).getExpression();
+        }
+        finally
+        { transaction.end(); }
+    }
+
+    /**
+     * A step in the conversion of an expression. The operands of a step are
+     * converted first, after that the step builds its result from the
+     * converted operands.
+     */
+    private static abstract class Step
+    {
+        /** The operands that have to be converted first */
+        final IExpr[] operands;
+        /** The converted operands */
+        final MathObject[] converted;
+        /** The number of operands that have been converted so far */
+        int next = 0;
+
+        /**
+         * Constructor
+         * 
+         * @param operands
+         *        The operands that have to be converted first.
+         */
+        Step(IExpr... operands)
+        {
+            this.operands = operands;
+            converted = new MathObject[operands.length];
+        }
+
+        /**
+         * Builds the result of this step.
+         * 
+         * @param m
+         *        The converted operands.
+         * @return The result.
+         * @throws ParseException
+         *         Thrown when conversion is impossible.
+         */
+        abstract MathObject build(MathObject[] m) throws ParseException;
+    }
+
+    /**
+     * Does the actual work for {@link ModelHelper#toMathObject(IExpr) toMathObject()}.
+     * 
+     * @param expr
+     *        The mathematical expression from Symja.
+     * @return A viewer that contains <tt>expr</tt>.
+     * @throws ParseException
+     *         Thrown when conversion is impossible.
+     */
+    static MathObject convert(IExpr expr) throws ParseException
+    {
+        try
+        {
+            return convert(expr, Integer.MAX_VALUE);
+        }
+        catch(BudgetExceededException e)
+        {
+            // Can't happen without a node limit
+            throw new ParseException(e);
+        }
+    }
+
+    /**
+     * Does the actual work for {@link ModelHelper#toMathObject(IExpr) toMathObject()}.
+     * 
+     * @param expr
+     *        The mathematical expression from Symja.
+     * @param nodeLimit
+     *        The maximum number of nodes of <tt>expr</tt> that are converted.
+     * @return A viewer that contains <tt>expr</tt>.
+     * @throws ParseException
+     *         Thrown when conversion is impossible.
+     * @throws BudgetExceededException
+     *         Thrown when <tt>expr</tt> has more than <tt>nodeLimit</tt> nodes.
+     */
+    static MathObject convert(IExpr expr, int nodeLimit) throws ParseException, BudgetExceededException
+    {
+        // The steps that are waiting for the conversion of their operands
+        ArrayDeque<Step> stack = new ArrayDeque<Step>();
+        Step step = plan(expr);
+        int nodes = 1;
+        while(true)
+        {
+            // Convert the operands of the step first
+            if(step.next < step.operands.length)
+            {
+                if(++nodes > nodeLimit)
+                    throw new BudgetExceededException(BudgetExceededException.Limit.NODES);
+                stack.push(step);
+                step = plan(step.operands[step.next]);
+                continue;
+            }
+
+            // All operands are converted, build the result
+            MathObject result = step.build(step.converted);
+            if(stack.isEmpty())
+                return result;
+
+            // Hand the result to the step that was waiting for it
+            step = stack.pop();
+            step.converted[step.next++] = result;
+        }
+    }
+
+    /**
+     * Create a step that simply results in the given object.
+     * 
+     * @param o
+     *        The result.
+     * @return The step.
+     */
+    private static Step done(final MathObject o)
+    {
+        return new Step()
+        {
+            @Override
+            MathObject build(MathObject[] m)
+            { return o; }
+        };
+    }
+
+    /**
+     * Create a step that results in the conversion of another expression.
+     * 
+     * @param expr
+     *        The other expression.
+     * @return The step.
+     */
+    private static Step same(IExpr expr)
+    {
+        return new Step(expr)
+        {
+            @Override
+            MathObject build(MathObject[] m)
+            { return m[0]; }
+        };
+    }
+
+    /**
+     * Retrieve all arguments of an abstract syntax tree.
+     * 
+     * @param ast
+     *        The abstract syntax tree.
+     * @return The arguments, without the head.
+     */
+    private static IExpr[] arguments(AST ast)
+    {
+        IExpr[] args = new IExpr[ast.size() - 1];
+        for(int i = 0; i < args.length; ++i)
+            args[i] = ast.get(i + 1);
+        return args;
+    }
+
+    /**
+     * Figure out how to convert a mathematical expression from Symja. Unknown
+     * mathematical expressions result in a {@link ParseException}.
+     * 
+     * @param expr
+     *        The mathematical expression from Symja.
+     * @return The step that converts <tt>expr</tt>.
+     * @throws ParseException
+     *         Thrown when conversion is impossible.
+     */
+    @SuppressLint("DefaultLocale")
+    static Step plan(IExpr expr) throws ParseException
     {
         if(expr.isAST())
         {
@@ -58,21 +320,21 @@ public final class ModelHelper
         else if(expr.isInteger())
         {
             MathSymbol c = new MathSymbol();
-            c.setFactor(((IInteger) expr).longValue());
-            return c;
+            c.setFactor(((IInteger) expr).getBigNumerator());
+            return done(c);
         }
         else if(expr.isFraction())
         {
             IRational rational = (IRational) expr;
-            IInteger numerator = rational.getNumerator();
-            long denominator = rational.getDenominator().longValue();
+            BigInteger numerator = rational.getBigNumerator();
+            BigInteger denominator = rational.getBigDenominator();
             // avoid equations like (x)/(1)
-            if (denominator == 1) {
+            if (denominator.equals(BigInteger.ONE)) {
                 MathSymbol c = new MathSymbol();
-                c.setFactor(numerator.longValue());
-                return c;
+                c.setFactor(numerator);
+                return done(c);
             }
-            return new MathOperationDivide(new MathSymbol(numerator.longValue()), new MathSymbol(denominator));
+            return done(new MathOperationDivide(new MathSymbol(numerator), new MathSymbol(denominator)));
         }
         else if(expr instanceof Symbol)
         {
@@ -92,31 +354,40 @@ public final class ModelHelper
                 symbol.setIPow(1);
 
             // Return the symbol
-            return symbol;
+            return done(symbol);
         }
         else if (expr instanceof IComplex) {
             IComplex c = (IComplex) expr;
-            MathSymbol imag = new MathSymbol();
-            imag.setFactor(1);
-            MathSymbol zero = new MathSymbol();
-            MathObject real = toMathObject(c.getRe());
-            IExpr pow = c.getIm();
-            // remove real part if zero
-            if (real instanceof MathSymbol && ((MathSymbol) real).equals(zero)) {
-                if (pow.isInteger()) {
-                    imag.setIPow(((IInteger) pow).longValue());
-                    return imag;
-                } else {
-                    imag.setIPow(1);
-                    return new MathOperationPower(imag, toMathObject(pow));
+            final IExpr pow = c.getIm();
+            // the imaginary part only has to be converted if it's not an integer
+            IExpr[] operands = pow.isInteger() ? new IExpr[] {c.getRe()} : new IExpr[] {c.getRe(), pow};
+            return new Step(operands)
+            {
+                @Override
+                MathObject build(MathObject[] m)
+                {
+                    MathSymbol imag = new MathSymbol();
+                    imag.setFactor(1);
+                    MathSymbol zero = new MathSymbol();
+                    MathObject real = m[0];
+                    // remove real part if zero
+                    if (real instanceof MathSymbol && ((MathSymbol) real).equals(zero)) {
+                        if (pow.isInteger()) {
+                            imag.setIPow(((IInteger) pow).longValue());
+                            return imag;
+                        } else {
+                            imag.setIPow(1);
+                            return new MathOperationPower(imag, m[1]);
+                        }
+                    } else if (pow.isInteger()) {
+                        imag.setIPow(((IInteger) pow).longValue());
+                        return new MathOperationAdd(real, imag);
+                    } else {
+                        imag.setIPow(1);
+                        return new MathOperationAdd(real, new MathOperationPower(imag, m[1]));
+                    }
                 }
-            } else if (pow.isInteger()) {
-                imag.setIPow(((IInteger) pow).longValue());
-                return new MathOperationAdd(real, imag);
-            } else {
-                imag.setIPow(1);
-                return new MathOperationAdd(real, new MathOperationPower(imag, toMathObject(pow)));
-            }
+            };
         }
         else if (expr instanceof IRational) {
             IRational rat = (IRational) expr;
@@ -133,24 +404,20 @@ public final class ModelHelper
      * @param ast
      *        The abstract syntax tree from Symja. Usually obtained from
      *        <tt>EvalHelper.eval(MathObject)</tt>.
-     * @return A viewer that contains <tt>expr</tt>.
-     * @throws ParseException
-     *         Thrown when conversion is impossible.
+     * @return The step that converts <tt>ast</tt>.
      */
-    static MathObject toOpAdd(AST ast) throws ParseException
+    static Step toOpAdd(AST ast)
     {
-        if(ast.size() > 3)
+        return new Step(arguments(ast))
         {
-            int n = ast.size() - 1;
-            MathOperationAdd child = new MathOperationAdd(toMathObject(ast.get(n - 1)), toMathObject(ast.get(n)));
-            for(n -= 2; n > 0; --n)
+            @Override
+            MathObject build(MathObject[] m)
             {
-                MathOperationAdd parent = new MathOperationAdd(toMathObject(ast.get(n)), child);
-                child = parent;
+                if(m.length == 2)
+                    return new MathOperationAdd(m[0], m[1]);
+                return new MathOperationSum(m);
             }
-            return child;
-        }
-        return new MathOperationAdd(toMathObject(ast.get(1)), toMathObject(ast.get(2)));
+        };
     }
 
     /**
@@ -161,20 +428,19 @@ public final class ModelHelper
      * @param ast
      *        The abstract syntax tree from Symja. Usually obtained from
      *        <tt>EvalHelper.eval(MathObject)</tt>.
-     * @return A viewer that contains <tt>expr</tt>.
+     * @return The step that converts <tt>ast</tt>.
      * @throws ParseException
      *         Thrown when conversion is impossible.
      */
-    static MathObject toOpMul(AST ast) throws ParseException
+    static Step toOpMul(AST ast) throws ParseException
     {
         if (ast.size() > 3) {
-            int n = ast.size() - 1;
-            MathOperationMultiply child = new MathOperationMultiply(toMathObject(ast.get(n - 1)), toMathObject(ast.get(n)));
-            for (n -= 2; n > 0; --n) {
-                MathOperationMultiply parent = new MathOperationMultiply(toMathObject(ast.get(n)), child);
-                child = parent;
-            }
-            return child;
+            return new Step(arguments(ast))
+            {
+                @Override
+                MathObject build(MathObject[] m)
+                { return new MathOperationProduct(m); }
+            };
         }
         IExpr r = ast.get(2);
         if(r.isPower())
@@ -185,59 +451,67 @@ public final class ModelHelper
             {
                 if(p.isNegative())
                     return toOpDiv(ast.get(1), a);
-                if ((b = a.get(1)) instanceof Symbol)
+                if ((b = a.get(1)) instanceof Symbol && ((Symbol) b).equals(F.I))
                 {
-                    Symbol s = (Symbol) b;
-                    MathSymbol c = new MathSymbol();
+                    final MathSymbol c = new MathSymbol();
                     c.setFactor(1);
-                    if(s.equals(F.Pi))
+                    c.setIPow(((IInteger) p).longValue());
+                    b = ast.get(1);
+                    if (b.isInteger())
                     {
-                        c.setPiPow(((IInteger) p).longValue());
+                        c.setFactor(((IInteger) b).getBigNumerator());
+                        return done(c);
                     }
-                    else if(s.equals(F.E))
+                    else
                     {
-                        c.setEPow(((IInteger) p).longValue());
-                    }
-                    else if(s.equals(F.I))
-                    {
-                        c.setIPow(((IInteger) p).longValue());
-                        b = ast.get(1);
-                        if (b.isInteger())
-                        {
-                            c.setFactor(((IInteger) b).longValue());
-                            return c;
-                        }
-                        else
+                        return new Step(b)
                         {
-                            return new MathOperationMultiply(toMathObject(b), c);
-                        }
+                            @Override
+                            MathObject build(MathObject[] m)
+                            { return new MathOperationMultiply(m[0], c); }
+                        };
                     }
                 }
             }
         }
-        return new MathOperationMultiply(toMathObject(ast.get(1)), toMathObject(r));
+        return new Step(ast.get(1), r)
+        {
+            @Override
+            MathObject build(MathObject[] m)
+            { return new MathOperationMultiply(m[0], m[1]); }
+        };
     }
 
     // XXX implement more than 2 children for operation divide?
-    static MathObject toOpDiv(IExpr l, IExpr r) throws ParseException
+    static Step toOpDiv(IExpr l, IExpr r)
     {
-        if (r.isInteger() && ((IInteger) r).longValue() == 1)
-            return toMathObject(l);
-        return new MathOperationDivide(toMathObject(l), toMathObject(r));
+        if (r.isInteger() && ((IInteger) r).getBigNumerator().equals(BigInteger.ONE))
+            return same(l);
+        return new Step(l, r)
+        {
+            @Override
+            MathObject build(MathObject[] m)
+            { return new MathOperationDivide(m[0], m[1]); }
+        };
     }
 
-    static MathObject toOpDiv(IExpr l, AST r) throws ParseException
+    static Step toOpDiv(IExpr l, AST r) throws ParseException
     {
         if (r.size() > 3) {
             throw new ParseException("no more than 2 children supported for division");
         }
-        // ugly hack
-        r.set(2, r.get(2).negate());
-        if (r.get(2).isInteger() && ((IInteger) r.get(2)).longValue() == 1)
+        // a * b^(-n) = a / b^n (r may be shared with the input of Symja, so it isn't changed)
+        IExpr exponent = r.get(2).negate();
+        if (exponent.isInteger() && ((IInteger) exponent).getBigNumerator().equals(BigInteger.ONE))
         {
             return toOpDiv(l, r.get(1));
         }
-        return new MathOperationDivide(toMathObject(l), toMathObject(r));
+        return new Step(l, F.Power(r.get(1), exponent))
+        {
+            @Override
+            MathObject build(MathObject[] m)
+            { return new MathOperationDivide(m[0], m[1]); }
+        };
     }
 
     /**
@@ -248,23 +522,21 @@ public final class ModelHelper
      * @param ast
      *        The abstract syntax tree from Symja. Usually obtained from
      *        <tt>EvalHelper.eval(MathObject)</tt>.
-     * @return A viewer that contains <tt>expr</tt>.
-     * @throws ParseException
-     *         Thrown when conversion is impossible.
+     * @return The step that converts <tt>ast</tt>.
      */
-    static MathObject toOpPow(AST ast) throws ParseException
+    static Step toOpPow(AST ast)
     {
-        if(ast.size() > 3)
+        return new Step(arguments(ast))
         {
-            int n = ast.size() - 1;
-            MathOperationPower child = new MathOperationPower(toMathObject(ast.get(n - 1)), toMathObject(ast.get(n)));
-            for(n -= 2; n > 0; --n)
+            @Override
+            MathObject build(MathObject[] m)
             {
-                MathOperationPower parent = new MathOperationPower(toMathObject(ast.get(n)), child);
-                child = parent;
+                int n = m.length;
+                MathOperationPower child = new MathOperationPower(m[n - 2], m[n - 1]);
+                for(n -= 3; n >= 0; --n)
+                    child = new MathOperationPower(m[n], child);
+                return child;
             }
-            return child;
-        }
-        return new MathOperationPower(toMathObject(ast.get(1)), toMathObject(ast.get(2)));
+        };
     }
 }
@@ -0,0 +1,591 @@
+package org.teaminfty.math_dragon.model;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import org.teaminfty.math_dragon.view.math.MathSymbol;
+
+/**
+ * An immutable product of an integer factor and powers of the constants pi, e,
+ * i and the variables <tt>a</tt> to <tt>z</tt>. This is the mathematical value
+ * of a {@link MathSymbol}.
+ * <p>
+ * Since a monomial never changes, it can be shared by any number of symbols,
+ * expressions and threads. Use the <tt>with...()</tt> methods to get a
+ * monomial with a different value.
+ * <p>
+ * Only the powers of the variables that are used are stored, so a plain
+ * number doesn't need any array at all.
+ * <p>
+ * The factor can be any integer. Factors that fit in a <tt>long</tt> are
+ * stored as a <tt>long</tt>, only larger factors are stored as a
+ * {@link BigInteger}. Every factor has exactly one representation, so
+ * monomials can still be compared field by field.
+ */
+public final class Monomial
+{
+    /** The number of variables */
+    public static final int VAR_COUNT = 26;
+
+    /** The powers of a monomial without variables (has to be initialised before any monomial is created) */
+    private static final long[] NO_VARS = new long[0];
+
+    /** The monomial <tt>0</tt> */
+    public static final Monomial ZERO = new Monomial(0);
+
+    /** The smallest factor that fits in a <tt>long</tt> */
+    private static final BigInteger LONG_MIN = BigInteger.valueOf(Long.MIN_VALUE);
+    /** The largest factor that fits in a <tt>long</tt> */
+    private static final BigInteger LONG_MAX = BigInteger.valueOf(Long.MAX_VALUE);
+
+    /** The factor, if it fits in a <tt>long</tt> (otherwise <tt>0</tt>) */
+    private final long factor;
+    /** The factor, if it doesn't fit in a <tt>long</tt> (otherwise <tt>null</tt>) */
+    private final BigInteger bigFactor;
+    /** The power of the E constant */
+    private final long ePow;
+    /** The power of the PI constant */
+    private final long piPow;
+    /** The power of the imaginary unit */
+    private final long iPow;
+    /** The variables with a power other than 0, bit <tt>n</tt> is set if the power of variable <tt>n</tt> isn't 0 */
+    private final int varMask;
+    /** The powers of the variables in {@link Monomial#varMask varMask}, in the same order.
+     * Never changed after construction, so monomials can share it. */
+    private final long[] varPows;
+
+    /**
+     * Construct a monomial that's just a number.
+     *
+     * @param factor
+     *        The number
+     */
+    public Monomial(long factor)
+    {
+        this(factor, 0, 0, 0);
+    }
+
+    /**
+     * Construct a monomial that's just a number.
+     *
+     * @param factor
+     *        The number
+     */
+    public Monomial(BigInteger factor)
+    {
+        this(0, 0, 0, 0, 0, NO_VARS, factor);
+    }
+
+    /**
+     * Construct a monomial without variables.
+     *
+     * @param factor
+     *        The factor
+     * @param ePow
+     *        The power of e
+     * @param piPow
+     *        The power of pi
+     * @param iPow
+     *        The power of i
+     */
+    public Monomial(long factor, long ePow, long piPow, long iPow)
+    {
+        this(factor, ePow, piPow, iPow, 0, NO_VARS, null);
+    }
+
+    /**
+     * Construct a monomial using specified values.
+     *
+     * @param factor
+     *        The factor
+     * @param ePow
+     *        The power of e
+     * @param piPow
+     *        The power of pi
+     * @param iPow
+     *        The power of i
+     * @param varPows
+     *        The first <tt>varPows.length</tt> powers for the variables (may
+     *        be <tt>null</tt>)
+     */
+    public Monomial(long factor, long ePow, long piPow, long iPow, long[] varPows)
+    {
+        this.factor = factor;
+        bigFactor = null;
+        this.ePow = ePow;
+        this.piPow = piPow;
+        this.iPow = iPow;
+
+        // Find out which variables are used
+        int mask = 0;
+        final int count = varPows == null ? 0 : Math.min(varPows.length, VAR_COUNT);
+        for(int i = 0; i < count; ++i)
+        {
+            if(varPows[i] != 0)
+                mask |= 1 << i;
+        }
+        varMask = mask;
+
+        // Only store the powers of those variables
+        if(mask == 0)
+            this.varPows = NO_VARS;
+        else
+        {
+            this.varPows = new long[Integer.bitCount(mask)];
+            int n = 0;
+            for(int i = 0; i < count; ++i)
+            {
+                if(varPows[i] != 0)
+                    this.varPows[n++] = varPows[i];
+            }
+        }
+    }
+
+    /** Construct a monomial from the sparse representation
+     * @param factor The factor
+     * @param ePow The power of e
+     * @param piPow The power of pi
+     * @param iPow The power of i
+     * @param varMask The variables with a power other than 0
+     * @param varPows The powers of those variables (not copied)
+     * @param bigFactor The factor as a {@link BigInteger}, or <tt>null</tt> to use <tt>factor</tt> */
+    private Monomial(long factor, long ePow, long piPow, long iPow, int varMask, long[] varPows, BigInteger bigFactor)
+    {
+        // Only use the BigInteger if the factor doesn't fit in a long
+        if(bigFactor != null && bigFactor.compareTo(LONG_MIN) >= 0 && bigFactor.compareTo(LONG_MAX) <= 0)
+        {
+            factor = bigFactor.longValue();
+            bigFactor = null;
+        }
+        this.factor = bigFactor == null ? factor : 0;
+        this.bigFactor = bigFactor;
+        this.ePow = ePow;
+        this.piPow = piPow;
+        this.iPow = iPow;
+        this.varMask = varMask;
+        this.varPows = varPows;
+    }
+
+    /** Retrieve the factor.
+     * @return The factor
+     * @throws ArithmeticException If the factor doesn't fit in a <tt>long</tt> (see {@link Monomial#isBigFactor() isBigFactor()}) */
+    public long getFactor() throws ArithmeticException
+    {
+        if(bigFactor != null)
+            throw new ArithmeticException(bigFactor + " doesn't fit in a long");
+        return factor;
+    }
+
+    /** Retrieve the factor as a {@link BigInteger}, this works for every factor.
+     * @return The factor */
+    public BigInteger getBigFactor()
+    { return bigFactor == null ? BigInteger.valueOf(factor) : bigFactor; }
+
+    /** Returns whether or not the factor doesn't fit in a <tt>long</tt>
+     * @return True if the factor is only available through {@link Monomial#getBigFactor() getBigFactor()}, false otherwise */
+    public boolean isBigFactor()
+    { return bigFactor != null; }
+
+    /** Returns the sign of the factor.
+     * @return -1, 0 or 1 if the factor is negative, zero or positive */
+    public int getFactorSign()
+    { return bigFactor == null ? Long.signum(factor) : bigFactor.signum(); }
+
+    /** Retrieve the power of <tt>e</tt>.
+     * @return The power of <tt>e</tt> */
+    public long getEPow()
+    { return ePow; }
+
+    /** Retrieve the power of <tt>pi</tt>.
+     * @return The power of <tt>pi</tt> */
+    public long getPiPow()
+    { return piPow; }
+
+    /** Retrieve the power of <tt>i</tt>.
+     * @return The power of <tt>i</tt> */
+    public long getIPow()
+    { return iPow; }
+
+    /** Retrieve the power of the given variable.
+     * @param index The variable index
+     * @return The power of the variable */
+    public long getVarPow(int index)
+    {
+        final int bit = 1 << index;
+        if((varMask & bit) == 0)
+            return 0;
+        return varPows[Integer.bitCount(varMask & (bit - 1))];
+    }
+
+    /** Retrieve the variables that are used (i.e. their power isn't 0).
+     * Bit <tt>n</tt> is set if variable <tt>n</tt> is used, so the variables can be visited with:
+     * <pre>for(int mask = getVarMask(); mask != 0; mask &amp;= mask - 1)
+     *    visit(Integer.numberOfTrailingZeros(mask));</pre>
+     * @return The bitmask of used variables */
+    public int getVarMask()
+    { return varMask; }
+
+    /** Returns whether or not this monomial is just a number (i.e. all powers are 0)
+     * @return True if this is a number, false otherwise */
+    public boolean isNumber()
+    { return varMask == 0 && (piPow | ePow | iPow) == 0; }
+
+    /** Returns a monomial with the given factor.
+     * @param factor The factor
+     * @return The monomial */
+    public Monomial withFactor(long factor)
+    { return new Monomial(factor, ePow, piPow, iPow, varMask, varPows, null); }
+
+    /** Returns a monomial with the given factor.
+     * @param factor The factor
+     * @return The monomial */
+    public Monomial withFactor(BigInteger factor)
+    { return new Monomial(0, ePow, piPow, iPow, varMask, varPows, factor); }
+
+    /** Returns a monomial with the given power of <tt>e</tt>.
+     * @param ePow The power of <tt>e</tt>
+     * @return The monomial */
+    public Monomial withEPow(long ePow)
+    { return new Monomial(factor, ePow, piPow, iPow, varMask, varPows, bigFactor); }
+
+    /** Returns a monomial with the given power of <tt>pi</tt>.
+     * @param piPow The power of <tt>pi</tt>
+     * @return The monomial */
+    public Monomial withPiPow(long piPow)
+    { return new Monomial(factor, ePow, piPow, iPow, varMask, varPows, bigFactor); }
+
+    /** Returns a monomial with the given power of <tt>i</tt>.
+     * @param iPow The power of <tt>i</tt>
+     * @return The monomial */
+    public Monomial withIPow(long iPow)
+    { return new Monomial(factor, ePow, piPow, iPow, varMask, varPows, bigFactor); }
+
+    /** Returns a monomial with the given factor and constant powers, and the same variables as this monomial.
+     * @param factor The factor
+     * @param ePow The power of <tt>e</tt>
+     * @param piPow The power of <tt>pi</tt>
+     * @param iPow The power of <tt>i</tt>
+     * @return The monomial */
+    public Monomial withConstants(long factor, long ePow, long piPow, long iPow)
+    { return new Monomial(factor, ePow, piPow, iPow, varMask, varPows, null); }
+
+    /** Returns a monomial with the given factor and constant powers, and the same variables as this monomial.
+     * @param factor The factor
+     * @param ePow The power of <tt>e</tt>
+     * @param piPow The power of <tt>pi</tt>
+     * @param iPow The power of <tt>i</tt>
+     * @return The monomial */
+    public Monomial withConstants(BigInteger factor, long ePow, long piPow, long iPow)
+    { return new Monomial(0, ePow, piPow, iPow, varMask, varPows, factor); }
+
+    /** Returns a monomial with the given power for the given variable.
+     * @param index The variable index
+     * @param pow The power of the variable
+     * @return The monomial */
+    public Monomial withVarPow(int index, long pow)
+    {
+        final int bit = 1 << index;
+        final int pos = Integer.bitCount(varMask & (bit - 1));
+        long[] pows;
+        int mask;
+        if((varMask & bit) != 0)
+        {
+            if(pow != 0)
+            {
+                // Replace the power
+                pows = varPows.clone();
+                pows[pos] = pow;
+                mask = varMask;
+            }
+            else
+            {
+                // Remove the variable
+                mask = varMask & ~bit;
+                pows = mask == 0 ? NO_VARS : new long[varPows.length - 1];
+                System.arraycopy(varPows, 0, pows, 0, pos);
+                System.arraycopy(varPows, pos + 1, pows, pos, varPows.length - pos - 1);
+            }
+        }
+        else
+        {
+            if(pow == 0)
+                return this;
+
+            // Insert the variable
+            mask = varMask | bit;
+            pows = new long[varPows.length + 1];
+            System.arraycopy(varPows, 0, pows, 0, pos);
+            pows[pos] = pow;
+            System.arraycopy(varPows, pos, pows, pos + 1, varPows.length - pos);
+        }
+        return new Monomial(factor, ePow, piPow, iPow, mask, pows, bigFactor);
+    }
+
+    /**
+     * Adds a monomial with the same powers to this monomial, i.e. adds the
+     * factors. The factor only becomes a {@link BigInteger} if the sum doesn't
+     * fit in a <tt>long</tt>.
+     *
+     * @param m
+     *        The other monomial
+     * @return The sum, or <tt>null</tt> if the powers aren't the same
+     */
+    public Monomial add(Monomial m)
+    {
+        if(m.ePow != ePow || m.piPow != piPow || m.iPow != iPow || m.varMask != varMask || !Arrays.equals(m.varPows, varPows))
+            return null;
+
+        // Add the factors
+        final long sum = factor + m.factor;
+        if(bigFactor == null && m.bigFactor == null && !addOverflows(factor, m.factor, sum))
+            return new Monomial(sum, ePow, piPow, iPow, varMask, varPows, null);
+        return new Monomial(0, ePow, piPow, iPow, varMask, varPows, getBigFactor().add(m.getBigFactor()));
+    }
+
+    /**
+     * Multiplies this monomial with another monomial. The factors are
+     * multiplied and the powers are added; the power of <tt>i</tt> is reduced
+     * to 0 or 1. The factor only becomes a {@link BigInteger} if the product
+     * doesn't fit in a <tt>long</tt>.
+     *
+     * @param m
+     *        The other monomial
+     * @return The product, or <tt>null</tt> if one of the powers doesn't fit
+     *         in a <tt>long</tt>
+     */
+    public Monomial multiply(Monomial m)
+    {
+        if(getFactorSign() == 0 || m.getFactorSign() == 0)
+            return ZERO;
+
+        // Multiply the factors
+        long f = 0;
+        BigInteger big = null;
+        if(bigFactor == null && m.bigFactor == null && !multiplyOverflows(factor, m.factor))
+            f = factor * m.factor;
+        else
+            big = getBigFactor().multiply(m.getBigFactor());
+
+        // Add the powers
+        return combine(m, false, f, big);
+    }
+
+    /**
+     * Divides this monomial by another monomial. This only works if the
+     * result is a monomial again, i.e. the factor of <tt>m</tt> divides the
+     * factor of this monomial and no power becomes negative.
+     *
+     * @param m
+     *        The monomial to divide by
+     * @return The quotient, or <tt>null</tt> if it isn't a monomial
+     */
+    public Monomial divide(Monomial m)
+    {
+        if(m.getFactorSign() == 0)
+            return null;
+        if(getFactorSign() == 0)
+            return ZERO;
+
+        // Divide the factors
+        long f = 0;
+        BigInteger big = null;
+        if(bigFactor == null && m.bigFactor == null && !(factor == Long.MIN_VALUE && m.factor == -1))
+        {
+            if(factor % m.factor != 0)
+                return null;
+            f = factor / m.factor;
+        }
+        else
+        {
+            BigInteger[] quotient = getBigFactor().divideAndRemainder(m.getBigFactor());
+            if(quotient[1].signum() != 0)
+                return null;
+            big = quotient[0];
+        }
+
+        // Subtract the powers
+        return combine(m, true, f, big);
+    }
+
+    /**
+     * Raises this monomial to the given power. The factor only becomes a
+     * {@link BigInteger} if the result doesn't fit in a <tt>long</tt>.
+     *
+     * @param n
+     *        The exponent, may not be negative
+     * @return The power, or <tt>null</tt> if it isn't defined (<tt>0^0</tt>)
+     *         or would be too large
+     */
+    public Monomial pow(long n)
+    {
+        if(n < 0 || (n == 0 && getFactorSign() == 0))
+            return null;
+        if(n == 0)
+            return new Monomial(1);
+        if(getFactorSign() == 0)
+            return ZERO;
+
+        // Raise the factor to the power
+        long f = 1;
+        BigInteger big = null;
+        if(bigFactor == null && (factor == 1 || factor == -1))
+            f = (n & 1) == 0 ? 1 : factor;
+        else if((long) getBigFactor().bitLength() * n > MAX_FACTOR_BITS)
+            return null;
+        else
+        {
+            // Multiply with long as long as possible
+            for(long k = 0; k < n && big == null; ++k)
+            {
+                if(bigFactor == null && !multiplyOverflows(f, factor))
+                    f *= factor;
+                else
+                    big = getBigFactor().pow((int) n);
+            }
+        }
+
+        // Multiply the powers
+        if(multiplyOverflows(ePow, n) || multiplyOverflows(piPow, n) || multiplyOverflows(iPow, n))
+            return null;
+        long[] pows = new long[varPows.length];
+        for(int i = 0; i < pows.length; ++i)
+        {
+            if(multiplyOverflows(varPows[i], n))
+                return null;
+            pows[i] = varPows[i] * n;
+        }
+        return create(f, big, ePow * n, piPow * n, iPow * n, varMask, pows);
+    }
+
+    /** The maximum number of bits of a factor that is calculated by {@link Monomial#pow(long) pow()} (and by {@link Polynomial#multiply(Polynomial)}) */
+    static final long MAX_FACTOR_BITS = 1 << 16;
+
+    /** Adds the powers of the given monomial to (or subtracts them from) the powers of this monomial
+     * @param m The other monomial
+     * @param subtract Whether the powers should be subtracted
+     * @param factor The factor of the result, if <tt>bigFactor</tt> is <tt>null</tt>
+     * @param bigFactor The factor of the result, or <tt>null</tt>
+     * @return The result, or <tt>null</tt> if a power doesn't fit in a <tt>long</tt> (or is negative while subtracting) */
+    private Monomial combine(Monomial m, boolean subtract, long factor, BigInteger bigFactor)
+    {
+        // Combine the powers of the constants
+        final long sign = subtract ? -1 : 1;
+        if(m.ePow == Long.MIN_VALUE || m.piPow == Long.MIN_VALUE || m.iPow == Long.MIN_VALUE)
+            return null;
+        final long e = ePow + sign * m.ePow;
+        final long pi = piPow + sign * m.piPow;
+        final long i = iPow + sign * m.iPow;
+        if(addOverflows(ePow, sign * m.ePow, e) || addOverflows(piPow, sign * m.piPow, pi) || addOverflows(iPow, sign * m.iPow, i))
+            return null;
+        if(subtract && (e < 0 || pi < 0))
+            return null;
+
+        // Combine the powers of the variables
+        final int mask = varMask | m.varMask;
+        long[] pows = new long[Integer.bitCount(mask)];
+        int n = 0;
+        for(int left = mask; left != 0; left &= left - 1)
+        {
+            final int index = Integer.numberOfTrailingZeros(left);
+            final long a = getVarPow(index);
+            final long b = m.getVarPow(index);
+            if(b == Long.MIN_VALUE)
+                return null;
+            final long pow = a + sign * b;
+            if(addOverflows(a, sign * b, pow) || (subtract && pow < 0))
+                return null;
+            pows[n++] = pow;
+        }
+        return create(factor, bigFactor, e, pi, i, mask, pows);
+    }
+
+    /** Creates a monomial, removing the variables with power 0 and reducing the power of <tt>i</tt> to 0 or 1
+     * @param factor The factor, if <tt>bigFactor</tt> is <tt>null</tt>
+     * @param bigFactor The factor, or <tt>null</tt>
+     * @param ePow The power of e
+     * @param piPow The power of pi
+     * @param iPow The power of i
+     * @param varMask The variables that may have a power other than 0
+     * @param varPows The powers of those variables (not copied)
+     * @return The monomial */
+    private static Monomial create(long factor, BigInteger bigFactor, long ePow, long piPow, long iPow, int varMask, long[] varPows)
+    {
+        // i^2 = -1, so only i^0 and i^1 are left
+        if((iPow & 2) != 0)
+        {
+            if(bigFactor == null && factor != Long.MIN_VALUE)
+                factor = -factor;
+            else
+                bigFactor = (bigFactor == null ? BigInteger.valueOf(factor) : bigFactor).negate();
+        }
+        iPow &= 1;
+
+        // Remove the variables with power 0
+        int mask = varMask;
+        int n = 0;
+        for(int left = varMask, i = 0; left != 0; left &= left - 1, ++i)
+        {
+            if(varPows[i] == 0)
+                mask &= ~Integer.lowestOneBit(left);
+            else
+                varPows[n++] = varPows[i];
+        }
+        if(n != varPows.length)
+        {
+            long[] pows = n == 0 ? NO_VARS : new long[n];
+            System.arraycopy(varPows, 0, pows, 0, n);
+            varPows = pows;
+        }
+        return new Monomial(factor, ePow, piPow, iPow, mask, varPows, bigFactor);
+    }
+
+    /** Checks whether the product of two <tt>long</tt>s overflows
+     * @param a The first number
+     * @param b The second number
+     * @return True if <tt>a * b</tt> doesn't fit in a <tt>long</tt>, false otherwise */
+    private static boolean multiplyOverflows(long a, long b)
+    {
+        if(a == 0 || b == 0)
+            return false;
+        if((a == -1 && b == Long.MIN_VALUE) || (b == -1 && a == Long.MIN_VALUE))
+            return true;
+        return (a * b) / b != a;
+    }
+
+    /** Checks whether a sum of two <tt>long</tt>s has overflowed
+     * @param a The first number
+     * @param b The second number
+     * @param sum The calculated sum <tt>a + b</tt>
+     * @return True if the sum overflowed, false otherwise */
+    private static boolean addOverflows(long a, long b, long sum)
+    { return ((a ^ sum) & (b ^ sum)) < 0; }
+
+    /** Returns whether or not some symbols (i.e. variables or the constants pi, e, i) are visible (i.e. their power is not 0)
+     * @return True if one or more symbols are visible, false otherwise */
+    public boolean symbolVisible()
+    { return !isNumber(); }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if(o == this)
+            return true;
+        if(!(o instanceof Monomial))
+            return false;
+        Monomial m = (Monomial) o;
+        if(m.bigFactor == null ? bigFactor != null : !m.bigFactor.equals(bigFactor))
+            return false;
+        return m.factor == factor && m.ePow == ePow && m.piPow == piPow && m.iPow == iPow && m.varMask == varMask && Arrays.equals(m.varPows, varPows);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        int hash = bigFactor == null ? (int) (factor ^ (factor >>> 32)) : bigFactor.hashCode();
+        hash = 31 * hash + (int) (ePow ^ (ePow >>> 32));
+        hash = 31 * hash + (int) (piPow ^ (piPow >>> 32));
+        hash = 31 * hash + (int) (iPow ^ (iPow >>> 32));
+        hash = 31 * hash + varMask;
+        return 31 * hash + Arrays.hashCode(varPows);
+    }
+}
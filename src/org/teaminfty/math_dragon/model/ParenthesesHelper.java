@@ -1,12 +1,10 @@
 package org.teaminfty.math_dragon.model;
 
 import org.teaminfty.math_dragon.view.math.MathObject;
-import org.teaminfty.math_dragon.view.math.MathOperationPower;
-import org.teaminfty.math_dragon.view.math.MathOperationDivide;
-import org.teaminfty.math_dragon.view.math.MathOperationRoot;
-import org.teaminfty.math_dragon.view.math.MathOperationSubtract;
 import org.teaminfty.math_dragon.view.math.MathParentheses;
 import org.teaminfty.math_dragon.view.math.MathSymbol;
+import org.teaminfty.math_dragon.view.math.MathTransaction;
+import org.teaminfty.math_dragon.view.math.MathTreeWalker;
 
 /** Class that helps setting parentheses at the right places in a {@link MathObject} */
 public class ParenthesesHelper
@@ -18,77 +16,155 @@ public class ParenthesesHelper
      */
     public static void makeChild(MathObject parent, MathObject child, int index)
     {
-        // Special case: the divide operator
-        if(parent instanceof MathOperationDivide)
-        {
-            if(child instanceof MathOperationDivide)
-                child = new MathParentheses(child);
-            else if(child instanceof MathParentheses && !(child.getChild(0) instanceof MathOperationDivide))
-            {
-                makeChild(parent, child.getChild(0), index);
-                return;
-            }
-        }
-        // Special case: the second operand of the subtract operator
-        else if(parent instanceof MathOperationSubtract && index == 1 && parent.getPrecedence() == child.getPrecedence())
-            child = new MathParentheses(child);
-        // Special case: the power operator
-        else if(parent instanceof MathOperationPower)
+        parent.setChild(index, getChild(parent, child, index));
+    }
+    
+    /** Determines the child that should be placed in a {@link MathObject}, i.e. the given child with the right parentheses
+     * @param parent The {@link MathObject} that is to become the parent
+     * @param child The {@link MathObject} that is to become the child
+     * @param index The index where the child should be placed
+     * @return The child, wrapped in parentheses or unwrapped if necessary
+     */
+    private static MathObject getChild(MathObject parent, MathObject child, int index)
+    {
+        // When parentheses are unwrapped, the wrapped MathObject has to be checked again
+        // So we loop until we've got the final child
+        final Expression.Type parentType = parent.getExpressionType();
+        while(true)
         {
-            if(index == 0)
-            {
-                if(child instanceof MathSymbol && ((MathSymbol) child).symbolVisible())
-                    child = new MathParentheses(child);
-                else if(child instanceof MathParentheses && !(child.getChild(0) instanceof MathSymbol && ((MathSymbol) child).symbolVisible()))
-                {
-                    makeChild(parent, child.getChild(0), index);
-                    return;
-                }
-            }
-            else if(index == 1)
+            final boolean inParentheses = child.getExpressionType() == Expression.Type.PARENTHESES;
+            final Expression.Type type = inParentheses ? child.getChild(0).getExpressionType() : child.getExpressionType();
+            
+            switch(parentType)
             {
-                if(child instanceof MathOperationPower)
-                    child = new MathParentheses(child);
-                else if(child instanceof MathParentheses && !(child.getChild(0) instanceof MathOperationPower))
+                // Special case: the divide operator
+                case DIVIDE:
+                    if(type == Expression.Type.DIVIDE)
+                    {
+                        if(!inParentheses)
+                            child = new MathParentheses(child);
+                    }
+                    else if(inParentheses)
+                    {
+                        child = child.getChild(0);
+                        continue;
+                    }
+                    break;
+                
+                // Special case: the power operator
+                case POWER:
+                    if(index == 0)
+                    {
+                        final boolean visibleSymbol = type == Expression.Type.SYMBOL && ((MathSymbol) (inParentheses ? child.getChild(0) : child)).symbolVisible();
+                        if(!inParentheses && visibleSymbol)
+                            child = new MathParentheses(child);
+                        else if(inParentheses && !visibleSymbol)
+                        {
+                            child = child.getChild(0);
+                            continue;
+                        }
+                    }
+                    else if(index == 1)
+                    {
+                        if(!inParentheses && type == Expression.Type.POWER)
+                            child = new MathParentheses(child);
+                        else if(inParentheses && type != Expression.Type.POWER)
+                        {
+                            child = child.getChild(0);
+                            continue;
+                        }
+                    }
+                    break;
+                
+                // Special case: the root operator (never place parentheses)
+                case ROOT:
+                    break;
+                
+                // Special case: the second operand of the subtract operator
+                case SUBTRACT:
+                    if(index == 1 && parent.getPrecedence() == child.getPrecedence())
+                    {
+                        child = new MathParentheses(child);
+                        break;
+                    }
+                    // Otherwise the precedence decides, just like for the other operations
+                    //$FALL-THROUGH$
+                default:
                 {
-                    makeChild(parent, child.getChild(0), index);
-                    return;
+                    MathObject wrapped = wrapByPrecedence(parent, child, inParentheses);
+                    if(wrapped == null)
+                    {
+                        // The child is already wrapped in parentheses, in that case we unwrap it and make that MathObject a child of parent
+                        child = child.getChild(0);
+                        continue;
+                    }
+                    child = wrapped;
                 }
+                break;
             }
+            
+            // The child is final
+            return child;
         }
-        // Special case: the root operator (never place parentheses)
-        else if(!(parent instanceof MathOperationRoot))
-        {
-            // Wrap in parentheses if necessary
-            if(!(parent instanceof MathParentheses) && parent.getPrecedence() < child.getPrecedence())
-                child = new MathParentheses(child);
-            else if(child instanceof MathParentheses && (parent instanceof MathParentheses || child.getChild(0).getPrecedence() <= parent.getPrecedence()))
-            {
-                // Maybe the child is already wrapped in parentheses, in that case we unwrap it and make that MathObject a child of parent
-                makeChild(parent, child.getChild(0), index);
-                return;
-            }
-        }
-        
-        // Set the child
-        parent.setChild(index, child);
     }
     
-    /** Sets parentheses where necessary and removes unnecessary parentheses for the given {@link MathObject}
+    /** Wraps a child in parentheses if its precedence is lower than the precedence of its parent
+     * @param parent The parent
+     * @param child The child
+     * @param inParentheses Whether or not the child is a {@link MathParentheses}
+     * @return The child, wrapped in parentheses if necessary, or <tt>null</tt> if the child is a {@link MathParentheses} that should be unwrapped */
+    private static MathObject wrapByPrecedence(MathObject parent, MathObject child, boolean inParentheses)
+    {
+        final boolean parentIsParentheses = parent.getExpressionType() == Expression.Type.PARENTHESES;
+        if(!parentIsParentheses && parent.getPrecedence() < child.getPrecedence())
+            return new MathParentheses(child);
+        else if(inParentheses && (parentIsParentheses || child.getChild(0).getPrecedence() <= parent.getPrecedence()))
+            return null;
+        return child;
+    }
+    
+    /** Sets parentheses where necessary and removes unnecessary parentheses in the entire tree of the given {@link MathObject}.
+     * Every {@link MathObject} is visited once (in post-order, without recursion), and the levels and sizes are only
+     * refreshed once at the end, so this takes linear time.
      * @param mathObject The {@link MathObject} for which the parentheses should be set
      * @return The {@link MathObject} with the parentheses rightly set
      */
     public static MathObject setParentheses(MathObject mathObject)
     {
         // The root never is enclosed in parentheses
-        if(mathObject instanceof MathParentheses)
-            return setParentheses(mathObject.getChild(0));
+        while(mathObject.getExpressionType() == Expression.Type.PARENTHESES)
+            mathObject = mathObject.getChild(0);
         
-        // For every child of mathObject, use makeChild() to set it correctly as a child
-        for(int i = mathObject.getChildCount(); i > 0; --i)
-            makeChild(mathObject, mathObject.getChild(i - 1), i - 1);
-        
-        // Return the result
-        return mathObject;
+        // Set the parentheses of the children of every MathObject, the levels and sizes are refreshed only once
+        MathTransaction transaction = MathTransaction.begin();
+        try
+        {
+            MathTreeWalker.walk(mathObject, PARENTHESES_SETTER);
+            return transaction.commit(mathObject);
+        }
+        finally
+        { transaction.end(); }
     }
+    
+    /** Sets the parentheses of the children of every {@link MathObject} it leaves */
+    private static final MathTreeWalker.Visitor PARENTHESES_SETTER = new MathTreeWalker.Visitor()
+    {
+        @Override
+        public boolean enter(MathObject mathObject)
+        { return true; }
+        
+        @Override
+        public void leave(MathObject mathObject)
+        {
+            // The children have been handled already, so only the parentheses between mathObject and its children are left
+            // Wrapping or unwrapping a child doesn't change anything below it
+            for(int i = 0; i < mathObject.getChildCount(); ++i)
+            {
+                MathObject child = mathObject.getChild(i);
+                MathObject newChild = getChild(mathObject, child, i);
+                if(newChild != child)
+                    mathObject.setChild(i, newChild);
+            }
+        }
+    };
 }
@@ -0,0 +1,378 @@
+package org.teaminfty.math_dragon.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import org.teaminfty.math_dragon.view.math.MathSymbol;
+
+/**
+ * An immutable sparse polynomial with integer coefficients in the variables
+ * <tt>a</tt> to <tt>z</tt> and the constants pi, e and i. Every term is a
+ * {@link Monomial}, i.e. the value of a {@link MathSymbol}.
+ * <p>
+ * The terms are kept in a hash map from their powers to the term, so terms
+ * with the same powers are collected right away. Polynomials are always
+ * expanded; the power of <tt>i</tt> is always 0 or 1.
+ * <p>
+ * {@link Polynomial#valueOf(Expression) valueOf()} converts an expression
+ * that is built from symbols, additions, subtractions, multiplications,
+ * integer powers and divisions by a monomial, so that it can be expanded and
+ * collected without Symja. All operations return <tt>null</tt> when the result
+ * isn't such a polynomial or would get too large, so that the expression can
+ * be left to Symja. Negative powers (i.e. Laurent polynomials) aren't
+ * supported, Symja writes those as fractions.
+ */
+public final class Polynomial
+{
+    /** The maximum number of terms of a polynomial */
+    public static final int MAX_TERMS = 1000;
+
+    /** The monomial <tt>1</tt> */
+    private static final Monomial ONE = new Monomial(1);
+    /** The monomial <tt>-1</tt> */
+    private static final Monomial MINUS_ONE = new Monomial(-1);
+
+    /** The polynomial <tt>0</tt> */
+    public static final Polynomial ZERO = new Polynomial(new HashMap<Monomial, Monomial>());
+
+    /** The terms, every term is mapped from its powers (i.e. the term with factor 1); terms are never 0 */
+    private final HashMap<Monomial, Monomial> terms;
+
+    /** Construct a polynomial from the given terms
+     * @param terms The terms (not copied) */
+    private Polynomial(HashMap<Monomial, Monomial> terms)
+    {
+        this.terms = terms;
+    }
+
+    /**
+     * Construct a polynomial with just one term.
+     *
+     * @param term
+     *        The term
+     * @return The polynomial, or <tt>null</tt> if one of the powers is too
+     *         large
+     */
+    public static Polynomial valueOf(Monomial term)
+    {
+        // Multiplying with 1 reduces the power of i
+        term = term.multiply(ONE);
+        if(term == null)
+            return null;
+        HashMap<Monomial, Monomial> map = new HashMap<Monomial, Monomial>();
+        addTerm(map, term);
+        return new Polynomial(map);
+    }
+
+    /**
+     * Converts an expression to a polynomial. No recursion is used.
+     *
+     * @param expr
+     *        The expression. May not be <tt>null</tt>.
+     * @return The polynomial, or <tt>null</tt> if the expression isn't a
+     *         polynomial (or the polynomial would be too large)
+     */
+    public static Polynomial valueOf(Expression expr)
+    {
+        if(expr == null)
+            throw new NullPointerException("expr");
+        return expr.fold(CONVERTER);
+    }
+
+    /** Converts an {@link Expression} to a {@link Polynomial} given the converted children */
+    private static final Expression.Folder<Polynomial, RuntimeException> CONVERTER = new Expression.Folder<Polynomial, RuntimeException>()
+    {
+        @Override
+        public Polynomial fold(Expression expr, List<Polynomial> children)
+        {
+            // If one of the children isn't a polynomial, the expression isn't either
+            if(children.contains(null))
+                return null;
+
+            switch(expr.getType())
+            {
+                case SYMBOL:
+                    return valueOf(expr.getMonomial());
+                case PARENTHESES:
+                    return children.get(0);
+                case ADD:
+                {
+                    Polynomial sum = children.get(0);
+                    for(int i = 1; i < children.size() && sum != null; ++i)
+                        sum = sum.add(children.get(i));
+                    return sum;
+                }
+                case SUBTRACT:
+                    return children.get(0).subtract(children.get(1));
+                case MULTIPLY:
+                {
+                    Polynomial product = children.get(0);
+                    for(int i = 1; i < children.size() && product != null; ++i)
+                        product = product.multiply(children.get(i));
+                    return product;
+                }
+                case DIVIDE:
+                {
+                    Monomial divisor = children.get(1).getSingleTerm();
+                    return divisor == null ? null : children.get(0).divide(divisor);
+                }
+                case POWER:
+                {
+                    // Only non-negative integer exponents are supported
+                    Monomial exponent = children.get(1).getSingleTerm();
+                    if(exponent == null || !exponent.isNumber() || exponent.isBigFactor())
+                        return null;
+                    return children.get(0).pow(exponent.getFactor());
+                }
+                default:
+                    return null;
+            }
+        }
+    };
+
+    /**
+     * Adds a term to a map of terms, collecting it with the term with the same
+     * powers (if any).
+     *
+     * @param map
+     *        The map of terms
+     * @param term
+     *        The term to add
+     */
+    private static void addTerm(HashMap<Monomial, Monomial> map, Monomial term)
+    {
+        if(term.getFactorSign() == 0)
+            return;
+        Monomial powers = term.withFactor(1);
+        Monomial old = map.get(powers);
+        if(old != null)
+            term = old.add(term);
+        if(term.getFactorSign() == 0)
+            map.remove(powers);
+        else
+            map.put(powers, term);
+    }
+
+    /** Retrieve the number of terms.
+     * @return The number of terms */
+    public int getTermCount()
+    { return terms.size(); }
+
+    /** Retrieve the only term of this polynomial.
+     * @return The term (the zero monomial for the polynomial <tt>0</tt>), or <tt>null</tt> if there's more than one term */
+    public Monomial getSingleTerm()
+    {
+        if(terms.isEmpty())
+            return Monomial.ZERO;
+        return terms.size() == 1 ? terms.values().iterator().next() : null;
+    }
+
+    /**
+     * Adds another polynomial to this polynomial.
+     *
+     * @param p
+     *        The other polynomial
+     * @return The sum, or <tt>null</tt> if it has too many terms
+     */
+    public Polynomial add(Polynomial p)
+    {
+        HashMap<Monomial, Monomial> map = new HashMap<Monomial, Monomial>(terms);
+        for(Monomial term : p.terms.values())
+            addTerm(map, term);
+        return map.size() > MAX_TERMS ? null : new Polynomial(map);
+    }
+
+    /**
+     * Subtracts another polynomial from this polynomial.
+     *
+     * @param p
+     *        The other polynomial
+     * @return The difference, or <tt>null</tt> if it has too many terms
+     */
+    public Polynomial subtract(Polynomial p)
+    {
+        HashMap<Monomial, Monomial> map = new HashMap<Monomial, Monomial>(terms);
+        for(Monomial term : p.terms.values())
+            addTerm(map, term.multiply(MINUS_ONE));
+        return map.size() > MAX_TERMS ? null : new Polynomial(map);
+    }
+
+    /** Retrieve the number of bits of the largest factor of the terms.
+     * @return The number of bits */
+    private long getMaxFactorBits()
+    {
+        long bits = 0;
+        for(Monomial term : terms.values())
+            bits = Math.max(bits, term.isBigFactor() ? term.getBigFactor().bitLength() : 64 - Long.numberOfLeadingZeros(Math.abs(term.getFactor())));
+        return bits;
+    }
+
+    /**
+     * Multiplies this polynomial with another polynomial.
+     *
+     * @param p
+     *        The other polynomial
+     * @return The product, or <tt>null</tt> if it has too many terms or a
+     *         power or factor is too large
+     */
+    public Polynomial multiply(Polynomial p)
+    {
+        // The factors of the product have about as many bits as the largest factors together
+        if(getMaxFactorBits() + p.getMaxFactorBits() > Monomial.MAX_FACTOR_BITS)
+            return null;
+
+        HashMap<Monomial, Monomial> map = new HashMap<Monomial, Monomial>();
+        for(Monomial a : terms.values())
+        {
+            for(Monomial b : p.terms.values())
+            {
+                Monomial product = a.multiply(b);
+                if(product == null)
+                    return null;
+                addTerm(map, product);
+            }
+
+            // The number of terms never decreases much, so stop early
+            if(map.size() > MAX_TERMS)
+                return null;
+        }
+        return new Polynomial(map);
+    }
+
+    /**
+     * Divides this polynomial by a monomial. This only works if every term
+     * can be divided by the monomial, i.e. if no power becomes negative.
+     *
+     * @param m
+     *        The monomial to divide by
+     * @return The quotient, or <tt>null</tt> if it isn't a polynomial
+     */
+    public Polynomial divide(Monomial m)
+    {
+        HashMap<Monomial, Monomial> map = new HashMap<Monomial, Monomial>();
+        for(Monomial term : terms.values())
+        {
+            Monomial quotient = term.divide(m);
+            if(quotient == null)
+                return null;
+            addTerm(map, quotient);
+        }
+        return m.getFactorSign() == 0 ? null : new Polynomial(map);
+    }
+
+    /**
+     * Raises this polynomial to the given power, by repeated squaring.
+     *
+     * @param n
+     *        The exponent, may not be negative
+     * @return The power, or <tt>null</tt> if it isn't defined (<tt>0^0</tt>),
+     *         has too many terms or a power or factor is too large
+     */
+    public Polynomial pow(long n)
+    {
+        if(n < 0 || (n == 0 && terms.isEmpty()))
+            return null;
+
+        // A single term is raised to the power directly
+        if(terms.size() <= 1)
+        {
+            Monomial term = getSingleTerm().pow(n);
+            return term == null ? null : valueOf(term);
+        }
+
+        // More than MAX_TERMS terms or MAX_FACTOR_BITS bits are reached long before n gets large
+        Polynomial result = valueOf(ONE);
+        Polynomial square = this;
+        while(true)
+        {
+            if((n & 1) != 0)
+            {
+                result = result.multiply(square);
+                if(result == null)
+                    return null;
+            }
+            n >>>= 1;
+            if(n == 0)
+                return result;
+            square = square.multiply(square);
+            if(square == null)
+                return null;
+        }
+    }
+
+    /** Orders terms by descending degree, then by their powers of a to z, pi, e and i */
+    private static final Comparator<Monomial> TERM_ORDER = new Comparator<Monomial>()
+    {
+        @Override
+        public int compare(Monomial a, Monomial b)
+        {
+            // Compare the degrees
+            int cmp = compare(degree(b), degree(a));
+            if(cmp != 0)
+                return cmp;
+
+            // Compare the powers one by one
+            for(int i = 0; i < Monomial.VAR_COUNT && cmp == 0; ++i)
+                cmp = compare(b.getVarPow(i), a.getVarPow(i));
+            if(cmp == 0)
+                cmp = compare(b.getPiPow(), a.getPiPow());
+            if(cmp == 0)
+                cmp = compare(b.getEPow(), a.getEPow());
+            if(cmp == 0)
+                cmp = compare(b.getIPow(), a.getIPow());
+            return cmp;
+        }
+
+        /** Compares two longs */
+        private int compare(long a, long b)
+        { return a < b ? -1 : (a == b ? 0 : 1); }
+
+        /** Calculates the total power of the variables of a term */
+        private long degree(Monomial m)
+        {
+            long degree = 0;
+            for(int mask = m.getVarMask(); mask != 0; mask &= mask - 1)
+                degree += m.getVarPow(Integer.numberOfTrailingZeros(mask));
+            return degree;
+        }
+    };
+
+    /**
+     * Converts this polynomial to an expression: a sum of symbols, ordered by
+     * descending degree. A single term becomes just a symbol.
+     *
+     * @return The expression
+     */
+    public Expression toExpression()
+    {
+        if(terms.isEmpty())
+            return new Expression(Expression.Type.SYMBOL, Monomial.ZERO);
+
+        // Order the terms
+        ArrayList<Monomial> sorted = new ArrayList<Monomial>(terms.values());
+        Collections.sort(sorted, TERM_ORDER);
+
+        // Create a symbol for every term
+        Expression[] symbols = new Expression[sorted.size()];
+        for(int i = 0; i < symbols.length; ++i)
+            symbols[i] = new Expression(Expression.Type.SYMBOL, sorted.get(i));
+        return symbols.length == 1 ? symbols[0] : new Expression(Expression.Type.ADD, null, symbols);
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if(o == this)
+            return true;
+        if(!(o instanceof Polynomial))
+            return false;
+        return ((Polynomial) o).terms.equals(terms);
+    }
+
+    @Override
+    public int hashCode()
+    { return terms.hashCode(); }
+}
@@ -0,0 +1,349 @@
+package org.teaminfty.math_dragon.model;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.matheclipse.core.expression.F;
+import org.matheclipse.core.interfaces.IAST;
+import org.matheclipse.core.interfaces.IExpr;
+import org.teaminfty.math_dragon.exceptions.InvalidValueException;
+import org.teaminfty.math_dragon.exceptions.MathException;
+
+/**
+ * Substitutes values for the variables of a formula.
+ * <p>
+ * Every variable is bound to one value or to a list of values, separated by
+ * commas. Lists are combined element by element, so if <tt>x</tt> is bound to
+ * <tt>1, 2, 3</tt> and <tt>y</tt> to <tt>4, 5, 6</tt>, the formula is
+ * evaluated at 3 points. A value is either a number (e.g. <tt>-1.5</tt>) or a
+ * symbol (e.g. <tt>2&pi;x^2</tt>).
+ * <p>
+ * If all variables are bound to numbers, the formula is
+ * {@link CompiledFormula compiled} and evaluated at all points at once by the
+ * {@link BatchEvaluator}. The points where that doesn't give a finite value,
+ * or where Symja knows an exact value (e.g. <tt>&radic;-4</tt>, <tt>1/0</tt>
+ * or <tt>sin &pi;</tt>), are left to Symja, so that the result is the same as
+ * if Symja had calculated all points. The formula is converted to Symja once,
+ * and those points are evaluated in a single evaluation of a list of
+ * <tt>ReplaceAll</tt>s.
+ */
+public class Substitution
+{
+    /** The formula */
+    private final Expression expr;
+
+    /** The indices of the variables that are bound */
+    private final ArrayList<Integer> vars = new ArrayList<Integer>();
+
+    /** The values of every bound variable, as they were entered */
+    private final ArrayList<String[]> texts = new ArrayList<String[]>();
+
+    /** The values of every bound variable for Symja */
+    private final ArrayList<IExpr[]> values = new ArrayList<IExpr[]>();
+
+    /** The values of every bound variable as numbers (or <tt>null</tt> if a value isn't a number) */
+    private final ArrayList<double[]> numbers = new ArrayList<double[]>();
+
+    /** The number of points the formula is evaluated at */
+    private int pointCount = 1;
+
+    /**
+     * Constructor
+     *
+     * @param expr
+     *        The formula. May not be <tt>null</tt>.
+     */
+    public Substitution(Expression expr)
+    {
+        if(expr == null)
+            throw new NullPointerException("expr");
+        this.expr = expr;
+    }
+
+    /**
+     * Binds a variable to one or more values.
+     *
+     * @param var
+     *        The index of the variable (0 for <tt>a</tt>, 25 for <tt>z</tt>)
+     * @param text
+     *        The values, separated by commas
+     * @throws InvalidValueException
+     *         Thrown when a value isn't a number or a symbol, or when the
+     *         number of values doesn't match the other lists
+     */
+    public void bind(int var, String text) throws InvalidValueException
+    {
+        // Parse the values (an empty value at the end is an empty value too)
+        String[] parts = text.split(",", -1);
+        IExpr[] exprs = new IExpr[parts.length];
+        double[] doubles = new double[parts.length];
+        for(int i = 0; i < parts.length; ++i)
+        {
+            parts[i] = parts[i].trim();
+            if(parts[i].matches("-?[0-9]+(\\.[0-9]+)?"))
+            {
+                doubles[i] = Double.parseDouble(parts[i]);
+                exprs[i] = parts[i].indexOf('.') < 0 ? F.integer(new BigInteger(parts[i])) : F.num(doubles[i]);
+            }
+            else
+            {
+                // Symbols without variables (e.g. 2pi) are numbers too
+                Monomial m = parseSymbol(parts[i]);
+                exprs[i] = EvalHelper.symbol(m);
+                doubles[i] = m.getVarMask() == 0 ? DoubleEvaluator.constant(m) : Double.NaN;
+            }
+        }
+
+        // All lists should have the same length
+        if(parts.length != 1)
+        {
+            if(pointCount != 1 && pointCount != parts.length)
+                throw new InvalidValueException(InvalidValueException.Problem.WRONG_COUNT, text.trim(), pointCount);
+            pointCount = parts.length;
+        }
+
+        // Remember the values
+        vars.add(var);
+        texts.add(parts);
+        values.add(exprs);
+        numbers.add(hasNaN(doubles) ? null : doubles);
+    }
+
+    /** Retrieve the number of points the formula is evaluated at
+     * @return The number of points */
+    public int getPointCount()
+    { return pointCount; }
+
+    /**
+     * Describes a point, e.g. <tt>x = 1, y = 2</tt>. Only the variables that
+     * are bound to a list of values are described.
+     *
+     * @param point
+     *        The index of the point
+     * @return The description
+     */
+    public String describePoint(int point)
+    {
+        StringBuilder builder = new StringBuilder();
+        for(int i = 0; i < vars.size(); ++i)
+        {
+            if(texts.get(i).length == 1)
+                continue;
+            if(builder.length() != 0)
+                builder.append(", ");
+            builder.append((char) ('a' + vars.get(i))).append(" = ").append(texts.get(i)[point]);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Substitutes the values and evaluates the formula at every point. The
+     * results of both ways of evaluating are expressions from Symja, so that
+     * they're shown the same way.
+     *
+     * @param budget
+     *        The limits of the evaluation with Symja
+     * @return The results, one for every point
+     * @throws MathException
+     *         Thrown when the formula can't be evaluated, or when the budget
+     *         is exceeded
+     * @throws InterruptedException
+     *         Thrown when the thread is interrupted
+     */
+    public IExpr[] substitute(EvaluationBudget budget) throws MathException, InterruptedException
+    {
+        double[] results = substituteNumbers();
+        if(results == null)
+        {
+            int[] points = new int[pointCount];
+            for(int i = 0; i < pointCount; ++i)
+                points[i] = i;
+            return substituteSymbols(budget, points);
+        }
+
+        // Finite values are approximations, the other points are left to Symja
+        IExpr[] answers = new IExpr[pointCount];
+        int[] points = new int[pointCount];
+        int count = 0;
+        for(int i = 0; i < pointCount; ++i)
+        {
+            if(Double.isNaN(results[i]) || Double.isInfinite(results[i]))
+                points[count++] = i;
+            else
+                answers[i] = F.num(results[i]);
+        }
+        if(count != 0)
+        {
+            IExpr[] exact = substituteSymbols(budget, Arrays.copyOf(points, count));
+            for(int i = 0; i < count; ++i)
+                answers[points[i]] = exact[i];
+        }
+        return answers;
+    }
+
+    /**
+     * Substitutes the values in the compiled formula, if all variables are
+     * bound to numbers.
+     *
+     * @return The results (NaN at the points that should be left to Symja),
+     *         or <tt>null</tt> if the formula or the values aren't numeric
+     * @throws InterruptedException
+     *         Thrown when the thread is interrupted
+     */
+    private double[] substituteNumbers() throws InterruptedException
+    {
+        // Every variable of the formula should be bound to numbers
+        int unbound = SymbolHelper.getVarMask(expr);
+        for(int i = 0; i < vars.size(); ++i)
+        {
+            if(numbers.get(i) == null)
+                return null;
+            unbound &= ~(1 << vars.get(i));
+        }
+        CompiledFormula formula = CompiledFormula.compile(expr);
+        if(unbound != 0 || formula == null)
+            return null;
+
+        // Single values are the same for every point, lists become columns
+        double[] fixedVars = new double[Monomial.VAR_COUNT];
+        ArrayList<Integer> columnVars = new ArrayList<Integer>();
+        ArrayList<double[]> columns = new ArrayList<double[]>();
+        for(int i = 0; i < vars.size(); ++i)
+        {
+            if(numbers.get(i).length == 1)
+                fixedVars[vars.get(i)] = numbers.get(i)[0];
+            else
+            {
+                columnVars.add(vars.get(i));
+                columns.add(numbers.get(i));
+            }
+        }
+        int[] columnVarArray = new int[columnVars.size()];
+        for(int i = 0; i < columnVarArray.length; ++i)
+            columnVarArray[i] = columnVars.get(i);
+        return BatchEvaluator.evaluate(formula.exact(), fixedVars, columnVarArray, columns.toArray(new double[columns.size()][]));
+    }
+
+    /**
+     * Substitutes the values with Symja, evaluating the given points at once.
+     *
+     * @param budget
+     *        The limits of the evaluation
+     * @param points
+     *        The indices of the points
+     * @return The results, one for every index in <tt>points</tt>
+     * @throws MathException
+     *         Thrown when the formula can't be evaluated, or when the budget
+     *         is exceeded
+     */
+    private IExpr[] substituteSymbols(EvaluationBudget budget, int[] points) throws MathException
+    {
+        // The formula is converted only once
+        IExpr formula = EvalHelper.eval(SymbolHelper.evaluateSymbols(expr));
+
+        // Create a ReplaceAll for every point
+        IAST replacements = F.List();
+        for(int point : points)
+        {
+            IAST rules = F.List();
+            for(int i = 0; i < vars.size(); ++i)
+            {
+                IExpr[] varValues = values.get(i);
+                rules.add(F.Rule(EvalHelper.variable(vars.get(i)), varValues[varValues.length == 1 ? 0 : point]));
+            }
+            replacements.add(F.ReplaceAll(formula, rules));
+        }
+
+        // Evaluate them all at once
+        IAST results = (IAST) budget.evaluate(replacements);
+        IExpr[] answers = new IExpr[points.length];
+        for(int i = 0; i < points.length; ++i)
+            answers[i] = results.get(i + 1);
+        return answers;
+    }
+
+    /**
+     * Parses a symbol, e.g. <tt>-2&pi;x^2</tt>. A symbol is an optional
+     * integer factor followed by any number of variables and the constants
+     * &pi; (or <tt>pi</tt>), <tt>e</tt> and <tt>i</tt>, each with an optional
+     * integer power.
+     *
+     * @param text
+     *        The text
+     * @return The monomial of the symbol
+     * @throws InvalidValueException
+     *         Thrown when the text isn't a symbol
+     */
+    static Monomial parseSymbol(String text) throws InvalidValueException
+    {
+        // The factor
+        int pos = text.startsWith("-") ? 1 : 0;
+        while(pos < text.length() && Character.isDigit(text.charAt(pos)))
+            ++pos;
+        final String factor = text.substring(0, pos);
+        if(pos == text.length() || factor.equals("-"))
+            throw new InvalidValueException(text);
+        Monomial m = new Monomial(factor.isEmpty() ? BigInteger.ONE : new BigInteger(factor));
+
+        // The variables and constants
+        while(pos < text.length())
+        {
+            // Which variable or constant
+            char c = text.charAt(pos++);
+            if(c == 'p' && text.startsWith("i", pos))
+            {
+                c = '\u03C0';
+                ++pos;
+            }
+            if(c != '\u03C0' && (c < 'a' || c > 'z'))
+                throw new InvalidValueException(text);
+
+            // The power
+            long pow = 1;
+            if(text.startsWith("^", pos))
+            {
+                int end = ++pos;
+                if(text.startsWith("-", end))
+                    ++end;
+                while(end < text.length() && Character.isDigit(text.charAt(end)))
+                    ++end;
+                try
+                {
+                    pow = Long.parseLong(text.substring(pos, end));
+                }
+                catch(NumberFormatException e)
+                {
+                    InvalidValueException invalid = new InvalidValueException(text);
+                    invalid.initCause(e);
+                    throw invalid;
+                }
+                pos = end;
+            }
+
+            // Add the power
+            if(c == '\u03C0')
+                m = m.withPiPow(m.getPiPow() + pow);
+            else if(c == 'e')
+                m = m.withEPow(m.getEPow() + pow);
+            else if(c == 'i')
+                m = m.withIPow(m.getIPow() + pow);
+            else
+                m = m.withVarPow(c - 'a', m.getVarPow(c - 'a') + pow);
+        }
+        return m;
+    }
+
+    /** Checks whether an array contains NaN
+     * @param array The array
+     * @return <tt>true</tt> if it contains NaN, <tt>false</tt> otherwise */
+    private static boolean hasNaN(double[] array)
+    {
+        for(double d : array)
+        {
+            if(Double.isNaN(d))
+                return true;
+        }
+        return false;
+    }
+}
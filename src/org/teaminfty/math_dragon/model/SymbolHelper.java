@@ -0,0 +1,135 @@
+package org.teaminfty.math_dragon.model;
+
+import java.util.List;
+
+import org.teaminfty.math_dragon.view.math.MathSymbol;
+
+/**
+ * Calculates products, quotients and integer powers of {@link MathSymbol}s
+ * natively, using the arithmetic of {@link Monomial}s.
+ * <p>
+ * Something like <tt>3x&sup2; &middot; 2x&pi;</tt> is just a monomial again,
+ * so there's no need to convert it to Symja and back. Everything that can't
+ * be calculated this way (e.g. <tt>x / 2</tt>) is left as it is.
+ */
+public class SymbolHelper
+{
+    private SymbolHelper()
+    {}
+
+    /**
+     * Replaces all products, quotients and integer powers of symbols in the
+     * given expression by the resulting symbol. This is done bottom-up, so
+     * <tt>(2x &middot; 3) &middot; x</tt> becomes <tt>6x&sup2;</tt>. No
+     * recursion is used, and subexpressions that don't change are reused.
+     *
+     * @param expr
+     *        The expression. May not be <tt>null</tt>.
+     * @return The expression with the symbols calculated (<tt>expr</tt> itself
+     *         if nothing could be calculated)
+     */
+    public static Expression evaluateSymbols(Expression expr)
+    {
+        if(expr == null)
+            throw new NullPointerException("expr");
+        return expr.fold(EVALUATOR);
+    }
+
+    /**
+     * Collects the variables of all symbols in the given expression. No
+     * recursion is used.
+     *
+     * @param expr
+     *        The expression. May not be <tt>null</tt>.
+     * @return A bit mask of the variables, bit 0 is set if <tt>a</tt> is used
+     *         (see {@link Monomial#getVarMask()})
+     */
+    public static int getVarMask(Expression expr)
+    {
+        if(expr == null)
+            throw new NullPointerException("expr");
+        return expr.fold(VAR_MASK);
+    }
+
+    /** Collects the variables of an {@link Expression} given the variables of its children */
+    private static final Expression.Folder<Integer, RuntimeException> VAR_MASK = new Expression.Folder<Integer, RuntimeException>()
+    {
+        @Override
+        public Integer fold(Expression expr, List<Integer> children)
+        {
+            int mask = expr.getType() == Expression.Type.SYMBOL ? expr.getMonomial().getVarMask() : 0;
+            for(Integer child : children)
+                mask |= child;
+            return mask;
+        }
+    };
+
+    /** Calculates an {@link Expression} given its evaluated children */
+    private static final Expression.Folder<Expression, RuntimeException> EVALUATOR = new Expression.Folder<Expression, RuntimeException>()
+    {
+        @Override
+        public Expression fold(Expression expr, List<Expression> children)
+        {
+            Monomial result = evaluateNode(expr.getType(), children);
+            if(result != null)
+                return new Expression(Expression.Type.SYMBOL, result);
+
+            // Only create a new expression if a child has changed
+            for(int i = 0; i < children.size(); ++i)
+            {
+                if(children.get(i) != expr.getChild(i))
+                    return new Expression(expr.getType(), expr.getValue(), children.toArray(new Expression[children.size()]));
+            }
+            return expr;
+        }
+    };
+
+    /**
+     * Calculates a single operation of which all children are evaluated
+     * already.
+     *
+     * @param type
+     *        The type of the operation
+     * @param children
+     *        The evaluated children
+     * @return The resulting monomial, or <tt>null</tt> if it can't be
+     *         calculated natively
+     */
+    private static Monomial evaluateNode(Expression.Type type, List<Expression> children)
+    {
+        switch(type)
+        {
+            case PARENTHESES:
+                return children.get(0).getMonomial();
+            case MULTIPLY:
+            {
+                Monomial product = children.get(0).getMonomial();
+                for(int i = 1; i < children.size() && product != null; ++i)
+                {
+                    Monomial factor = children.get(i).getMonomial();
+                    product = factor == null ? null : product.multiply(factor);
+                }
+                return product;
+            }
+            case DIVIDE:
+            {
+                Monomial numerator = children.get(0).getMonomial();
+                Monomial denominator = children.get(1).getMonomial();
+                if(numerator == null || denominator == null)
+                    return null;
+                return numerator.divide(denominator);
+            }
+            case POWER:
+            {
+                // Only integer exponents are supported
+                Monomial base = children.get(0).getMonomial();
+                Monomial exponent = children.get(1).getMonomial();
+                if(base == null || exponent == null || !exponent.isNumber() || exponent.isBigFactor())
+                    return null;
+                return base.pow(exponent.getFactor());
+            }
+            default:
+                return null;
+        }
+    }
+}
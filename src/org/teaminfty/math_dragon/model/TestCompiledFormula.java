@@ -0,0 +1,183 @@
+package org.teaminfty.math_dragon.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.teaminfty.math_dragon.model.ExpressionFixtures.function;
+import static org.teaminfty.math_dragon.model.ExpressionFixtures.num;
+import static org.teaminfty.math_dragon.model.ExpressionFixtures.op;
+import static org.teaminfty.math_dragon.model.ExpressionFixtures.var;
+
+import org.junit.Test;
+import org.teaminfty.math_dragon.view.math.MathOperationFunction.FunctionType;
+
+public class TestCompiledFormula
+{
+	/** Creates the values of the variables, with <tt>x</tt> set to the given value */
+	private static double[] withX(double x)
+	{
+		double[] vars = new double[Monomial.VAR_COUNT];
+		vars['x' - 'a'] = x;
+		return vars;
+	}
+
+	/** Checks that the compiled formula and the {@link DoubleEvaluator} agree on a formula without variables */
+	private static void assertAgrees(Expression expr)
+	{
+		Double expected = DoubleEvaluator.evaluate(expr);
+		assertNotNull(expected);
+		CompiledFormula formula = CompiledFormula.compile(expr);
+		assertNotNull(formula);
+		assertEquals(expected, formula.evaluate(new double[Monomial.VAR_COUNT]), Math.abs(expected) * 1e-12);
+	}
+
+	@Test
+	public void symbols()
+	{
+		assertAgrees(num(7));
+		assertAgrees(new Expression(Expression.Type.SYMBOL, new Monomial(-3, 2, 1, 0)));
+		assertAgrees(new Expression(Expression.Type.SYMBOL, new Monomial(5, -1, 3, 2)));
+
+		// 3pi^2 x^2 at x = 2
+		long[] pows = new long[Monomial.VAR_COUNT];
+		pows['x' - 'a'] = 2;
+		Expression expr = new Expression(Expression.Type.SYMBOL, new Monomial(3, 0, 2, 0, pows));
+		assertEquals(12 * Math.PI * Math.PI, CompiledFormula.compile(expr).evaluate(withX(2)), 1e-12);
+	}
+
+	@Test
+	public void rootIndexAndBase()
+	{
+		// The first child of a root is the index, the second one the base
+		assertAgrees(op(Expression.Type.ROOT, num(3), num(8)));
+		assertAgrees(op(Expression.Type.ROOT, num(2), num(9)));
+		assertEquals(3, CompiledFormula.compile(op(Expression.Type.ROOT, num(3), var('x'))).evaluate(withX(27)), 1e-12);
+		assertEquals(Math.pow(2, 1 / 27.0), CompiledFormula.compile(op(Expression.Type.ROOT, var('x'), num(2))).evaluate(withX(27)), 1e-12);
+	}
+
+	@Test
+	public void naryOperations()
+	{
+		// Sums and products with many operands, each of which needs room on the stack itself
+		Expression[] terms = new Expression[8];
+		for(int i = 0; i < terms.length; ++i)
+			terms[i] = op(Expression.Type.DIVIDE, op(Expression.Type.MULTIPLY, num(i + 1), num(i + 2), num(i + 3)), op(Expression.Type.ADD, num(i + 4), num(1)));
+		assertAgrees(op(Expression.Type.ADD, terms));
+		assertAgrees(op(Expression.Type.MULTIPLY, terms));
+		assertAgrees(op(Expression.Type.SUBTRACT, op(Expression.Type.ADD, terms), op(Expression.Type.MULTIPLY, terms)));
+	}
+
+	@Test
+	public void deepNesting()
+	{
+		// 1 + (2 + (3 + ...)) keeps every left operand on the stack
+		Expression left = num(100);
+		for(int i = 99; i > 0; --i)
+			left = op(Expression.Type.ADD, num(i), op(Expression.Type.PARENTHESES, left));
+		assertAgrees(left);
+
+		// ((1 - 2) - 3) - ... only needs two places on the stack
+		Expression right = num(1);
+		for(int i = 2; i <= 100; ++i)
+			right = op(Expression.Type.SUBTRACT, right, num(i));
+		assertAgrees(right);
+	}
+
+	@Test
+	public void functionsAndPowers()
+	{
+		assertAgrees(function(FunctionType.SIN, num(1)));
+		assertAgrees(function(FunctionType.LN, op(Expression.Type.POWER, num(3), num(4))));
+		assertAgrees(op(Expression.Type.ADD, function(FunctionType.ARCTAN, num(2)), function(FunctionType.COSH, op(Expression.Type.DIVIDE, num(1), num(3)))));
+		assertEquals(Math.sin(0.5) * Math.sin(0.5), CompiledFormula.compile(op(Expression.Type.POWER, function(FunctionType.SIN, var('x')), num(2))).evaluate(withX(0.5)), 1e-12);
+	}
+
+	@Test
+	public void guards()
+	{
+		// 0^0 and a root with index 0 aren't defined, like in the DoubleEvaluator
+		assertTrue(Double.isNaN(CompiledFormula.compile(op(Expression.Type.POWER, var('x'), var('x'))).evaluate(withX(0))));
+		assertTrue(Double.isNaN(CompiledFormula.compile(op(Expression.Type.ROOT, var('x'), num(2))).evaluate(withX(0))));
+
+		// The exact form leaves sin(pi x) at x = 1 to Symja, the approximation is close to 0
+		long[] pows = new long[Monomial.VAR_COUNT];
+		pows['x' - 'a'] = 1;
+		CompiledFormula formula = CompiledFormula.compile(function(FunctionType.SIN, new Expression(Expression.Type.SYMBOL, new Monomial(1, 0, 1, 0, pows))));
+		assertEquals(0, formula.evaluate(withX(1)), 1e-12);
+		assertTrue(Double.isNaN(formula.exact().evaluate(withX(1))));
+		assertEquals(Math.sin(Math.PI * 0.1234), formula.exact().evaluate(withX(0.1234)), 1e-12);
+	}
+
+	@Test
+	public void notCompilable()
+	{
+		// Derivatives and odd powers of i can't be compiled, also not the second time
+		Expression derivative = op(Expression.Type.DERIVATIVE, var('x'), var('x'));
+		assertNull(CompiledFormula.compile(derivative));
+		assertNull(CompiledFormula.compile(derivative));
+		assertNull(CompiledFormula.compile(op(Expression.Type.ADD, num(1), new Expression(Expression.Type.SYMBOL, new Monomial(1, 0, 0, 1)))));
+	}
+
+	@Test
+	public void compiledOnce()
+	{
+		Expression expr = op(Expression.Type.ADD, var('x'), num(1));
+		assertSame(CompiledFormula.compile(expr), CompiledFormula.compile(expr));
+	}
+
+	/** Checks that the batch evaluation of x^2 + y at <tt>count</tt> points gives the same results as evaluating them one by one */
+	private static void assertBatch(int count) throws InterruptedException
+	{ assertBatch(count, BatchEvaluator.MIN_CHUNK_SIZE); }
+
+	/** Checks the batch evaluation of x^2 + y at <tt>count</tt> points, with chunks of at least <tt>minChunkSize</tt> points */
+	private static void assertBatch(int count, int minChunkSize) throws InterruptedException
+	{
+		Expression expr = op(Expression.Type.ADD, op(Expression.Type.POWER, var('x'), num(2)), var('y'));
+		double[] xs = new double[count];
+		double[] ys = new double[count];
+		for(int i = 0; i < count; ++i)
+		{
+			xs[i] = i * 0.5 - 100;
+			ys[i] = -i;
+		}
+		double[] fixed = new double[Monomial.VAR_COUNT];
+		fixed['z' - 'a'] = 42;
+		double[] results = BatchEvaluator.evaluate(CompiledFormula.compile(expr), fixed, new int[] {'x' - 'a', 'y' - 'a'}, new double[][] {xs, ys}, minChunkSize);
+		assertEquals(count, results.length);
+		for(int i = 0; i < count; ++i)
+			assertEquals(xs[i] * xs[i] + ys[i], results[i], 0);
+	}
+
+	@Test
+	public void batchChunkBoundaries() throws InterruptedException
+	{
+		assertBatch(0);
+		assertBatch(1);
+		assertBatch(BatchEvaluator.MIN_CHUNK_SIZE - 1);
+		assertBatch(BatchEvaluator.MIN_CHUNK_SIZE);
+		assertBatch(BatchEvaluator.MIN_CHUNK_SIZE * 2 - 1);
+		assertBatch(BatchEvaluator.MIN_CHUNK_SIZE * 2);
+		assertBatch(BatchEvaluator.MIN_CHUNK_SIZE * 7 + 3);
+		assertBatch(BatchEvaluator.MIN_CHUNK_SIZE * 64 + 1);
+	}
+
+	@Test
+	public void batchSmallChunks() throws InterruptedException
+	{
+		// Every point can be a chunk of its own
+		assertBatch(3, 1);
+		assertBatch(1000, 1);
+		assertBatch(1000, 256);
+	}
+
+	@Test
+	public void batchWithoutColumns() throws InterruptedException
+	{
+		// Without columns, the formula is evaluated once
+		double[] results = BatchEvaluator.evaluate(op(Expression.Type.ADD, var('x'), num(1)), withX(2), new int[0], new double[0][]);
+		assertEquals(1, results.length);
+		assertEquals(3, results[0], 0);
+	}
+}
@@ -11,6 +11,7 @@ import org.teaminfty.math_dragon.view.math.MathOperationAdd;
 import org.teaminfty.math_dragon.view.math.MathOperationDivide;
 import org.teaminfty.math_dragon.view.math.MathOperationMultiply;
 import org.teaminfty.math_dragon.view.math.MathOperationPower;
+import org.teaminfty.math_dragon.view.math.MathOperationSum;
 
 public class TestModelHelper
 {
@@ -139,16 +140,15 @@ public class TestModelHelper
 		assertTrue(mc.equals(middle));
 		assertTrue(rc.equals(right));
 		result = ModelHelper.toMathObject(EvalEngine.eval(EvalHelper.eval(a)));
-		assertTrue(result instanceof MathOperationAdd);
-		add = (MathOperationAdd) result;
-		radd = (MathOperationAdd) add.getRight();
-		MathObject tmp = add.getLeft();
+		assertTrue(result instanceof MathOperationSum);
+		assertTrue(result.getChildCount() == 3);
+		MathObject tmp = result.getChild(0);
 		assertTrue(tmp instanceof MathSymbol);
 		left = (MathSymbol) tmp;
-		tmp = radd.getLeft();
+		tmp = result.getChild(1);
 		assertTrue(tmp instanceof MathSymbol);
 		middle = (MathSymbol) tmp;
-		tmp = radd.getRight();
+		tmp = result.getChild(2);
 		assertTrue(tmp instanceof MathSymbol);
 		right = (MathSymbol) tmp;
 		assertTrue(lc.equals(left));
@@ -0,0 +1,125 @@
+package org.teaminfty.math_dragon.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.teaminfty.math_dragon.model.ExpressionFixtures.num;
+import static org.teaminfty.math_dragon.model.ExpressionFixtures.op;
+import static org.teaminfty.math_dragon.model.ExpressionFixtures.var;
+
+import org.junit.Test;
+
+public class TestPolynomial
+{
+	/** Creates a term, e.g. <tt>3x^2</tt> */
+	private static Monomial term(long factor, char name, long pow)
+	{
+		long[] pows = new long[Monomial.VAR_COUNT];
+		pows[name - 'a'] = pow;
+		return new Monomial(factor, 0, 0, 0, pows);
+	}
+
+	/** Creates the sum of the first <tt>count</tt> variables, a + b + c + ... */
+	private static Expression sumOfVars(int count)
+	{
+		Expression[] vars = new Expression[count];
+		for(int i = 0; i < count; ++i)
+			vars[i] = var((char) ('a' + i));
+		return op(Expression.Type.ADD, vars);
+	}
+
+	@Test
+	public void squareOfSum()
+	{
+		// (x + 1)^2 = x^2 + 2x + 1
+		Polynomial p = Polynomial.valueOf(op(Expression.Type.POWER, op(Expression.Type.ADD, var('x'), num(1)), num(2)));
+		Polynomial expected = Polynomial.valueOf(term(1, 'x', 2)).add(Polynomial.valueOf(term(2, 'x', 1))).add(Polynomial.valueOf(new Monomial(1)));
+		assertEquals(3, p.getTermCount());
+		assertEquals(expected, p);
+	}
+
+	@Test
+	public void differenceOfSquares()
+	{
+		// (x - y)(x + y) = x^2 - y^2, the xy terms cancel
+		Polynomial p = Polynomial.valueOf(op(Expression.Type.MULTIPLY,
+		                                     op(Expression.Type.SUBTRACT, var('x'), var('y')),
+		                                     op(Expression.Type.ADD, var('x'), var('y'))));
+		Polynomial expected = Polynomial.valueOf(term(1, 'x', 2)).subtract(Polynomial.valueOf(term(1, 'y', 2)));
+		assertEquals(2, p.getTermCount());
+		assertEquals(expected, p);
+	}
+
+	@Test
+	public void cubeOfSum()
+	{
+		// (x + y)^3 has 4 terms, the binomial coefficients are 1, 3, 3, 1
+		Polynomial p = Polynomial.valueOf(op(Expression.Type.POWER, op(Expression.Type.ADD, var('x'), var('y')), num(3)));
+		assertEquals(4, p.getTermCount());
+		assertEquals(p, Polynomial.valueOf(op(Expression.Type.MULTIPLY, op(Expression.Type.ADD, var('x'), var('y')),
+		                                      op(Expression.Type.ADD, var('x'), var('y')), op(Expression.Type.ADD, var('x'), var('y')))));
+	}
+
+	@Test
+	public void divideByMonomial()
+	{
+		// (2x^2 + 4x) / 2x = x + 2
+		Expression numerator = op(Expression.Type.ADD, new Expression(Expression.Type.SYMBOL, term(2, 'x', 2)), new Expression(Expression.Type.SYMBOL, term(4, 'x', 1)));
+		Polynomial p = Polynomial.valueOf(op(Expression.Type.DIVIDE, numerator, new Expression(Expression.Type.SYMBOL, term(2, 'x', 1))));
+		assertEquals(Polynomial.valueOf(term(1, 'x', 1)).add(Polynomial.valueOf(new Monomial(2))), p);
+
+		// (x + 1) / 2 isn't a polynomial with integer factors
+		assertNull(Polynomial.valueOf(op(Expression.Type.DIVIDE, op(Expression.Type.ADD, var('x'), num(1)), num(2))));
+
+		// Dividing by a sum isn't supported
+		assertNull(Polynomial.valueOf(op(Expression.Type.DIVIDE, num(1), op(Expression.Type.ADD, var('x'), num(1)))));
+	}
+
+	@Test
+	public void powerOfI()
+	{
+		// i^2 = -1
+		assertEquals(Polynomial.valueOf(new Monomial(-1)), Polynomial.valueOf(new Monomial(1, 0, 0, 2)));
+	}
+
+	@Test
+	public void factorLimit()
+	{
+		// (1 + i)^8 = 16, the sum stays small but its factor grows
+		Expression onePlusI = op(Expression.Type.ADD, num(1), new Expression(Expression.Type.SYMBOL, new Monomial(1, 0, 0, 1)));
+		assertEquals(Polynomial.valueOf(new Monomial(16)), Polynomial.valueOf(op(Expression.Type.POWER, onePlusI, num(8))));
+
+		// (1 + i)^1000000000 has a factor with half a billion bits
+		assertNull(Polynomial.valueOf(op(Expression.Type.POWER, onePlusI, num(1000000000))));
+	}
+
+	@Test
+	public void undefinedPowers()
+	{
+		// 0^0 isn't defined, neither are negative and symbolic exponents
+		assertNull(Polynomial.valueOf(op(Expression.Type.POWER, num(0), num(0))));
+		assertNull(Polynomial.valueOf(op(Expression.Type.POWER, var('x'), num(-1))));
+		assertNull(Polynomial.valueOf(op(Expression.Type.POWER, num(2), var('x'))));
+	}
+
+	@Test
+	public void termLimit()
+	{
+		// (a + ... + z)^2 has 26 * 27 / 2 = 351 terms
+		Polynomial square = Polynomial.valueOf(op(Expression.Type.POWER, sumOfVars(26), num(2)));
+		assertEquals(351, square.getTermCount());
+		assertTrue(square.getTermCount() <= Polynomial.MAX_TERMS);
+
+		// (a + ... + z)^3 has 26 * 27 * 28 / 6 = 3276 terms, which is too many
+		assertNull(Polynomial.valueOf(op(Expression.Type.POWER, sumOfVars(26), num(3))));
+		assertNull(Polynomial.valueOf(op(Expression.Type.MULTIPLY, sumOfVars(26), sumOfVars(26), sumOfVars(26))));
+	}
+
+	@Test
+	public void toExpressionRoundTrip()
+	{
+		// Converting back and forth doesn't change anything
+		Polynomial p = Polynomial.valueOf(op(Expression.Type.POWER, op(Expression.Type.ADD, var('x'), var('y'), num(1)), num(4)));
+		assertEquals(p, Polynomial.valueOf(p.toExpression()));
+	}
+}
@@ -0,0 +1,190 @@
+package org.teaminfty.math_dragon.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.teaminfty.math_dragon.model.ExpressionFixtures.function;
+import static org.teaminfty.math_dragon.model.ExpressionFixtures.num;
+import static org.teaminfty.math_dragon.model.ExpressionFixtures.op;
+import static org.teaminfty.math_dragon.model.ExpressionFixtures.var;
+
+import org.junit.Test;
+import org.matheclipse.core.eval.EvalEngine;
+import org.matheclipse.core.expression.F;
+import org.matheclipse.core.interfaces.IExpr;
+import org.teaminfty.math_dragon.exceptions.InvalidValueException;
+import org.teaminfty.math_dragon.exceptions.MathException;
+import org.teaminfty.math_dragon.view.math.MathOperationFunction.FunctionType;
+
+public class TestSubstitution
+{
+	/** The formula x + y */
+	private static final Expression X_PLUS_Y = new Expression(Expression.Type.ADD, null, var('x'), var('y'));
+
+	/** Checks that the given text isn't a valid value */
+	private static void assertNotAValue(String text)
+	{
+		try
+		{
+			Substitution.parseSymbol(text);
+		}
+		catch(InvalidValueException e)
+		{
+			assertEquals(InvalidValueException.Problem.NOT_A_VALUE, e.getProblem());
+			assertEquals(text, e.getValue());
+			return;
+		}
+		fail();
+	}
+
+	@Test
+	public void parseSymbols() throws InvalidValueException
+	{
+		// -2pi^2x
+		long[] pows = new long[Monomial.VAR_COUNT];
+		pows['x' - 'a'] = 1;
+		assertEquals(new Monomial(-2, 0, 2, 0, pows), Substitution.parseSymbol("-2pi^2x"));
+
+		// 2pi and the pi sign
+		assertEquals(new Monomial(2, 0, 1, 0), Substitution.parseSymbol("2pi"));
+		assertEquals(new Monomial(2, 0, 1, 0), Substitution.parseSymbol("2\u03c0"));
+
+		// Constants and variables with negative powers, without a factor
+		pows['x' - 'a'] = -1;
+		assertEquals(new Monomial(1, 1, 0, 1, pows), Substitution.parseSymbol("ex^-1i"));
+
+		// Powers of the same symbol are added
+		pows['x' - 'a'] = 3;
+		assertEquals(new Monomial(1, 0, 0, 0, pows), Substitution.parseSymbol("x^2x"));
+	}
+
+	@Test
+	public void invalidSymbols()
+	{
+		assertNotAValue("-");
+		assertNotAValue("");
+		assertNotAValue("x^");
+		assertNotAValue("2X");
+		assertNotAValue("x+y");
+		assertNotAValue("x^99999999999999999999");
+	}
+
+	@Test
+	public void emptyValueInList()
+	{
+		try
+		{
+			new Substitution(X_PLUS_Y).bind('x' - 'a', "1,,2");
+		}
+		catch(InvalidValueException e)
+		{
+			assertEquals(InvalidValueException.Problem.NOT_A_VALUE, e.getProblem());
+			assertEquals("", e.getValue());
+			return;
+		}
+		fail();
+	}
+
+	@Test
+	public void emptyValueAtEnd()
+	{
+		try
+		{
+			new Substitution(X_PLUS_Y).bind('x' - 'a', "1,2,");
+		}
+		catch(InvalidValueException e)
+		{
+			assertEquals(InvalidValueException.Problem.NOT_A_VALUE, e.getProblem());
+			assertEquals("", e.getValue());
+			return;
+		}
+		fail();
+	}
+
+	@Test
+	public void listLengthMismatch() throws InvalidValueException
+	{
+		Substitution substitution = new Substitution(X_PLUS_Y);
+		substitution.bind('x' - 'a', "1, 2, 3");
+		try
+		{
+			substitution.bind('y' - 'a', "1, 2");
+		}
+		catch(InvalidValueException e)
+		{
+			assertEquals(InvalidValueException.Problem.WRONG_COUNT, e.getProblem());
+			assertEquals("1, 2", e.getValue());
+			assertEquals(3, e.getExpectedCount());
+			return;
+		}
+		fail();
+	}
+
+	@Test
+	public void listsAndSingleValues() throws InvalidValueException
+	{
+		// A single value is used for every point
+		Substitution substitution = new Substitution(X_PLUS_Y);
+		substitution.bind('x' - 'a', "1, -2.5, 2pi");
+		substitution.bind('y' - 'a', "4");
+		assertEquals(3, substitution.getPointCount());
+		assertEquals("x = -2.5", substitution.describePoint(1));
+		assertEquals("x = 2pi", substitution.describePoint(2));
+
+		// Lists of the same length are combined element by element
+		substitution = new Substitution(X_PLUS_Y);
+		substitution.bind('x' - 'a', "1,2");
+		substitution.bind('y' - 'a', "3,y");
+		assertEquals(2, substitution.getPointCount());
+		assertEquals("x = 2, y = y", substitution.describePoint(1));
+	}
+
+	/** Returns the approximation of a result as text, so that exact results and approximations can be compared */
+	private static String approximate(IExpr result)
+	{
+		return EvalEngine.eval(F.N(result)).toString();
+	}
+
+	/** Checks that substituting the values of <tt>x</tt> gives the same results with the compiled formula as with Symja */
+	private static void assertPathsAgree(Expression expr, String values) throws MathException, InterruptedException
+	{
+		Substitution compiled = new Substitution(expr);
+		compiled.bind('x' - 'a', values);
+
+		// Binding a variable that isn't in the formula to a symbol leaves all points to Symja
+		Substitution symbolic = new Substitution(expr);
+		symbolic.bind('x' - 'a', values);
+		symbolic.bind('z' - 'a', "z");
+
+		IExpr[] expected = symbolic.substitute(EvaluationBudget.DEFAULT);
+		IExpr[] actual = compiled.substitute(EvaluationBudget.DEFAULT);
+		assertEquals(expected.length, actual.length);
+		for(int i = 0; i < expected.length; ++i)
+			assertEquals(compiled.describePoint(i), approximate(expected[i]), approximate(actual[i]));
+	}
+
+	@Test
+	public void compiledAndSymjaAgree() throws MathException, InterruptedException
+	{
+		// x^2 + 1 has a finite value everywhere
+		assertPathsAgree(op(Expression.Type.ADD, op(Expression.Type.POWER, var('x'), num(2)), num(1)), "1, -2, 0.5");
+
+		// The square root of a negative number is imaginary
+		assertPathsAgree(op(Expression.Type.ROOT, num(2), var('x')), "4, -4");
+
+		// 1/0 is complex infinity
+		assertPathsAgree(op(Expression.Type.DIVIDE, num(1), var('x')), "0, 2");
+
+		// 0^0 is indeterminate
+		assertPathsAgree(op(Expression.Type.POWER, var('x'), var('x')), "0, 2");
+	}
+
+	@Test
+	public void exactValuesFromSymja() throws MathException, InterruptedException
+	{
+		// sin(pi x) is exactly 0 at x = 1, not 1.2E-16
+		long[] pows = new long[Monomial.VAR_COUNT];
+		pows['x' - 'a'] = 1;
+		Expression expr = function(FunctionType.SIN, new Expression(Expression.Type.SYMBOL, new Monomial(1, 0, 1, 0, pows)));
+		assertPathsAgree(expr, "1, 2, 0.25");
+	}
+}
@@ -1,5 +1,7 @@
 package org.teaminfty.math_dragon.view;
 
+import java.math.BigInteger;
+
 import org.teaminfty.math_dragon.R;
 import org.teaminfty.math_dragon.view.math.MathSymbol;
 
@@ -259,10 +261,10 @@ public class MathSymbolEditor extends View
         reset();
         
         // Set the factor
-        factor = Long.toString(mathSymbol.getFactor());
+        factor = mathSymbol.getBigFactor().toString();
         
         // If the factor is not 0, we need to set the powers (and their visibility)
-        if(mathSymbol.getFactor() != 0)
+        if(!factor.equals("0"))
         {
             // PI
             if(mathSymbol.getPiPow() != 0)
@@ -320,7 +322,7 @@ public class MathSymbolEditor extends View
         if(factor.isEmpty())
             out.setFactor(symbolVisible() ? 1 : 0);
         else
-            out.setFactor(Long.parseLong(factor));
+            out.setFactor(new BigInteger(factor));
         
         // Set the PI power
         if(showPi)
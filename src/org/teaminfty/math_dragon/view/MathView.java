@@ -6,9 +6,11 @@ import org.teaminfty.math_dragon.R;
 import org.teaminfty.math_dragon.model.ParenthesesHelper;
 import org.teaminfty.math_dragon.view.fragments.FragmentKeyboard;
 import org.teaminfty.math_dragon.view.math.MathBinaryOperationLinear;
+import org.teaminfty.math_dragon.view.math.MathNaryOperationLinear;
 import org.teaminfty.math_dragon.view.math.MathSymbol;
 import org.teaminfty.math_dragon.view.math.MathObject;
 import org.teaminfty.math_dragon.view.math.MathObjectEmpty;
+import org.teaminfty.math_dragon.view.math.MathTransaction;
 
 import android.content.Context;
 import android.graphics.Canvas;
@@ -39,6 +41,9 @@ public class MathView extends View
     /** Whether or not this {@link MathView} is enabled (i.e. it can be edited) */
     private boolean enabled = true;
     
+    /** The cached bounding box of the top-level {@link MathObject} (<tt>null</tt> if it needs to be recalculated) */
+    private Rect mathObjectBounding = null;
+    
     public MathView(Context context)
     {
         super(context);
@@ -107,13 +112,35 @@ public class MathView extends View
         if((mathObject = newMathObject) == null)
             mathObject = new MathObjectEmpty();
         // Set the default size and the level for the MathObject
-        mathObject.setDefaultHeight((int) mathObjectDefaultHeight);
-        mathObject.setLevel(0);
+        // If a transaction is open, this is done when it's committed
+        if(!MathTransaction.isActive())
+        {
+            mathObject.setDefaultHeight((int) mathObjectDefaultHeight);
+            mathObject.setLevel(0);
+        }
+        
+        // The bounding box has changed
+        invalidateMathObjectBounding();
         
         // Redraw
         invalidate();
     }
     
+    /** Returns the bounding box of the top-level {@link MathObject}.
+     * The bounding box is only recalculated after {@link MathView#invalidateMathObjectBounding() invalidateMathObjectBounding()} has been called.
+     * @return A copy of the bounding box of the top-level {@link MathObject} */
+    private Rect getMathObjectBounding()
+    {
+        if(mathObjectBounding == null)
+            mathObjectBounding = mathObject.getBoundingBox();
+        return new Rect(mathObjectBounding);
+    }
+    
+    /** Marks the cached bounding box of the top-level {@link MathObject} as outdated.
+     * Should be called whenever the {@link MathObject} tree or its default height changes. */
+    private void invalidateMathObjectBounding()
+    { mathObjectBounding = null; }
+    
     /** Resets the scroll position */
     public void resetScroll()
     {
@@ -206,7 +233,7 @@ public class MathView extends View
         canvas.translate(scrollTranslate.x, scrollTranslate.y);
         
         // Simply draw the math object
-        Rect boundingBox = mathObject.getBoundingBox();
+        Rect boundingBox = getMathObjectBounding();
         canvas.translate((canvas.getWidth() - boundingBox.width()) / 2, (canvas.getHeight() - boundingBox.height()) / 2);
         mathObject.draw(canvas);
         
@@ -218,7 +245,7 @@ public class MathView extends View
     private void boundScrollTranslation()
     {
         // Get the bounding box of the MathObject
-        Rect boundingBox = mathObject.getBoundingBox();
+        Rect boundingBox = getMathObjectBounding();
         
         // The least size that should still be visible of the current MathObject
         final int leastHorSize = Math.min(boundingBox.width() / 2, getResources().getDimensionPixelSize(R.dimen.math_object_default_size));
@@ -261,7 +288,7 @@ public class MathView extends View
             Point clickPos = new Point((int) me.getX(), (int) me.getY());
             
             // Determine how the canvas will be translated when drawing the current MathObject
-            Rect boundingBox = mathObject.getBoundingBox();
+            Rect boundingBox = getMathObjectBounding();
             boundingBox.offset(scrollTranslate.x, scrollTranslate.y);
             boundingBox.offset((getWidth() - boundingBox.width()) / 2, (getHeight() - boundingBox.height()) / 2);
             
@@ -291,10 +318,11 @@ public class MathView extends View
                 else
                 {
                     // Add the children we click on to the queue
-                    for(int i = 0; i < info.mathObject.getChildCount(); ++i)
+                    Rect[] childBoundingBoxes = info.mathObject.getChildBoundingBoxes();
+                    for(int i = 0; i < childBoundingBoxes.length; ++i)
                     {
                         // Get the bounding box for the child
-                        Rect childBoundingBox = info.mathObject.getChildBoundingBox(i);
+                        Rect childBoundingBox = childBoundingBoxes[i];
                         childBoundingBox.offset(info.boundingBox.left, info.boundingBox.top);
 
                         // Add the child to the queue if we click inside the child
@@ -320,6 +348,7 @@ public class MathView extends View
             mathObjectDefaultHeight = Math.min(getResources().getDimensionPixelSize(R.dimen.math_object_max_default_size),
                     Math.max(mathObjectDefaultHeight * detector.getScaleFactor(), getResources().getDimensionPixelSize(R.dimen.math_object_min_default_size)));
             mathObject.setDefaultHeight((int) mathObjectDefaultHeight);
+            invalidateMathObjectBounding();
             invalidate();
             return true;
         }
@@ -435,11 +464,12 @@ public class MathView extends View
         // Determine the aiming points of the children of the MathObject that is being dragged
         // But only if they are empty children (otherwise they aren't interesting, so we set their aiming points to null)
         Point[] childAimPoints = new Point[dragMathObject.getChildCount()];
+        Rect[] dragChildBoundingBoxes = dragMathObject.getChildBoundingBoxes();
         for(int i = 0; i < childAimPoints.length; ++i)
         {
             if(dragMathObject.getChild(i) instanceof MathObjectEmpty)
             {
-                Rect rect = dragMathObject.getChildBoundingBox(i);
+                Rect rect = dragChildBoundingBoxes[i];
                 childAimPoints[i] = new Point(dragBoundingBox.left + rect.centerX(), dragBoundingBox.top + rect.centerY());
             }
             else
@@ -447,7 +477,7 @@ public class MathView extends View
         }
         
         // Determine how the canvas will be translated when drawing the current MathObject
-        Rect boundingBox = mathObject.getBoundingBox();
+        Rect boundingBox = getMathObjectBounding();
         boundingBox.offset(scrollTranslate.x, scrollTranslate.y);
         boundingBox.offset((getWidth() - boundingBox.width()) / 2, (getHeight() - boundingBox.height()) / 2);
         
@@ -457,6 +487,7 @@ public class MathView extends View
         
         // Some variables that will keep track of where we're hovering above
         int sourceChild = -1;                   // The source child that's causing the hover (-1 means the complete mathObject)
+        int operatorIndex = 0;                  // The index of the operator bounding box we're hovering over (if sourceChild != -1)
         int dst = -1;                           // The best distance (squared) we've found so far (-1 means that no hover has been found yet)
         HoverInformation currHover = null;      // The hover information of the MathObject we're currently hovering over
         
@@ -498,9 +529,10 @@ public class MathView extends View
                     if(childAimPoints[i] == null) continue;
                     
                     // Determine the distance to the centre of every operator bounding box
-                    for(Rect rect : operatorBounds)
+                    for(int j = 0; j < operatorBounds.length; ++j)
                     {
                         // If the aim point is not in the rectangle at all, we've nothing to do
+                        Rect rect = operatorBounds[j];
                         if(!rect.contains(childAimPoints[i].x, childAimPoints[i].y))
                             continue;
                         
@@ -509,6 +541,7 @@ public class MathView extends View
                         if(dst == -1 || tmpDst < dst)
                         {
                             sourceChild = i;
+                            operatorIndex = j;
                             dst = tmpDst;
                             currHover = info;
                         }
@@ -516,10 +549,11 @@ public class MathView extends View
                 }
                 
                 // Add the children we intersect with to the queue
-                for(int i = 0; i < info.mathObject.getChildCount(); ++i)
+                Rect[] childBoundingBoxes = info.mathObject.getChildBoundingBoxes();
+                for(int i = 0; i < childBoundingBoxes.length; ++i)
                 {
                     // Get the bounding box for the child
-                    Rect childBoundingBox = info.mathObject.getChildBoundingBox(i);
+                    Rect childBoundingBox = childBoundingBoxes[i];
                     childBoundingBox.offset(info.boundingBox.left, info.boundingBox.top);
                     
                     // If we don't intersect with the bounding box at all, we're not interested
@@ -541,87 +575,106 @@ public class MathView extends View
                 currHover.mathObject.setState(HoverState.HOVER);
             else
             {
-                // Determine whether or not we're dropping the whole thing in an empty box
-                if(sourceChild == -1)
+                // Rearrange the tree in a single transaction, so that the levels and sizes are only refreshed once
+                MathTransaction transaction = MathTransaction.begin();
+                try
                 {
-                    if(currHover.parent == null)
-                        setMathObjectHelper(dragMathObject);
+                    // Determine whether or not we're dropping the whole thing in an empty box
+                    if(sourceChild == -1)
+                    {
+                        if(currHover.parent == null)
+                            setMathObjectHelper(dragMathObject);
+                        else
+                            ParenthesesHelper.makeChild(currHover.parent, dragMathObject, currHover.childIndex);
+                    }
+                    else if(currHover.mathObject instanceof MathNaryOperationLinear && currHover.mathObject.getChildCount() > 2)
+                    {
+                        // In case the target is a linear n-ary operation, we only want the operands on both sides of the operator
+                        // So we group them together, and insert the MathObject that's being dragged in place of the group
+                        MathNaryOperationLinear naryOp = (MathNaryOperationLinear) currHover.mathObject;
+                        MathObject group = naryOp.group(operatorIndex);
+                        ParenthesesHelper.makeChild(dragMathObject, group, sourceChild);
+                        ParenthesesHelper.makeChild(naryOp, dragMathObject, operatorIndex);
+                    }
                     else
-                        ParenthesesHelper.makeChild(currHover.parent, dragMathObject, currHover.childIndex);
-                }
-                else
-                {
-                    // In case the target is a linear binary operation, we only want the operands directly next to it
-                    // So we rearrange the MathObject tree to make that happen
-                    if(currHover.mathObject instanceof MathBinaryOperationLinear)
                     {
-                        // The linear binary operation we're going to modify
-                        MathBinaryOperationLinear binOp = (MathBinaryOperationLinear) currHover.mathObject;
-                        
-                        // Get the right operand
-                        MathObject operand = binOp.getRight();
-                        MathObject newParent = null;
-                        while(operand instanceof MathBinaryOperationLinear)
+                        // In case the target is a linear binary operation, we only want the operands directly next to it
+                        // So we rearrange the MathObject tree to make that happen
+                        if(currHover.mathObject instanceof MathBinaryOperationLinear)
                         {
-                            newParent = operand;
-                            operand = operand.getChild(0);
-                        }
+                            // The linear binary operation we're going to modify
+                            MathBinaryOperationLinear binOp = (MathBinaryOperationLinear) currHover.mathObject;
                         
-                        // Change the structure of the MathObject tree (if necessary)
-                        if(newParent != null)
-                        {
-                            MathObject newSuperParent = binOp.getRight();
-                            binOp.setRight(operand);
-                            newParent.setChild(0, binOp);
+                            // Get the right operand
+                            MathObject operand = binOp.getRight();
+                            MathObject newParent = null;
+                            while(operand instanceof MathBinaryOperationLinear)
+                            {
+                                newParent = operand;
+                                operand = operand.getChild(0);
+                            }
+                        
+                            // Change the structure of the MathObject tree (if necessary)
+                            if(newParent != null)
+                            {
+                                MathObject newSuperParent = binOp.getRight();
+                                binOp.setRight(operand);
+                                newParent.setChild(0, binOp);
                             
-                            if(currHover.parent == null)
-                                setMathObjectHelper(newSuperParent);
-                            else
-                                ParenthesesHelper.makeChild(currHover.parent, newSuperParent, currHover.childIndex);
+                                if(currHover.parent == null)
+                                    setMathObjectHelper(newSuperParent);
+                                else
+                                    ParenthesesHelper.makeChild(currHover.parent, newSuperParent, currHover.childIndex);
                             
-                            currHover.parent = newParent;
-                            currHover.childIndex = 0;
-                        }
+                                currHover.parent = newParent;
+                                currHover.childIndex = 0;
+                            }
                         
-                        // Now we do the same thing for the left operand
-                        operand = binOp.getLeft();
-                        newParent = null;
-                        while(operand instanceof MathBinaryOperationLinear)
-                        {
-                            newParent = operand;
-                            operand = operand.getChild(1);
-                        }
+                            // Now we do the same thing for the left operand
+                            operand = binOp.getLeft();
+                            newParent = null;
+                            while(operand instanceof MathBinaryOperationLinear)
+                            {
+                                newParent = operand;
+                                operand = operand.getChild(1);
+                            }
                         
-                        // Change the structure of the MathObject tree (if necessary)
-                        if(newParent != null)
-                        {
-                            MathObject newSuperParent = binOp.getLeft();
-                            binOp.setLeft(operand);
-                            newParent.setChild(1, binOp);
+                            // Change the structure of the MathObject tree (if necessary)
+                            if(newParent != null)
+                            {
+                                MathObject newSuperParent = binOp.getLeft();
+                                binOp.setLeft(operand);
+                                newParent.setChild(1, binOp);
                             
-                            if(currHover.parent == null)
-                                setMathObjectHelper(newSuperParent);
-                            else
-                                ParenthesesHelper.makeChild(currHover.parent, newSuperParent, currHover.childIndex);
+                                if(currHover.parent == null)
+                                    setMathObjectHelper(newSuperParent);
+                                else
+                                    ParenthesesHelper.makeChild(currHover.parent, newSuperParent, currHover.childIndex);
                             
-                            currHover.parent = newParent;
-                            currHover.childIndex = 1;
+                                currHover.parent = newParent;
+                                currHover.childIndex = 1;
+                            }
                         }
+                    
+                        // Insert the MathObject into to MathObject tree
+                        ParenthesesHelper.makeChild(dragMathObject, currHover.mathObject, sourceChild);
+                        if(currHover.parent == null)
+                            setMathObjectHelper(dragMathObject);
+                        else
+                            ParenthesesHelper.makeChild(currHover.parent, dragMathObject, currHover.childIndex);
                     }
                     
-                    // Insert the MathObject into to MathObject tree
-                    ParenthesesHelper.makeChild(dragMathObject, currHover.mathObject, sourceChild);
-                    if(currHover.parent == null)
-                        setMathObjectHelper(dragMathObject);
-                    else
-                        ParenthesesHelper.makeChild(currHover.parent, dragMathObject, currHover.childIndex);
+                    // Make sure every MathObject has the right level and size
+                    transaction.commit(mathObject, 0, (int) mathObjectDefaultHeight);
                 }
+                finally
+                { transaction.end(); }
                 
                 // Make sure the MathObject and all of its descendants have the right state
                 setHoverState(mathObject, HoverState.NONE);
                 
-                // Make sure every MathObject has the right level
-                mathObject.setLevel(0);
+                // The bounding box has changed
+                invalidateMathObjectBounding();
                 
                 // Notify the listener of the change
                 mathObjectChanged();
@@ -649,7 +702,10 @@ public class MathView extends View
             if(mathObjectInfo.parent == null)
                 setMathObjectHelper(mathSymbol);
             else
+            {
                 mathObjectInfo.parent.setChild(mathObjectInfo.childIndex, mathSymbol);
+                invalidateMathObjectBounding();
+            }
             
             // Redraw
             invalidate();
@@ -0,0 +1,388 @@
+package org.teaminfty.math_dragon.view;
+
+import java.util.Arrays;
+
+import org.teaminfty.math_dragon.R;
+import org.teaminfty.math_dragon.model.AdaptiveSampler;
+import org.teaminfty.math_dragon.model.CompiledFormula;
+import org.teaminfty.math_dragon.model.Expression;
+import org.teaminfty.math_dragon.model.SymbolHelper;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.os.AsyncTask;
+import android.util.AttributeSet;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+
+/** A view that plots a formula with one variable.
+ * The formula is sampled adaptively in a separate thread: a coarse plot is drawn first, which is refined where it bends or jumps.
+ * While the plot is panned or zoomed, the samples that are known already are drawn until the new ones are ready. */
+public class PlotView extends View
+{
+    /** The formula that is plotted (or <tt>null</tt> if there is none) */
+    private CompiledFormula formula = null;
+
+    /** The index of the variable of the formula */
+    private int variable = 0;
+
+    /** The visible range of the variable */
+    private double xMin = -10, xMax = 10;
+
+    /** The visible range of the values of the formula */
+    private double yMin = -10, yMax = 10;
+
+    /** Whether the range of the values should still be fitted to the samples */
+    private boolean fitY = true;
+
+    /** The samples that are drawn (or <tt>null</tt> if there are none yet) */
+    private AdaptiveSampler.Samples samples = null;
+
+    /** The sampling that is running (or <tt>null</tt> if there is none) */
+    private Sampler sampler = null;
+
+    /** The time (in milliseconds) the plot shouldn't be panned or zoomed before it's sampled again */
+    private static final long RESAMPLE_DELAY = 100;
+
+    /** The maximum distance (in pixels) between the plot and the lines between the samples */
+    private static final double TOLERANCE = 0.5;
+
+    /** The GestureDetector that is used for detecting panning */
+    private GestureDetector gestureDetector = null;
+
+    /** The ScaleGestureDetector that is used for detecting zooming */
+    private ScaleGestureDetector scaleGestureDetector = null;
+
+    /** The paint that is used to draw the axes */
+    private Paint axesPaint = new Paint();
+
+    /** The paint that is used to draw the plot */
+    private Paint plotPaint = new Paint();
+
+    /** The path that is used to draw the plot */
+    private Path path = new Path();
+
+    public PlotView(Context context)
+    {
+        super(context);
+        initPlotView();
+    }
+
+    public PlotView(Context context, AttributeSet attrs)
+    {
+        super(context, attrs);
+        initPlotView();
+    }
+
+    public PlotView(Context context, AttributeSet attrs, int defStyleAttr)
+    {
+        super(context, attrs, defStyleAttr);
+        initPlotView();
+    }
+
+    /** Initialises the paints and the gesture detectors */
+    private void initPlotView()
+    {
+        axesPaint.setColor(getResources().getColor(R.color.gray));
+        axesPaint.setStrokeWidth(getResources().getDimensionPixelSize(R.dimen.math_object_line_width) / 2);
+        plotPaint.setColor(getResources().getColor(R.color.blue));
+        plotPaint.setStyle(Paint.Style.STROKE);
+        plotPaint.setAntiAlias(true);
+        plotPaint.setStrokeWidth(getResources().getDimensionPixelSize(R.dimen.math_object_line_width));
+
+        gestureDetector = new GestureDetector(getContext(), new GestureListener());
+        scaleGestureDetector = new ScaleGestureDetector(getContext(), new ScaleListener());
+    }
+
+    /** Sets the formula that is to be plotted.
+     * Only formulas with exactly one variable that can be compiled (see {@link CompiledFormula}) can be plotted.
+     * @param expr The expression of the formula
+     * @return <tt>true</tt> if the formula can be plotted, <tt>false</tt> otherwise */
+    public boolean setFormula(Expression expr)
+    {
+        // Forget the old plot
+        cancelSampling();
+        formula = null;
+        samples = null;
+        fitY = true;
+        invalidate();
+
+        // Check if there's exactly one variable
+        final int varMask = SymbolHelper.getVarMask(expr);
+        if(Integer.bitCount(varMask) != 1 || (formula = CompiledFormula.compile(expr)) == null)
+            return false;
+        variable = Integer.numberOfTrailingZeros(varMask);
+        startSampling();
+        return true;
+    }
+
+    /** Samples the formula again */
+    private Runnable resample = new Runnable()
+    {
+        @Override
+        public void run()
+        { startSampling(); }
+    };
+
+    /** Starts sampling the visible part of the plot, cancelling the sampling that is still running (if any) */
+    private void startSampling()
+    {
+        cancelSampling();
+        if(formula == null)
+            return;
+
+        // Also sample the parts left and right of the visible part, so that they can be shown right away when panning
+        final double width = xMax - xMin;
+        sampler = new Sampler(new AdaptiveSampler(formula, variable), xMin - width, xMax + width);
+        sampler.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /** Cancels the sampling that is running or about to start (if any) */
+    private void cancelSampling()
+    {
+        removeCallbacks(resample);
+        if(sampler == null)
+            return;
+        sampler.cancel(true);
+        sampler = null;
+    }
+
+    /** Samples the plot again after it hasn't been panned or zoomed for a moment */
+    private void rangeChanged()
+    {
+        removeCallbacks(resample);
+        postDelayed(resample, RESAMPLE_DELAY);
+        invalidate();
+    }
+
+    /** Class that samples the formula in a separate thread, publishing the samples after every pass */
+    private class Sampler extends AsyncTask<Void, AdaptiveSampler.Samples, Void>
+    {
+        /** The sampler */
+        private final AdaptiveSampler adaptiveSampler;
+
+        /** The range of the variable that is sampled */
+        private final double from, to;
+
+        /** The maximum distance between the plot and the lines between the samples */
+        private volatile double tolerance;
+
+        /** The maximum difference between neighbouring samples */
+        private volatile double maxJump;
+
+        /** The minimum distance between samples */
+        private final double minWidth;
+
+        /** Constructor
+         * @param adaptiveSampler The sampler
+         * @param from The lowest value of the variable
+         * @param to The highest value of the variable */
+        public Sampler(AdaptiveSampler adaptiveSampler, double from, double to)
+        {
+            this.adaptiveSampler = adaptiveSampler;
+            this.from = from;
+            this.to = to;
+            setScale();
+            minWidth = (xMax - xMin) / Math.max(getWidth(), 1) / 4;
+        }
+
+        /** Converts the tolerances from pixels to values, using the current range of the values */
+        private void setScale()
+        {
+            final double yPerPixel = (yMax - yMin) / Math.max(getHeight(), 1);
+            tolerance = TOLERANCE * yPerPixel;
+            maxJump = getHeight() * yPerPixel / 4;
+        }
+
+        @Override
+        protected Void doInBackground(Void... args)
+        {
+            try
+            {
+                // A coarse plot first
+                AdaptiveSampler.Samples result = adaptiveSampler.sampleUniformly(from, to);
+                publishProgress(result);
+
+                // Refine it until it's precise enough
+                while(!isCancelled() && (result = adaptiveSampler.refine(result, tolerance, maxJump, minWidth)) != null)
+                    publishProgress(result);
+            }
+            catch(InterruptedException e)
+            {
+                // We've been cancelled
+            }
+            return null;
+        }
+
+        @Override
+        protected void onProgressUpdate(AdaptiveSampler.Samples... result)
+        {
+            if(sampler != this)
+                return;
+            samples = result[0];
+
+            // Fit the values on the first coarse plot, refining is done with the fitted range
+            if(fitY)
+            {
+                fitY = false;
+                fitRange();
+                setScale();
+            }
+            invalidate();
+        }
+
+        @Override
+        protected void onPostExecute(Void result)
+        {
+            if(sampler == this)
+                sampler = null;
+        }
+    }
+
+    /** Fits the range of the values to the visible samples.
+     * The highest and lowest 5% of the values are ignored, so that asymptotes don't squash the rest of the plot. */
+    private void fitRange()
+    {
+        // Collect the visible values
+        double[] values = new double[samples.size()];
+        int count = 0;
+        for(int i = 0; i < samples.size(); ++i)
+        {
+            final double y = samples.getY(i);
+            if(samples.getX(i) >= xMin && samples.getX(i) <= xMax && !Double.isNaN(y) && !Double.isInfinite(y))
+                values[count++] = y;
+        }
+        if(count == 0)
+            return;
+
+        // Use the range of the values with a small margin, and make sure it isn't empty
+        Arrays.sort(values, 0, count);
+        double low = values[count / 20];
+        double high = values[count - 1 - count / 20];
+        final double margin = high > low ? (high - low) / 10 : 1;
+        yMin = low - margin;
+        yMax = high + margin;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas)
+    {
+        final float width = getWidth();
+        final float height = getHeight();
+
+        // Draw the axes (if they're visible)
+        final float xAxis = toScreenY(0);
+        final float yAxis = toScreenX(0);
+        if(xAxis >= 0 && xAxis <= height)
+            canvas.drawLine(0, xAxis, width, xAxis, axesPaint);
+        if(yAxis >= 0 && yAxis <= width)
+            canvas.drawLine(yAxis, 0, yAxis, height, axesPaint);
+
+        // Draw the plot, lines that jump across the whole view are asymptotes
+        if(samples == null)
+            return;
+        path.reset();
+        boolean connected = false;
+        float lastY = 0;
+        for(int i = 0; i < samples.size(); ++i)
+        {
+            final double y = samples.getY(i);
+            if(Double.isNaN(y) || Double.isInfinite(y))
+            {
+                connected = false;
+                continue;
+            }
+
+            // Keep the coordinates within reasonable bounds, so that the path can be drawn
+            final float screenX = toScreenX(samples.getX(i));
+            final float screenY = Math.max(-height, Math.min(2 * height, toScreenY(y)));
+            if(connected && Math.abs(screenY - lastY) < height)
+                path.lineTo(screenX, screenY);
+            else
+                path.moveTo(screenX, screenY);
+            connected = true;
+            lastY = screenY;
+        }
+        canvas.drawPath(path, plotPaint);
+    }
+
+    /** Converts a value of the variable to a horizontal position on the screen
+     * @param x The value of the variable
+     * @return The horizontal position */
+    private float toScreenX(double x)
+    { return (float) ((x - xMin) / (xMax - xMin) * getWidth()); }
+
+    /** Converts a value of the formula to a vertical position on the screen
+     * @param y The value of the formula
+     * @return The vertical position */
+    private float toScreenY(double y)
+    { return (float) ((yMax - y) / (yMax - yMin) * getHeight()); }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh)
+    {
+        // The tolerances depend on the size
+        if(formula != null && (w != oldw || h != oldh))
+            rangeChanged();
+    }
+
+    @Override
+    protected void onDetachedFromWindow()
+    {
+        // Nobody will see the plot anymore
+        cancelSampling();
+        super.onDetachedFromWindow();
+    }
+
+    private class GestureListener extends GestureDetector.SimpleOnGestureListener
+    {
+        @Override
+        public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY)
+        {
+            // Move the visible ranges
+            final double dx = distanceX / getWidth() * (xMax - xMin);
+            final double dy = distanceY / getHeight() * (yMax - yMin);
+            xMin += dx;
+            xMax += dx;
+            yMin -= dy;
+            yMax -= dy;
+            rangeChanged();
+
+            // Always return true
+            return true;
+        }
+    }
+
+    private class ScaleListener extends ScaleGestureDetector.SimpleOnScaleGestureListener
+    {
+        @Override
+        public boolean onScale(ScaleGestureDetector detector)
+        {
+            // Zoom around the focus point
+            final double scale = 1 / detector.getScaleFactor();
+            final double focusX = xMin + detector.getFocusX() / getWidth() * (xMax - xMin);
+            final double focusY = yMax - detector.getFocusY() / getHeight() * (yMax - yMin);
+            xMin = focusX + (xMin - focusX) * scale;
+            xMax = focusX + (xMax - focusX) * scale;
+            yMin = focusY + (yMin - focusY) * scale;
+            yMax = focusY + (yMax - focusY) * scale;
+            rangeChanged();
+            return true;
+        }
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent me)
+    {
+        // Pass the touch event to the gesture detectors
+        gestureDetector.onTouchEvent(me);
+        scaleGestureDetector.onTouchEvent(me);
+
+        // Always consume the event
+        return true;
+    }
+}
@@ -1,18 +1,31 @@
 package org.teaminfty.math_dragon.view.fragments;
 
+import org.matheclipse.core.eval.EvalEngine;
+import org.matheclipse.core.interfaces.IExpr;
 import org.teaminfty.math_dragon.R;
+import org.teaminfty.math_dragon.exceptions.MathException;
+import org.teaminfty.math_dragon.model.ApproximationHelper;
+import org.teaminfty.math_dragon.model.EvaluationBudget;
+import org.teaminfty.math_dragon.model.Expression;
+import org.teaminfty.math_dragon.model.ParenthesesHelper;
 import org.teaminfty.math_dragon.view.MathView;
+import org.teaminfty.math_dragon.view.PlotView;
 import org.teaminfty.math_dragon.view.math.MathObject;
 
 import android.app.DialogFragment;
 import android.content.DialogInterface;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.Window;
 import android.view.WindowManager;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
 import android.widget.ImageButton;
+import android.widget.Spinner;
 import android.widget.TextView;
 
 public class FragmentEvaluation extends DialogFragment
@@ -20,12 +33,39 @@ public class FragmentEvaluation extends DialogFragment
     /** The {@link MathView} in this fragment */
     private MathView mathView = null;
     
+    /** The {@link PlotView} in this fragment */
+    private PlotView plotView = null;
+    
     /** The {@link MathObject} to show when the {@link MathView} is created */
     private MathObject showMathObject = null;
     
     /** The evaluation type, <tt>true</tt> if an exact evaluation is shown, <tt>false</tt> for an approximation */
     private boolean exactEvaluation = true;
     
+    /** The {@link TextView} that shows the approximation */
+    private TextView textViewApproximation = null;
+    
+    /** The expression that is approximated (or <tt>null</tt> if no approximation is shown) */
+    private Expression approximatedExpr = null;
+    
+    /** The approximation with double precision */
+    private String approximation = null;
+    
+    /** The refined approximations, one for every precision in {@link ApproximationHelper#PRECISIONS} (<tt>null</tt> if it isn't known yet) */
+    private String[] refinements = new String[ApproximationHelper.PRECISIONS.length];
+    
+    /** The index of the precision the user has selected in {@link ApproximationHelper#PRECISIONS} */
+    private int precisionIndex = 0;
+    
+    /** The refinement that is running (or <tt>null</tt> if there is none) */
+    private Refiner refiner = null;
+    
+    /** Whether a refinement has failed, in which case the approximation isn't refined any further */
+    private boolean refinementFailed = false;
+    
+    /** The handler that is used to time out refinements */
+    private Handler handler = new Handler();
+    
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState)
     {
@@ -42,24 +82,223 @@ public class FragmentEvaluation extends DialogFragment
         if(showMathObject != null)
             mathView.setMathObject(showMathObject);
         
+        // Plot the formula if it has one variable
+        plotView = (PlotView) view.findViewById(R.id.plotView);
+        if(showMathObject != null)
+            plot(showMathObject);
+        
         // The close button
         ((ImageButton) view.findViewById(R.id.btn_close)).setOnClickListener(new OnCloseBtnClickListener());
         
         // The title
         ((TextView) view.findViewById(R.id.textViewEvalType)).setText(exactEvaluation ? R.string.evaluate_exact : R.string.evaluate_approximate);
         
+        // The approximation and its precision
+        if(approximatedExpr != null)
+        {
+            view.findViewById(R.id.layoutApproximation).setVisibility(View.VISIBLE);
+            textViewApproximation = (TextView) view.findViewById(R.id.textViewApproximation);
+            String[] precisions = new String[ApproximationHelper.PRECISIONS.length];
+            for(int i = 0; i < precisions.length; ++i)
+                precisions[i] = getString(R.string.precision_digits, ApproximationHelper.PRECISIONS[i]);
+            ArrayAdapter<String> adapter = new ArrayAdapter<String>(getActivity(), android.R.layout.simple_spinner_item, precisions);
+            adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+            Spinner spinnerPrecision = (Spinner) view.findViewById(R.id.spinnerPrecision);
+            spinnerPrecision.setAdapter(adapter);
+            spinnerPrecision.setSelection(precisionIndex);
+            spinnerPrecision.setOnItemSelectedListener(new OnPrecisionSelectedListener());
+            updateApproximation();
+        }
+        
         // Return the content view
         return view;
     }
     
     /** Sets the {@link MathObject} that is to be shown
-     * @param mathObject The {@link MathObject} that is to be shown */
+     * @param mathObject The {@link MathObject} that is to be shown, with its parentheses set (see {@link ParenthesesHelper#setParentheses(MathObject)}) */
     public void showMathObject(MathObject mathObject)
     {
     	if(mathView == null)
     	    showMathObject = mathObject;
     	else
+    	{
     	    mathView.setMathObject(mathObject);
+    	    plot(mathObject);
+    	}
+    }
+    
+    /** Plots the given {@link MathObject}, the plot is only shown if the {@link MathObject} can be plotted
+     * @param mathObject The {@link MathObject} that is to be plotted */
+    private void plot(MathObject mathObject)
+    {
+        plotView.setVisibility(plotView.setFormula(mathObject.getExpression()) ? View.VISIBLE : View.GONE);
+    }
+
+    /** Sets the approximation that is to be shown below the {@link MathObject}.
+     * While the dialog is shown, the approximation is refined in the background to the precision the user has selected.
+     * @param expr The expression that is approximated
+     * @param approximation The approximation of <tt>expr</tt> with double precision (see {@link ApproximationHelper#approximate(Expression, EvaluationBudget)}) */
+    public void showApproximation(Expression expr, IExpr approximation)
+    {
+        // Forget everything about the old approximation
+        cancelRefinement();
+        approximatedExpr = expr;
+        this.approximation = ApproximationHelper.toString(approximation);
+        refinements = new String[ApproximationHelper.PRECISIONS.length];
+        refinementFailed = false;
+        
+        // Show the new approximation
+        if(textViewApproximation != null)
+            updateApproximation();
+    }
+    
+    /** Shows the most precise approximation that is known, up to the selected precision, and refines it if it's not precise enough */
+    private void updateApproximation()
+    {
+        // Show the most precise approximation
+        String text = approximation;
+        for(int i = 0; i <= precisionIndex; ++i)
+        {
+            if(refinements[i] != null)
+                text = refinements[i];
+        }
+        textViewApproximation.setText(text);
+        
+        // Refine the approximation to the next precision we don't know yet
+        if(refiner != null || refinementFailed)
+            return;
+        for(int i = 0; i <= precisionIndex; ++i)
+        {
+            if(refinements[i] == null)
+            {
+                refiner = new Refiner(approximatedExpr, i);
+                refiner.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+                return;
+            }
+        }
+    }
+    
+    /** Cancels the refinement that is running (if any) */
+    private void cancelRefinement()
+    {
+        if(refiner == null)
+            return;
+        refiner.stop();
+        refiner = null;
+    }
+    
+    /** Refines an approximation to one of the {@link ApproximationHelper#PRECISIONS} in a separate thread */
+    private class Refiner extends AsyncTask<Void, Void, String>
+    {
+        /** The expression that is approximated */
+        private final Expression expr;
+        
+        /** The index of the precision in {@link ApproximationHelper#PRECISIONS} */
+        private final int index;
+        
+        /** The limits of the refinement */
+        private final EvaluationBudget budget = EvaluationBudget.DEFAULT;
+        
+        /** Gives up when the refinement takes too long */
+        private Runnable timeout = new Runnable()
+        {
+            @Override
+            public void run()
+            { timedOut(); }
+        };
+        
+        /** The engine that evaluates with Symja (or <tt>null</tt> if the refinement hasn't started yet) */
+        private volatile EvalEngine engine = null;
+        
+        /** Whether the refinement has been stopped (see {@link Refiner#stop()}) */
+        private volatile boolean stopped = false;
+        
+        /** Constructor
+         * @param expr The expression that is to be approximated
+         * @param index The index of the precision in {@link ApproximationHelper#PRECISIONS} */
+        public Refiner(Expression expr, int index)
+        {
+            this.expr = expr;
+            this.index = index;
+        }
+        
+        @Override
+        protected void onPreExecute()
+        { handler.postDelayed(timeout, budget.getTimeLimit()); }
+        
+        /** Stops the refinement: Symja is asked to stop and the result is thrown away */
+        public void stop()
+        {
+            stopped = true;
+            final EvalEngine runningEngine = engine;
+            if(runningEngine != null)
+                runningEngine.stopRequest();
+            cancel(true);
+        }
+        
+        /** Gives up the refinement since it takes too long, the approximation we've got will have to do */
+        private void timedOut()
+        {
+            stop();
+            if(refiner != this)
+                return;
+            refiner = null;
+            refinementFailed = true;
+        }
+        
+        @Override
+        protected String doInBackground(Void... args)
+        {
+            // Evaluate with an engine of our own, so that stopping it doesn't affect other evaluations on this thread
+            final EvalEngine oldEngine = EvalEngine.get();
+            engine = new EvalEngine();
+            EvalEngine.set(engine);
+            if(stopped)
+                engine.stopRequest();
+            
+            try
+            {
+                IExpr result = ApproximationHelper.approximate(expr, ApproximationHelper.PRECISIONS[index], budget);
+                return isCancelled() ? null : ApproximationHelper.toString(result);
+            }
+            catch(MathException e)
+            {
+                // The approximation we've got will have to do
+            }
+            catch(RuntimeException e)
+            {
+                // Symja throws when it's asked to stop, the result is thrown away anyway
+                if(!stopped)
+                    throw e;
+            }
+            finally
+            {
+                EvalEngine.set(oldEngine);
+            }
+            return null;
+        }
+        
+        @Override
+        protected void onPostExecute(String result)
+        {
+            handler.removeCallbacks(timeout);
+            refiner = null;
+            if(result == null)
+                refinementFailed = true;
+            else
+                refinements[index] = result;
+            
+            // Show the refinement and continue with the next one
+            if(textViewApproximation != null)
+                updateApproximation();
+        }
+        
+        @Override
+        protected void onCancelled(String result)
+        {
+            // The result (if any) is thrown away
+            handler.removeCallbacks(timeout);
+        }
     }
 
     /** Sets whether an approximation or exact evaluation is shown.
@@ -87,7 +326,28 @@ public class FragmentEvaluation extends DialogFragment
     @Override
     public void onDismiss(DialogInterface dialog)
     {
+        // Nobody will see the refinements anymore
+        cancelRefinement();
         mathView = null;
+        plotView = null;
+        textViewApproximation = null;
+    }
+    
+    private class OnPrecisionSelectedListener implements AdapterView.OnItemSelectedListener
+    {
+        @Override
+        public void onItemSelected(AdapterView<?> parent, View view, int position, long id)
+        {
+            // Stop refining beyond the selected precision
+            precisionIndex = position;
+            if(refiner != null && refiner.index > precisionIndex)
+                cancelRefinement();
+            updateApproximation();
+        }
+
+        @Override
+        public void onNothingSelected(AdapterView<?> parent)
+        { }
     }
     
     private class OnCloseBtnClickListener implements View.OnClickListener
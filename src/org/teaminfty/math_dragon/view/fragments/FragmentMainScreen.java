@@ -2,17 +2,15 @@ package org.teaminfty.math_dragon.view.fragments;
 
 import java.util.ArrayList;
 
-import javax.xml.parsers.ParserConfigurationException;
-
 import org.teaminfty.math_dragon.R;
-import org.teaminfty.math_dragon.exceptions.ParseException;
+import org.teaminfty.math_dragon.model.Expression;
+import org.teaminfty.math_dragon.model.ExpressionInterner;
 import org.teaminfty.math_dragon.view.MathView;
 import org.teaminfty.math_dragon.view.fragments.FragmentKeyboard.OnConfirmListener;
 import org.teaminfty.math_dragon.view.math.MathFactory;
 import org.teaminfty.math_dragon.view.math.MathSymbol;
 import org.teaminfty.math_dragon.view.math.MathObject;
 import org.teaminfty.math_dragon.view.math.MathObjectEmpty;
-import org.w3c.dom.Document;
 import android.app.Fragment;
 import android.os.Bundle;
 import android.view.LayoutInflater;
@@ -25,8 +23,12 @@ public class FragmentMainScreen extends Fragment
     /** The {@link MathView} in this fragment */
     private MathView mathView = null;
     
-    /** The undo/redo history, each state is stored as a XML document */
-    private ArrayList<Document> history = new ArrayList<Document>();
+    /** The undo/redo history, each state is stored as the {@link Expression} of the {@link MathObject}.
+     * Consecutive states share all subexpressions that didn't change. */
+    private ArrayList<Expression> history = new ArrayList<Expression>();
+    
+    /** Interns the history states, so equal subexpressions in different states are stored only once */
+    private ExpressionInterner historyInterner = new ExpressionInterner();
     
     /** The current position in the history */
     private int historyPos = 0;
@@ -51,15 +53,8 @@ public class FragmentMainScreen extends Fragment
         mathView.setOnMathObjectChangeListener(new MathObjectChangeListener());
         
         // Set the first history entry (i.e. an empty element)
-        try
-        {
-            Document doc = MathObject.createXMLDocument();
-            mathView.getMathObject().writeToXML(doc, doc.getDocumentElement());
-            history.add(doc);
-            historyPos = history.size() - 1; 
-        }
-        catch(ParserConfigurationException e)
-        { /* Ignore */ }
+        history.add(historyInterner.intern(mathView.getMathObject().getExpression()));
+        historyPos = history.size() - 1;
         
         // Return the view
         return view;
@@ -99,17 +94,10 @@ public class FragmentMainScreen extends Fragment
         if(pos < 0 || pos >= history.size())
             return;
         
-        // Get the MathObject at the given history position
-        try
-        {
-            mathView.setMathObjectSilent(MathFactory.fromXML(history.get(pos)));
-            historyPos = pos;
-        }
-        catch(ParseException e)
-        {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        }
+        // Show the MathObject at the given history position
+        mathView.setMathObjectSilent(MathFactory.fromExpression(history.get(pos), historyInterner));
+        historyPos = pos;
+        formulaChanged();
         
         // Refresh the state of the undo/redo buttons
         refreshUndoRedoButtons();
@@ -149,27 +137,45 @@ public class FragmentMainScreen extends Fragment
         {
             // Remove the history from the current position
             if(historyPos + 1 < history.size())
-                history.subList(historyPos + 1, history.size()).clear();
-
-            // Add the current MathObject to the history
-            try
             {
-                Document doc = MathObject.createXMLDocument();
-                mathObject.writeToXML(doc, doc.getDocumentElement());
-                history.add(doc);
-                historyPos = history.size() - 1; 
-            }
-            catch(ParserConfigurationException e)
-            {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
+                history.subList(historyPos + 1, history.size()).clear();
+                
+                // Forget the expressions of the states that were removed by interning the remaining states again
+                historyInterner = new ExpressionInterner();
+                for(int i = 0; i < history.size(); ++i)
+                    history.set(i, historyInterner.intern(history.get(i)));
             }
+
+            // Add the current expression to the history
+            history.add(historyInterner.intern(mathObject.getExpression()));
+            historyPos = history.size() - 1;
             
             // Refresh the state of the undo/redo buttons
             refreshUndoRedoButtons();
+            
+            // Notify the listener
+            formulaChanged();
         }
     }
     
+    /** Interface definition for a callback to be invoked when the formula has changed (by editing it, or by undo/redo) */
+    public interface OnFormulaChangeListener
+    { public void formulaChanged(); }
+
+    /** The formula change listener */
+    private OnFormulaChangeListener onFormulaChange = null;
+    
+    /** Set the formula change listener */
+    public void setOnFormulaChangeListener(OnFormulaChangeListener listener)
+    { onFormulaChange = listener; }
+    
+    /** Notifies the formula change listener (if any) */
+    private void formulaChanged()
+    {
+        if(onFormulaChange != null)
+            onFormulaChange.formulaChanged();
+    }
+    
     /** The click listener that handles clicks from the undo/redo buttons */
     private class UndoRedoClickListener implements View.OnClickListener
     {
@@ -0,0 +1,332 @@
+package org.teaminfty.math_dragon.view.fragments;
+
+import org.matheclipse.core.eval.EvalEngine;
+import org.matheclipse.core.interfaces.IExpr;
+import org.teaminfty.math_dragon.R;
+import org.teaminfty.math_dragon.exceptions.BudgetExceededException;
+import org.teaminfty.math_dragon.exceptions.InvalidValueException;
+import org.teaminfty.math_dragon.exceptions.MathException;
+import org.teaminfty.math_dragon.model.ApproximationHelper;
+import org.teaminfty.math_dragon.model.EvaluationBudget;
+import org.teaminfty.math_dragon.model.Expression;
+import org.teaminfty.math_dragon.model.Substitution;
+import org.teaminfty.math_dragon.model.SymbolHelper;
+
+import android.app.DialogFragment;
+import android.content.DialogInterface;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.Handler;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.Window;
+import android.view.WindowManager;
+import android.widget.Button;
+import android.widget.EditText;
+import android.widget.ImageButton;
+import android.widget.LinearLayout;
+import android.widget.TextView;
+import android.widget.Toast;
+
+public class FragmentSubstitute extends DialogFragment
+{
+    /** The expression of the formula the values are substituted in */
+    private Expression expr = null;
+
+    /** The indices of the variables of the formula (0 for <tt>a</tt>, 25 for <tt>z</tt>) */
+    private int[] vars = new int[0];
+
+    /** The {@link EditText}s with the values of the variables, one for every variable in {@link FragmentSubstitute#vars vars} */
+    private EditText[] editTexts = null;
+
+    /** The {@link TextView} that shows the results */
+    private TextView textViewResults = null;
+
+    /** The substitution that is running (or <tt>null</tt> if there is none) */
+    private Substituter substituter = null;
+
+    /** The handler that is used to time out substitutions */
+    private Handler handler = new Handler();
+
+    @Override
+    public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState)
+    {
+        // Some dialog settings
+        getDialog().getWindow().requestFeature(Window.FEATURE_NO_TITLE);
+        getDialog().setCanceledOnTouchOutside(true);
+
+        // Inflate the layout for this fragment
+        View view = inflater.inflate(R.layout.fragment_substitute, container, false);
+
+        // The close button
+        ((ImageButton) view.findViewById(R.id.btn_close)).setOnClickListener(new OnCloseBtnClickListener());
+
+        // Add a row for every variable
+        LinearLayout layoutBindings = (LinearLayout) view.findViewById(R.id.layoutBindings);
+        editTexts = new EditText[vars.length];
+        for(int i = 0; i < vars.length; ++i)
+        {
+            inflater.inflate(R.layout.substitute_binding_row, layoutBindings, true);
+            View row = layoutBindings.getChildAt(layoutBindings.getChildCount() - 1);
+            ((TextView) row.findViewById(R.id.textViewVariable)).setText((char) ('a' + vars[i]) + " = ");
+            editTexts[i] = (EditText) row.findViewById(R.id.editTextValues);
+        }
+
+        // The substitute button and the results
+        Button btnSubstitute = (Button) view.findViewById(R.id.btn_substitute_confirm);
+        btnSubstitute.setOnClickListener(new OnSubstituteBtnClickListener());
+        textViewResults = (TextView) view.findViewById(R.id.textViewResults);
+        if(vars.length == 0)
+        {
+            btnSubstitute.setVisibility(View.GONE);
+            textViewResults.setText(R.string.substitute_no_variables);
+        }
+
+        // Return the content view
+        return view;
+    }
+
+    /** Sets the formula the values are substituted in.
+     * Should be called before {@link FragmentSubstitute#show(android.app.FragmentManager, String) show()} is called to have effect.
+     * @param expr The expression of the formula */
+    public void setExpression(Expression expr)
+    {
+        this.expr = expr;
+
+        // Remember the variables of the formula
+        final int varMask = SymbolHelper.getVarMask(expr);
+        vars = new int[Integer.bitCount(varMask)];
+        for(int mask = varMask, i = 0; mask != 0; mask &= mask - 1)
+            vars[i++] = Integer.numberOfTrailingZeros(mask);
+    }
+
+    /** Starts substituting the values the user has entered, cancelling the substitution that is still running (if any) */
+    private void startSubstitution()
+    {
+        cancelSubstitution();
+
+        // Bind the variables that have values
+        Substitution substitution = new Substitution(expr);
+        try
+        {
+            for(int i = 0; i < vars.length; ++i)
+            {
+                final String text = editTexts[i].getText().toString().trim();
+                if(!text.isEmpty())
+                    substitution.bind(vars[i], text);
+            }
+        }
+        catch(InvalidValueException e)
+        {
+            if(e.getProblem() == InvalidValueException.Problem.WRONG_COUNT)
+                textViewResults.setText(getString(R.string.substitute_wrong_count, e.getValue(), e.getExpectedCount()));
+            else
+                textViewResults.setText(getString(R.string.substitute_not_a_value, e.getValue()));
+            return;
+        }
+
+        // Substitute them in the background
+        textViewResults.setText("");
+        substituter = new Substituter(substitution);
+        substituter.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /** Cancels the substitution that is running (if any) */
+    private void cancelSubstitution()
+    {
+        if(substituter == null)
+            return;
+        substituter.stop();
+        substituter = null;
+    }
+
+    /** Tells the user that the substitution has been given up because it exceeded its budget
+     * @param budgetExceeded The exception that tells which limit was exceeded */
+    private void showBudgetExceeded(BudgetExceededException budgetExceeded)
+    {
+        if(textViewResults == null)
+            return;
+        textViewResults.setText("");
+        final int msg = budgetExceeded.getLimit() == BudgetExceededException.Limit.NODES ? R.string.result_too_large : R.string.evaluation_too_long;
+        Toast.makeText(getActivity(), msg, Toast.LENGTH_LONG).show();
+    }
+
+    /** Class that substitutes the values in a separate thread */
+    private class Substituter extends AsyncTask<Void, Void, IExpr[]>
+    {
+        /** The substitution */
+        private final Substitution substitution;
+
+        /** The limits of the substitution */
+        private final EvaluationBudget budget = EvaluationBudget.DEFAULT;
+
+        /** The exception that was thrown when the budget was exceeded (or <tt>null</tt> if it wasn't) */
+        private BudgetExceededException budgetExceeded = null;
+
+        /** Gives up when the substitution takes too long */
+        private Runnable timeout = new Runnable()
+        {
+            @Override
+            public void run()
+            { timedOut(); }
+        };
+
+        /** The engine that evaluates with Symja (or <tt>null</tt> if the substitution hasn't started yet) */
+        private volatile EvalEngine engine = null;
+
+        /** Whether the substitution has been stopped (see {@link Substituter#stop()}) */
+        private volatile boolean stopped = false;
+
+        /** Constructor
+         * @param substitution The substitution that is to be done */
+        public Substituter(Substitution substitution)
+        {
+            this.substitution = substitution;
+        }
+
+        @Override
+        protected void onPreExecute()
+        { handler.postDelayed(timeout, budget.getTimeLimit()); }
+
+        /** Stops the substitution: Symja is asked to stop and the results are thrown away */
+        public void stop()
+        {
+            stopped = true;
+            final EvalEngine runningEngine = engine;
+            if(runningEngine != null)
+                runningEngine.stopRequest();
+            cancel(true);
+        }
+
+        /** Gives up the substitution since it takes too long */
+        private void timedOut()
+        {
+            stop();
+            if(substituter != this)
+                return;
+            substituter = null;
+            showBudgetExceeded(new BudgetExceededException(BudgetExceededException.Limit.TIME));
+        }
+
+        @Override
+        protected IExpr[] doInBackground(Void... args)
+        {
+            // Evaluate with an engine of our own, so that stopping it doesn't affect other evaluations on this thread
+            final EvalEngine oldEngine = EvalEngine.get();
+            engine = new EvalEngine();
+            EvalEngine.set(engine);
+            if(stopped)
+                engine.stopRequest();
+
+            try
+            {
+                return substitution.substitute(budget);
+            }
+            catch(BudgetExceededException e)
+            {
+                budgetExceeded = e;
+            }
+            catch(MathException e)
+            {
+                // The results can't be calculated
+            }
+            catch(InterruptedException e)
+            {
+                // We've been cancelled
+            }
+            catch(RuntimeException e)
+            {
+                // Symja throws when it's asked to stop, the results are thrown away anyway
+                if(!stopped)
+                    throw e;
+            }
+            finally
+            {
+                EvalEngine.set(oldEngine);
+            }
+            return null;
+        }
+
+        @Override
+        protected void onPostExecute(IExpr[] results)
+        {
+            handler.removeCallbacks(timeout);
+            if(substituter != this)
+                return;
+            substituter = null;
+            if(textViewResults == null)
+                return;
+
+            // Tell the user why there are no results
+            if(budgetExceeded != null)
+            {
+                showBudgetExceeded(budgetExceeded);
+                return;
+            }
+
+            // Show the result of every point on its own line
+            if(results == null)
+            {
+                textViewResults.setText(R.string.substitute_failed);
+                return;
+            }
+            StringBuilder builder = new StringBuilder();
+            for(int i = 0; i < results.length; ++i)
+            {
+                if(i != 0)
+                    builder.append('\n');
+                if(results.length != 1)
+                    builder.append(substitution.describePoint(i)).append(": ");
+                builder.append(ApproximationHelper.toString(results[i]));
+            }
+            textViewResults.setText(builder.toString());
+        }
+
+        @Override
+        protected void onCancelled(IExpr[] results)
+        {
+            // The results (if any) are thrown away
+            handler.removeCallbacks(timeout);
+        }
+    }
+
+    @Override
+    public void onResume()
+    {
+        super.onResume();
+
+        // Make sure the dialog takes up all width it can take up
+        WindowManager.LayoutParams params = getDialog().getWindow().getAttributes();
+        params.width = WindowManager.LayoutParams.MATCH_PARENT;
+        params.height = WindowManager.LayoutParams.MATCH_PARENT;
+        getDialog().getWindow().setAttributes(params);
+    }
+
+    @Override
+    public void onCancel(DialogInterface dialog)
+    { dismiss(); }
+
+    @Override
+    public void onDismiss(DialogInterface dialog)
+    {
+        // Nobody will see the results anymore
+        cancelSubstitution();
+        editTexts = null;
+        textViewResults = null;
+    }
+
+    private class OnSubstituteBtnClickListener implements View.OnClickListener
+    {
+        @Override
+        public void onClick(View btn)
+        { startSubstitution(); }
+    }
+
+    private class OnCloseBtnClickListener implements View.OnClickListener
+    {
+        @Override
+        public void onClick(View btn)
+        { dismiss(); }
+    }
+}
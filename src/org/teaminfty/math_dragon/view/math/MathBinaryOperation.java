@@ -1,8 +1,8 @@
 package org.teaminfty.math_dragon.view.math;
 
+import java.util.List;
+
 import org.teaminfty.math_dragon.exceptions.EmptyChildException;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
 
 /**
  * This class draws binary operations and provides simply functions to modify
@@ -28,9 +28,9 @@ public abstract class MathBinaryOperation extends MathOperation
         set(left, right);
     }
     
-    public String toString()
+    protected String toString(List<String> children)
     {
-        return "(" + getLeft().toString() + "," + getRight().toString() + ")";
+        return "(" + children.get(0) + "," + children.get(1) + ")";
     }
     
     /**
@@ -104,10 +104,4 @@ public abstract class MathBinaryOperation extends MathOperation
     {
         return getChild(1);
     }
-    
-    protected final void writeChildrenToXML(Document doc, Element el)
-    {
-        getLeft().writeToXML(doc, el);
-        getRight().writeToXML(doc, el);
-    }
 }
@@ -1,53 +1,65 @@
 package org.teaminfty.math_dragon.view.math;
 
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
 import org.teaminfty.math_dragon.exceptions.ParseException;
+import org.teaminfty.math_dragon.model.Expression;
+import org.teaminfty.math_dragon.model.ExpressionInterner;
+import org.teaminfty.math_dragon.model.Monomial;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
 
 /**
- * Factory for creating {@link MathObject}s from XML documents.
+ * Factory for creating {@link MathObject}s from XML documents and
+ * {@link Expression}s.
  * 
  * @author Folkert van Verseveld
  * @see #fromXML(Document)
+ * @see #fromExpression(Expression)
+ * @see #fromExpression(Expression, ExpressionInterner)
  */
 public final class MathFactory
 {
     private MathFactory()
     {}
 
+    /** The expression types of the operations, by the type they have in XML */
+    private static final HashMap<String, Expression.Type> OPERATION_TYPES = new HashMap<String, Expression.Type>();
+    static
+    {
+        OPERATION_TYPES.put(MathOperationAdd.TYPE, Expression.Type.ADD);
+        OPERATION_TYPES.put(MathOperationSubtract.TYPE, Expression.Type.SUBTRACT);
+        OPERATION_TYPES.put(MathOperationMultiply.TYPE, Expression.Type.MULTIPLY);
+        OPERATION_TYPES.put(MathOperationDivide.TYPE, Expression.Type.DIVIDE);
+        OPERATION_TYPES.put(MathOperationPower.TYPE, Expression.Type.POWER);
+        OPERATION_TYPES.put(MathOperationRoot.TYPE, Expression.Type.ROOT);
+        OPERATION_TYPES.put(MathOperationDerivative.TYPE, Expression.Type.DERIVATIVE);
+    }
+
     static MathBinaryOperation toOpBin(Element e) throws ParseException
     {
         final String type = e.getAttribute("type");
+        final Expression.Type exprType = OPERATION_TYPES.get(type);
         try
         {
-            if(type.equals(MathOperationAdd.TYPE))
-            {
-                return new MathOperationAdd(toMath((Element) e.getFirstChild()), toMath((Element) e.getLastChild()));
-            }
-            else if(type.equals(MathOperationMultiply.TYPE))
-            {
-                return new MathOperationMultiply(toMath((Element) e.getFirstChild()), toMath((Element) e.getLastChild()));
-            }
-            else if(type.equals(MathOperationDivide.TYPE))
-            {
-                return new MathOperationDivide(toMath((Element) e.getFirstChild()), toMath((Element) e.getLastChild()));
-            }
-            else if(type.equals(MathOperationSubtract.TYPE))
-            {
-                return new MathOperationSubtract(toMath((Element) e.getFirstChild()), toMath((Element) e.getLastChild()));
-            }
-            else if(type.equals(MathOperationPower.TYPE))
-            {
-                return new MathOperationPower(toMath((Element) e.getFirstChild()), toMath((Element) e.getLastChild()));
-            }
-            else if(type.equals(MathOperationRoot.TYPE))
-            {
-                return new MathOperationRoot(toMath((Element) e.getLastChild()), toMath((Element) e.getFirstChild()));
-            }
-            else if(type.equals(MathOperationDerivative.TYPE))
+            if(exprType != null)
             {
-                return new MathOperationDerivative(toMath((Element) e.getFirstChild()), toMath((Element) e.getLastChild()));
+                switch(exprType)
+                {
+                    case ADD:           return new MathOperationAdd(toMath((Element) e.getFirstChild()), toMath((Element) e.getLastChild()));
+                    case SUBTRACT:      return new MathOperationSubtract(toMath((Element) e.getFirstChild()), toMath((Element) e.getLastChild()));
+                    case MULTIPLY:      return new MathOperationMultiply(toMath((Element) e.getFirstChild()), toMath((Element) e.getLastChild()));
+                    case DIVIDE:        return new MathOperationDivide(toMath((Element) e.getFirstChild()), toMath((Element) e.getLastChild()));
+                    case POWER:         return new MathOperationPower(toMath((Element) e.getFirstChild()), toMath((Element) e.getLastChild()));
+                    case ROOT:          return new MathOperationRoot(toMath((Element) e.getLastChild()), toMath((Element) e.getFirstChild()));
+                    case DERIVATIVE:    return new MathOperationDerivative(toMath((Element) e.getFirstChild()), toMath((Element) e.getLastChild()));
+                    default:            break;
+                }
             }
         }
         catch(RuntimeException ex)
@@ -55,6 +67,30 @@ public final class MathFactory
         throw new ParseException(e.getTagName() + "." + type);
     }
 
+    static MathNaryOperationLinear toOpNary(Element e, int operands) throws ParseException
+    {
+        final String type = e.getAttribute("type");
+        
+        // Convert all operands
+        MathObject[] children = new MathObject[operands];
+        int i = 0;
+        for(Node node = e.getFirstChild(); node != null && i < operands; node = node.getNextSibling())
+        {
+            if(node instanceof Element)
+                children[i++] = toMath((Element) node);
+        }
+        
+        if(i == operands)
+        {
+            final Expression.Type exprType = OPERATION_TYPES.get(type);
+            if(exprType == Expression.Type.ADD)
+                return new MathOperationSum(children);
+            else if(exprType == Expression.Type.MULTIPLY)
+                return new MathOperationProduct(children);
+        }
+        throw new ParseException(e.getTagName() + "." + type);
+    }
+
     static MathObject toMath(Element e) throws ParseException
     {
         String tag = e.getTagName();
@@ -63,11 +99,11 @@ public final class MathFactory
             if(tag.equals(MathSymbol.NAME))
             {
                 // The values of the powers
-                long factor = 0;
+                BigInteger factor = BigInteger.ZERO;
                 long ePow = 0;
                 long piPow = 0;
                 long iPow = 0;
-                long[] varPows = new long[26];
+                Monomial vars = Monomial.ZERO;
                 
                 // Loop through all attributes
                 NamedNodeMap attrMap = e.getAttributes();
@@ -75,7 +111,7 @@ public final class MathFactory
                 {
                     final String name = attrMap.item(i).getNodeName();
                     if(name.equals(MathSymbol.ATTR_FACTOR))
-                        factor = Long.parseLong(attrMap.item(i).getNodeValue());
+                        factor = new BigInteger(attrMap.item(i).getNodeValue());
                     else if(name.equals(MathSymbol.ATTR_E))
                         ePow = Long.parseLong(attrMap.item(i).getNodeValue());
                     else if(name.equals(MathSymbol.ATTR_PI))
@@ -83,16 +119,19 @@ public final class MathFactory
                     else if(name.equals(MathSymbol.ATTR_I))
                         iPow = Long.parseLong(attrMap.item(i).getNodeValue());
                     else if(name.startsWith(MathSymbol.ATTR_VAR))
-                        varPows[name.charAt(MathSymbol.ATTR_VAR.length()) - 'a'] = Long.parseLong(attrMap.item(i).getNodeValue());
+                        vars = vars.withVarPow(name.charAt(MathSymbol.ATTR_VAR.length()) - 'a', Long.parseLong(attrMap.item(i).getNodeValue()));
                 }
                 
                 // Create and return the symbol
-                return new MathSymbol(factor, ePow, piPow, iPow, varPows);
+                return new MathSymbol(vars.withConstants(factor, ePow, piPow, iPow));
             }
             else if(tag.equals(MathOperation.NAME))
             {
-                if(Integer.parseInt(e.getAttribute(MathOperation.ATTR_OPERANDS)) == 2)
+                final int operands = Integer.parseInt(e.getAttribute(MathOperation.ATTR_OPERANDS));
+                if(operands == 2)
                     return toOpBin(e);
+                else if(operands > 2)
+                    return toOpNary(e, operands);
             }
             else if(tag.equals(MathOperationFunction.NAME))
             {
@@ -124,6 +163,142 @@ public final class MathFactory
     public static MathObject fromXML(Document doc) throws ParseException
     {
         Element root = doc.getDocumentElement();
-        return toMath((Element) root.getFirstChild());
+        
+        // Build the whole tree in one transaction
+        MathTransaction transaction = MathTransaction.begin();
+        try
+        {
+            return transaction.commit(toMath((Element) root.getFirstChild()));
+        }
+        finally
+        { transaction.end(); }
+    }
+
+    /**
+     * Construct {@link MathObject} from an {@link Expression}. The created
+     * {@link MathObject}s remember the expressions they were created from, so
+     * {@link MathObject#getExpression()} doesn't have to create them again.
+     * 
+     * @param expr
+     *        The expression.
+     * @return The constructed mathematical object. Never returns <tt>null</tt>
+     */
+    public static MathObject fromExpression(Expression expr)
+    {
+        // Build the whole tree in one transaction
+        MathTransaction transaction = MathTransaction.begin();
+        try
+        {
+            return transaction.commit(expr.fold(BUILDER));
+        }
+        finally
+        { transaction.end(); }
+    }
+
+    /**
+     * Construct {@link MathObject} from an {@link Expression}, sharing as much
+     * as possible between equal subexpressions. The expression is interned
+     * first, after that the {@link MathObject}s for equal subexpressions are
+     * created as shallow copies of each other, so they share their
+     * {@link org.teaminfty.math_dragon.model.Monomial Monomial}s, their
+     * expressions and their paints. The {@link MathObject}s themselves can't
+     * be shared, since their level and parent depend on their position.
+     * <p>
+     * Meant for trees that are mostly looked at, like evaluation results and
+     * undo history states. They can still be edited safely.
+     * 
+     * @param expr
+     *        The expression.
+     * @param interner
+     *        The {@link ExpressionInterner} to intern the expression with.
+     * @return The constructed mathematical object. Never returns <tt>null</tt>
+     */
+    public static MathObject fromExpression(Expression expr, ExpressionInterner interner)
+    {
+        // The first MathObject that has been created for every interned expression
+        final IdentityHashMap<Expression, MathObject> prototypes = new IdentityHashMap<Expression, MathObject>();
+        Expression.Folder<MathObject, RuntimeException> builder = new Expression.Folder<MathObject, RuntimeException>()
+        {
+            @Override
+            public MathObject fold(Expression expr, List<MathObject> children)
+            {
+                MathObject prototype = prototypes.get(expr);
+                if(prototype == null)
+                {
+                    MathObject o = BUILDER.fold(expr, children);
+                    prototypes.put(expr, o);
+                    return o;
+                }
+                
+                // Copy the prototype and give it its own children
+                MathObject o = prototype.shallowCopy();
+                for(int i = 0; i < children.size(); ++i)
+                {
+                    MathObject child = children.get(i);
+                    child.parent = o;
+                    o.children.set(i, child);
+                }
+                return o;
+            }
+        };
+        
+        // Build the whole tree in one transaction
+        MathTransaction transaction = MathTransaction.begin();
+        try
+        {
+            return transaction.commit(interner.intern(expr).fold(builder));
+        }
+        finally
+        { transaction.end(); }
     }
+
+    /** Creates the {@link MathObject} for an {@link Expression}, given the {@link MathObject}s for its children */
+    private static final Expression.Folder<MathObject, RuntimeException> BUILDER = new Expression.Folder<MathObject, RuntimeException>()
+    {
+        @Override
+        public MathObject fold(Expression expr, List<MathObject> children)
+        {
+            MathObject o = null;
+            switch(expr.getType())
+            {
+                case EMPTY:         o = new MathObjectEmpty();                                              break;
+                case SYMBOL:        o = new MathSymbol(expr.getMonomial());                                 break;
+                case ADD:
+                    if(children.size() == 2)
+                        o = new MathOperationAdd(children.get(0), children.get(1));
+                    else
+                        o = new MathOperationSum(children.toArray(new MathObject[children.size()]));
+                    break;
+                case SUBTRACT:      o = new MathOperationSubtract(children.get(0), children.get(1));        break;
+                case MULTIPLY:
+                    if(children.size() == 2)
+                        o = new MathOperationMultiply(children.get(0), children.get(1));
+                    else
+                        o = new MathOperationProduct(children.toArray(new MathObject[children.size()]));
+                    break;
+                case DIVIDE:        o = new MathOperationDivide(children.get(0), children.get(1));          break;
+                case POWER:         o = new MathOperationPower(children.get(0), children.get(1));           break;
+                case ROOT:          o = new MathOperationRoot(children.get(1), children.get(0));            break;
+                case DERIVATIVE:    o = new MathOperationDerivative(children.get(0), children.get(1));      break;
+                case INTEGRAL:      o = new MathOperationIntegral(children.get(0), children.get(1), children.get(2), children.get(3)); break;
+                case PARENTHESES:   o = new MathParentheses(children.get(0));                               break;
+                case FUNCTION:
+                    o = new MathOperationFunction(expr.getFunctionType());
+                    o.setChild(0, children.get(0));
+                    break;
+                case LOG:
+                    o = new MathOperationLog();
+                    o.setChild(0, children.get(0));
+                    o.setChild(1, children.get(1));
+                    break;
+            }
+            
+            // Remember the expression, it's exactly the same
+            // Since the MathObject has an expression now, its children have to know their parent
+            for(MathObject child : o.children)
+                child.parent = o;
+            o.expression = expr;
+            return o;
+        }
+    };
 }
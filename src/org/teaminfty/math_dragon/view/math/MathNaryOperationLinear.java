@@ -0,0 +1,239 @@
+package org.teaminfty.math_dragon.view.math;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Point;
+import android.graphics.Rect;
+
+/**
+ * This class draws associative operations with any number (2 or more) of
+ * operands that are written linear. That is, operations which are written like
+ * '&lt;operand&gt; &lt;operator&gt; &lt;operand&gt; &lt;operator&gt; ...
+ * &lt;operand&gt;'. For example: a sum of many terms.
+ * <p>
+ * Unlike a chain of {@link MathBinaryOperationLinear}s, the depth of such an
+ * operation doesn't grow with the number of operands.
+ *
+ * @see MathOperationSum
+ * @see MathOperationProduct
+ */
+public abstract class MathNaryOperationLinear extends MathOperation
+{
+    /** The paint that is used for drawing the operators */
+    protected Paint operatorPaint = new Paint();
+
+    /**
+     * Construct the operation with the given number of empty operands.
+     *
+     * @param operands
+     *        The number of operands, should be 2 or more.
+     */
+    public MathNaryOperationLinear(int operands)
+    {
+        this(new MathObject[operands]);
+    }
+
+    /**
+     * Construct the operation with the given operands. <tt>null</tt> operands
+     * are replaced by empty children.
+     *
+     * @param operands
+     *        The operands, there should be 2 or more.
+     */
+    public MathNaryOperationLinear(MathObject... operands)
+    {
+        super(operands.length);
+        if(operands.length < 2)
+        {
+            throw new IllegalArgumentException(operands.length
+                    + ": invalid number of operands, 2 or more expected ");
+        }
+
+        // Add the operands
+        for(int i = 0; i < operands.length; ++i)
+            children.add(new MathObjectEmpty());
+        for(int i = 0; i < operands.length; ++i)
+            setChild(i, operands[i]);
+    }
+
+    /** Returns the operator as it is used in {@link MathNaryOperationLinear#toString() toString()}
+     * @return The operator */
+    protected abstract String getOperator();
+
+    @Override
+    protected String toString(List<String> children)
+    {
+        StringBuilder sb = new StringBuilder("(");
+        for(int i = 0; i < children.size(); ++i)
+        {
+            if(i != 0)
+                sb.append(getOperator());
+            sb.append(children.get(i));
+        }
+        return sb.append(')').toString();
+    }
+
+    /**
+     * Takes the operands on both sides of the given operator out of this
+     * operation, and puts an operation of the same kind with just those two
+     * operands in their place. Does nothing if this operation only has two
+     * operands.
+     *
+     * @param operator
+     *        The index of the operator (operator <tt>i</tt> is between operand
+     *        <tt>i</tt> and operand <tt>i + 1</tt>)
+     * @return The operation with the two operands, or this operation if it only
+     *         has two operands
+     */
+    public MathNaryOperationLinear group(int operator)
+    {
+        checkChildIndex(operator);
+        checkChildIndex(operator + 1);
+        if(children.size() == 2)
+            return this;
+
+        // Create the operation with the two operands
+        MathNaryOperationLinear pair = (MathNaryOperationLinear) shallowCopy();
+        pair.children = new ArrayList<MathObject>(2);
+        pair.children.add(children.get(operator));
+        pair.children.add(children.get(operator + 1));
+        pair.children.get(0).parent = pair;
+        pair.children.get(1).parent = pair;
+        pair.expression = null;
+
+        // Put it in place of the operands
+        children.remove(operator + 1);
+        setChild(operator, pair);
+        return pair;
+    }
+
+    /** Returns the size of an operator
+     * @return The size of an operator */
+    protected Rect getOperatorSize()
+    {
+        final int size = (int) (defaultHeight * Math.pow(2.0 / 3.0, level + 1));
+        return new Rect(0, 0, size, size);
+    }
+
+    /**
+     * Places the operands and the operators next to each other.
+     *
+     * @param childBoxes
+     *        Receives the bounding boxes of the operands
+     * @param operatorBoxes
+     *        Receives the bounding boxes of the operators
+     * @return The centre y-coordinate of the operation
+     */
+    private int layout(Rect[] childBoxes, Rect[] operatorBoxes)
+    {
+        // Get the sizes and the centres of the operands
+        Rect operatorSize = getOperatorSize();
+        Point[] centers = new Point[childBoxes.length];
+        int centerY = operatorSize.height() / 2;
+        for(int i = 0; i < childBoxes.length; ++i)
+        {
+            childBoxes[i] = getChild(i).getBoundingBox();
+            centers[i] = getChild(i).getCenter();
+            centerY = Math.max(centerY, centers[i].y);
+        }
+
+        // Position the operands with the operators in between
+        int x = 0;
+        for(int i = 0; i < childBoxes.length; ++i)
+        {
+            if(i != 0)
+            {
+                Rect operator = new Rect(operatorSize);
+                operator.offsetTo(x, centerY - operator.height() / 2);
+                operatorBoxes[i - 1] = operator;
+                x += operator.width();
+            }
+            childBoxes[i].offsetTo(x, centerY - centers[i].y);
+            x += childBoxes[i].width();
+        }
+        return centerY;
+    }
+
+    @Override
+    public Rect[] getOperatorBoundingBoxes()
+    {
+        Rect[] operatorBoxes = new Rect[children.size() - 1];
+        layout(new Rect[children.size()], operatorBoxes);
+        return operatorBoxes;
+    }
+
+    @Override
+    public Rect getChildBoundingBox(int index) throws IndexOutOfBoundsException
+    {
+        // Make sure the child index is valid
+        checkChildIndex(index);
+
+        return getChildBoundingBoxes()[index];
+    }
+
+    @Override
+    public Rect[] getChildBoundingBoxes()
+    {
+        Rect[] childBoxes = new Rect[children.size()];
+        layout(childBoxes, new Rect[children.size() - 1]);
+        return childBoxes;
+    }
+
+    @Override
+    public Point getCenter()
+    {
+        Rect[] childBoxes = new Rect[children.size()];
+        final int centerY = layout(childBoxes, new Rect[children.size() - 1]);
+        return new Point(childBoxes[childBoxes.length - 1].right / 2, centerY);
+    }
+
+    @Override
+    public Rect getBoundingBox()
+    {
+        Rect[] childBoxes = new Rect[children.size()];
+        Rect[] operatorBoxes = new Rect[children.size() - 1];
+        layout(childBoxes, operatorBoxes);
+
+        // Return a bounding box, containing the bounding boxes of the children and the operators
+        int bottom = 0;
+        for(Rect rect : childBoxes)
+            bottom = Math.max(bottom, rect.bottom);
+        for(Rect rect : operatorBoxes)
+            bottom = Math.max(bottom, rect.bottom);
+        return new Rect(0, 0, childBoxes[childBoxes.length - 1].right, bottom);
+    }
+
+    /**
+     * Draws a single operator.
+     *
+     * @param canvas
+     *        The canvas to draw on
+     * @param operator
+     *        The bounding box of the operator
+     */
+    protected abstract void drawOperator(Canvas canvas, Rect operator);
+
+    @Override
+    public void draw(Canvas canvas)
+    {
+        // Draw the bounding boxes
+        drawBoundingBoxes(canvas);
+
+        // Lay out the operation only once
+        Rect[] childBoxes = new Rect[children.size()];
+        Rect[] operatorBoxes = new Rect[children.size() - 1];
+        layout(childBoxes, operatorBoxes);
+
+        // Draw the operators
+        operatorPaint.setColor(getColor());
+        for(Rect operator : operatorBoxes)
+            drawOperator(canvas, operator);
+
+        // Draw the children
+        for(int i = 0; i < childBoxes.length; ++i)
+            drawChild(i, canvas, childBoxes[i]);
+    }
+}
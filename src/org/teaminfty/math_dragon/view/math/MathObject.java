@@ -1,11 +1,14 @@
 package org.teaminfty.math_dragon.view.math;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.List;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 
+import org.teaminfty.math_dragon.model.Expression;
 import org.teaminfty.math_dragon.view.HoverState;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -18,7 +21,7 @@ import android.graphics.Rect;
 import android.util.Log;
 
 /** This class represents a mathematical object that can be drawn */
-public abstract class MathObject
+public abstract class MathObject implements Cloneable
 {
     /** The line width that is to be used to draw operators */
     public static float lineWidth = 2.0f;
@@ -38,12 +41,37 @@ public abstract class MathObject
     /** The current 'level' of the object*/
     protected int level = 0;
     
+    /** The parent of this {@link MathObject} (or <tt>null</tt> if it's a root or if we don't know it yet) */
+    MathObject parent = null;
+    
+    /** The {@link Expression} for this {@link MathObject} (or <tt>null</tt> if it has to be created again) */
+    Expression expression = null;
+    
     /** Returns the precedence of this operation.
      * The highest precedence is 0, greater values are lower precedences.
      * @return The precedence
      */
     public int getPrecedence()
     { return MathObjectPrecedence.HIGHEST; }
+    
+    @Override
+    public String toString()
+    { return MathTreeWalker.fold(this, STRING_BUILDER); }
+    
+    /** Returns the string representation of this {@link MathObject}, given the string representations of its children.
+     * This method is used by {@link MathObject#toString() toString()}, which walks through the tree without recursion.
+     * @param children The string representations of the children
+     * @return The string representation of this {@link MathObject} */
+    protected String toString(List<String> children)
+    { return super.toString(); }
+    
+    /** Builds the string representation of a tree */
+    private static final MathTreeWalker.Folder<String, RuntimeException> STRING_BUILDER = new MathTreeWalker.Folder<String, RuntimeException>()
+    {
+        @Override
+        public String fold(MathObject mathObject, List<String> children)
+        { return mathObject.toString(children); }
+    };
 
     /**
      * Returns the number of children this {@link MathObject} has
@@ -86,10 +114,15 @@ public abstract class MathObject
         
         // Set the child
         children.set(index, child);
+        child.parent = this;
+        
+        // The expression has changed
+        invalidate();
 
-        // Refresh all levels and default heights
-        setLevel(level);
-        setDefaultHeight(defaultHeight);
+        // Refresh the level and default height of the new child
+        // If a transaction is open, this is postponed until it's committed
+        if(!MathTransaction.isActive())
+            child.refreshTree(getChildLevel(index), defaultHeight);
     }
     
     /** Returns the default height for this {@link MathObject}
@@ -104,10 +137,21 @@ public abstract class MathObject
         // Set the default height
         defaultHeight = height;
         
-        // Pass the new default height to all children
-        for(MathObject child : children)
-            child.setDefaultHeight(defaultHeight);
+        // Pass the new default height to all descendants
+        MathTreeWalker.walk(this, DEFAULT_HEIGHT_PASSER);
     }
+    
+    /** Passes the default height of every {@link MathObject} it enters on to its children */
+    private static final MathTreeWalker.Visitor DEFAULT_HEIGHT_PASSER = new MathTreeWalker.Visitor()
+    {
+        @Override
+        public boolean enter(MathObject mathObject)
+        {
+            for(MathObject child : mathObject.children)
+                child.defaultHeight = mathObject.defaultHeight;
+            return true;
+        }
+    };
 
     /**
      * Returns the bounding boxes of the operator of this {@link MathObject}.
@@ -135,6 +179,22 @@ public abstract class MathObject
      */
     public abstract Rect getChildBoundingBox(int index) throws IndexOutOfBoundsException;
 
+    /**
+     * Returns the bounding boxes of all children, in the same order as the
+     * children. Subclasses that have to lay out all of their children to find
+     * the bounding box of a single child should override this method, so that
+     * the layout is only done once.
+     * 
+     * @return An array containing the bounding boxes of the children
+     */
+    public Rect[] getChildBoundingBoxes()
+    {
+        Rect[] out = new Rect[getChildCount()];
+        for(int i = 0; i < out.length; ++i)
+            out[i] = getChildBoundingBox(i);
+        return out;
+    }
+
     /**
      * Returns the bounding box for the entire {@link MathObject}.
      * The aspect ratio of the box should always be the same.
@@ -152,8 +212,8 @@ public abstract class MathObject
             out.union(tmp);
 
         // Add all child bounding boxes
-        for(int i = 0; i < getChildCount(); ++i)
-            out.union(getChildBoundingBox(i));
+        for(Rect tmp : getChildBoundingBoxes())
+            out.union(tmp);
         int width = out.width();
         int height = out.height();
 
@@ -218,8 +278,9 @@ public abstract class MathObject
     protected void drawChildren(Canvas canvas)
     {
         // Loop through all children and draw them
-        for(int i = 0; i < children.size(); ++i)
-            drawChild(i, canvas, getChildBoundingBox(i));
+        Rect[] boxes = getChildBoundingBoxes();
+        for(int i = 0; i < boxes.length; ++i)
+            drawChild(i, canvas, boxes[i]);
     }
 
     /**
@@ -275,9 +336,179 @@ public abstract class MathObject
 	public void setLevel(int l)
 	{
 		level = l;
-		for(MathObject child : children)
-			child.setLevel(l);
+		MathTreeWalker.walk(this, LEVEL_PASSER);
+	}
+	
+	/** Gives the children of every {@link MathObject} it enters the right level */
+	private static final MathTreeWalker.Visitor LEVEL_PASSER = new MathTreeWalker.Visitor()
+	{
+		@Override
+		public boolean enter(MathObject mathObject)
+		{
+			for(int i = 0; i < mathObject.children.size(); ++i)
+				mathObject.children.get(i).level = mathObject.getChildLevel(i);
+			return true;
+		}
+	};
+	
+	/** Returns the level the child at the given index should have, given the current level of this {@link MathObject}.
+	 * By default children get the same level as their parent.
+	 * @param index The index of the child
+	 * @return The level for the child at the given index */
+	protected int getChildLevel(int index)
+	{ return level; }
+	
+	/** Sets the level and the default height for this {@link MathObject} and all of its descendants in a single pass
+	 * @param l The new level
+	 * @param height The new default height */
+	void refreshTree(int l, int height)
+	{
+		level = l;
+		defaultHeight = height;
+		MathTreeWalker.walk(this, TREE_REFRESHER);
 	}
+	
+	/** Gives the children of every {@link MathObject} it enters the right level and default height */
+	private static final MathTreeWalker.Visitor TREE_REFRESHER = new MathTreeWalker.Visitor()
+	{
+		@Override
+		public boolean enter(MathObject mathObject)
+		{
+			for(int i = 0; i < mathObject.children.size(); ++i)
+			{
+				MathObject child = mathObject.children.get(i);
+				child.level = mathObject.getChildLevel(i);
+				child.defaultHeight = mathObject.defaultHeight;
+			}
+			return true;
+		}
+	};
+    
+    /** Creates a deep copy of this {@link MathObject} and all of its descendants.
+     * The tree is copied without recursion and without going through XML.
+     * The copies share their {@link Paint}s with the originals, those are configured again before every use anyway.
+     * @return The copy */
+    public MathObject copy()
+    {
+        // Copy the root
+        MathObject root = shallowCopy();
+        
+        // Replace the children of every copied object with copies of their own
+        ArrayDeque<MathObject> stack = new ArrayDeque<MathObject>();
+        stack.push(root);
+        while(!stack.isEmpty())
+        {
+            MathObject parent = stack.pop();
+            for(int i = 0; i < parent.children.size(); ++i)
+            {
+                MathObject child = parent.children.get(i).shallowCopy();
+                child.parent = parent;
+                parent.children.set(i, child);
+                stack.push(child);
+            }
+        }
+        
+        // Return the copy
+        root.parent = null;
+        return root;
+    }
+    
+    /** Returns the {@link Expression} for this {@link MathObject}.
+     * The expression is remembered until the math of this {@link MathObject} or one of its descendants changes,
+     * and the expressions of unchanged subtrees are reused. So after an edit, only the expressions on the path
+     * from the edited {@link MathObject} to the root are created again.
+     * @return The expression */
+    public Expression getExpression()
+    {
+        if(expression == null)
+            MathTreeWalker.walk(this, EXPRESSION_BUILDER);
+        return expression;
+    }
+    
+    /** Creates the {@link Expression}s for all {@link MathObject}s that don't have one */
+    private static final MathTreeWalker.Visitor EXPRESSION_BUILDER = new MathTreeWalker.Visitor()
+    {
+        @Override
+        public boolean enter(MathObject mathObject)
+        {
+            // Subtrees that still have an expression haven't changed
+            return mathObject.expression == null;
+        }
+        
+        @Override
+        public void leave(MathObject mathObject)
+        {
+            Expression[] childExpressions = new Expression[mathObject.children.size()];
+            for(int i = 0; i < childExpressions.length; ++i)
+            {
+                MathObject child = mathObject.children.get(i);
+                child.parent = mathObject;
+                childExpressions[i] = child.expression;
+            }
+            mathObject.expression = mathObject.createExpression(childExpressions);
+        }
+    };
+    
+    /** Checks whether the given object is a {@link MathObject} with the same math (i.e. an equal {@link Expression}).
+     * The view state (level, size, hover state) is ignored.
+     * @param o The object to compare with
+     * @return <tt>true</tt> when equal, <tt>false</tt> otherwise */
+    @Override
+    public boolean equals(Object o)
+    {
+        if(o == this)
+            return true;
+        if(!(o instanceof MathObject))
+            return false;
+        return getExpression().equals(((MathObject) o).getExpression());
+    }
+    
+    /** Returns the structural hash code of this {@link MathObject}.
+     * The hash code is remembered with the {@link Expression}, so for an unchanged tree this takes constant time.
+     * Note that the hash code changes when the math changes, so don't change {@link MathObject}s that are used as keys.
+     * @return The hash code */
+    @Override
+    public int hashCode()
+    { return getExpression().hashCode(); }
+    
+    /** Returns the type of this {@link MathObject}, which is the same as the type of its {@link Expression}.
+     * Use this to dispatch on the type of a {@link MathObject} in constant time (i.e. in a <tt>switch</tt>), instead of a chain of <tt>instanceof</tt> tests.
+     * @return The type */
+    public abstract Expression.Type getExpressionType();
+    
+    /** Creates the {@link Expression} for this {@link MathObject}, given the expressions of its children
+     * @param children The expressions of the children
+     * @return The expression */
+    protected abstract Expression createExpression(Expression[] children);
+    
+    /** Forgets the {@link Expression} of this {@link MathObject} and of all of its ancestors.
+     * Should be called whenever the math of this {@link MathObject} changes. */
+    protected void invalidate()
+    {
+        // If an ancestor still has an expression, so do all of its descendants
+        // So we can stop at the first MathObject that doesn't have one
+        for(MathObject mathObject = this; mathObject != null && mathObject.expression != null; mathObject = mathObject.parent)
+            mathObject.expression = null;
+    }
+    
+    /** Copies this {@link MathObject} without copying its children.
+     * The copy gets its own list of children, but that list still contains the original children.
+     * Subclasses with mutable state (other than {@link Paint}s) should override this method to copy that state.
+     * @return The copy */
+    protected MathObject shallowCopy()
+    {
+        try
+        {
+            MathObject copy = (MathObject) clone();
+            copy.children = new ArrayList<MathObject>(children);
+            return copy;
+        }
+        catch(CloneNotSupportedException e)
+        {
+            // Can't happen, we're Cloneable
+            throw new AssertionError(e);
+        }
+    }
     
     /** Whether or not to draw the bounding boxes */
     private final static boolean DRAW_BOUNDING = false;
@@ -329,27 +560,71 @@ public abstract class MathObject
      * @param doc The XML document
      * @param parent The parent XML element
      */
-    public void writeToXML(Document doc, Element parent)
+    public final void writeToXML(final Document doc, Element parent)
+    {
+        // The elements of the entered MathObjects
+        final ArrayDeque<Element> elements = new ArrayDeque<Element>();
+        elements.push(parent);
+        
+        // Every element is only added to its parent after all of its children have been added to it
+        // (adding elements to an element deep down in the document is slow, since the DOM checks all of its ancestors)
+        MathTreeWalker.walk(this, new MathTreeWalker.Visitor()
+        {
+            @Override
+            public boolean enter(MathObject mathObject)
+            {
+                Element e = mathObject.createXMLElement(doc);
+                if(!mathObject.writesChildrenToXML())
+                {
+                    elements.peek().appendChild(e);
+                    return false;
+                }
+                elements.push(e);
+                return true;
+            }
+            
+            @Override
+            public void leave(MathObject mathObject)
+            {
+                Element e = elements.pop();
+                elements.peek().appendChild(e);
+            }
+        });
+    }
+    
+    /** Creates the XML element for this {@link MathObject}, without its children.
+     * The children are added to it by {@link MathObject#writeToXML(Document, Element) writeToXML()}.
+     * @param doc The XML document
+     * @return The XML element */
+    protected Element createXMLElement(Document doc)
     {
     	Log.w("XML", "not a writable element yet");
-    	parent.appendChild(doc.createElement(MathObjectEmpty.NAME));
+    	return doc.createElement(MathObjectEmpty.NAME);
     }
     
+    /** Whether or not the children of this {@link MathObject} should be written to its XML element
+     * @return <tt>true</tt> if the children should be written, <tt>false</tt> otherwise */
+    protected boolean writesChildrenToXML()
+    { return false; }
+    
     /**
-     * Checks if all children have been fully filled in, and also their children and so on recursively down the tree.
+     * Checks if all children have been fully filled in, and also their children and so on down the tree.
      * @return returns true if all children of this MathObject have been filled in.
      */
     public boolean isCompleted()
     {
-        if(this instanceof MathObjectEmpty)
-            return false;
-        
-        for(MathObject child : children)
+        // Look for an empty MathObject, we stop entering MathObjects as soon as we've found one
+        final boolean[] completed = new boolean[] {true};
+        MathTreeWalker.walk(this, new MathTreeWalker.Visitor()
         {
-            if(child instanceof MathObjectEmpty || !child.isCompleted())
-                return false;
-        }
-        
-        return true;
+            @Override
+            public boolean enter(MathObject mathObject)
+            {
+                if(mathObject instanceof MathObjectEmpty)
+                    completed[0] = false;
+                return completed[0];
+            }
+        });
+        return completed[0];
     }
 }
@@ -1,5 +1,6 @@
 package org.teaminfty.math_dragon.view.math;
 
+import org.teaminfty.math_dragon.model.Expression;
 import org.teaminfty.math_dragon.view.HoverState;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -88,8 +89,16 @@ public class MathObjectEmpty extends MathObject
     }
 
     @Override
-    public void writeToXML(Document doc, Element el)
+    protected Element createXMLElement(Document doc)
     {
-        el.appendChild(doc.createElement(NAME));
+        return doc.createElement(NAME);
     }
+
+    @Override
+    public Expression.Type getExpressionType()
+    { return Expression.Type.EMPTY; }
+
+    @Override
+    protected Expression createExpression(Expression[] children)
+    { return Expression.EMPTY; }
 }
@@ -38,6 +38,16 @@ public abstract class MathObjectLog extends MathBinaryOperationLinear
     
     public int getPrecedence()
     { return MathObjectPrecedence.FUNCTION; }
+    
+    @Override
+    protected MathObjectLog shallowCopy()
+    {
+        // The copy needs its own scratch rectangles
+        MathObjectLog copy = (MathObjectLog) super.shallowCopy();
+        copy.bounds = new Rect();
+        copy.bounds2 = new Rect();
+        return copy;
+    }
 
     /** Calculates the right text size for the given level
      * @param lvl The level
@@ -114,11 +124,10 @@ public abstract class MathObjectLog extends MathBinaryOperationLinear
 	}
 	
 	@Override
-	public void setLevel(int l)
+	protected int getChildLevel(int index)
 	{
-		level = l;
-		getChild(0).setLevel(level + 2);
-		getChild(1).setLevel(level);
+		// The base is two levels deeper
+		return index == 0 ? level + 2 : level;
 	}
 	
 	public Rect[] getChildrenSize()
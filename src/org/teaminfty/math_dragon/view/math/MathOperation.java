@@ -96,18 +96,23 @@ public abstract class MathOperation extends MathObject
             this.children = new ArrayList<MathObject>(list);
         else
             this.children = list;
+        
+        // The expression has changed
+        invalidate();
     }
     
     protected abstract String getType();
     
-    protected abstract void writeChildrenToXML(Document doc, Element el);
-    
-    public final void writeToXML(Document doc, Element el)
+    @Override
+    protected Element createXMLElement(Document doc)
     {
         Element e = doc.createElement(NAME);
         e.setAttribute(ATTR_OPERANDS, String.valueOf(children.size()));
         e.setAttribute(ATTR_TYPE, getType());
-        writeChildrenToXML(doc, e);
-        el.appendChild(e);
+        return e;
     }
+    
+    @Override
+    protected boolean writesChildrenToXML()
+    { return true; }
 }
@@ -1,5 +1,9 @@
 package org.teaminfty.math_dragon.view.math;
 
+import java.util.List;
+
+import org.teaminfty.math_dragon.model.Expression;
+
 import android.graphics.Canvas;
 import android.graphics.Rect;
 
@@ -15,8 +19,8 @@ public class MathOperationAdd extends MathBinaryOperationLinear
     	super(left, right);
 	}
     
-    public String toString(){
-        return "(" + getLeft().toString() + "+" + getRight().toString() + ")";
+    protected String toString(List<String> children){
+        return "(" + children.get(0) + "+" + children.get(1) + ")";
     }
     
     @Override
@@ -52,4 +56,12 @@ public class MathOperationAdd extends MathBinaryOperationLinear
     {
         return TYPE;
     }
+
+    @Override
+    public Expression.Type getExpressionType()
+    { return Expression.Type.ADD; }
+
+    @Override
+    protected Expression createExpression(Expression[] children)
+    { return new Expression(Expression.Type.ADD, null, children); }
 }
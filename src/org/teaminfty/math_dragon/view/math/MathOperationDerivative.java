@@ -1,5 +1,9 @@
 package org.teaminfty.math_dragon.view.math;
 
+import java.util.List;
+
+import org.teaminfty.math_dragon.model.Expression;
+
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Point;
@@ -23,9 +27,9 @@ public class MathOperationDerivative extends MathBinaryOperation
     	super(left, right);
     }
     
-    public String toString()
+    protected String toString(List<String> children)
     {
-        return "d(" + getLeft().toString() + "," + getRight().toString() + ")";
+        return "d(" + children.get(0) + "," + children.get(1) + ")";
     }
 
     @Override
@@ -164,12 +168,8 @@ public class MathOperationDerivative extends MathBinaryOperation
     }
     
     @Override
-  	public void setLevel(int l)
-  	{
-  		level = l;
-  		getChild(0).setLevel(level+1);
-  		getChild(1).setLevel(level+1);
-  	}
+    protected int getChildLevel(int index)
+    { return level + 1; }
 
     @Override
     public void draw(Canvas canvas)
@@ -232,4 +232,12 @@ public class MathOperationDerivative extends MathBinaryOperation
 	{
 		return TYPE;
 	}
+
+    @Override
+    public Expression.Type getExpressionType()
+    { return Expression.Type.DERIVATIVE; }
+
+    @Override
+    protected Expression createExpression(Expression[] children)
+    { return new Expression(Expression.Type.DERIVATIVE, null, children); }
 }
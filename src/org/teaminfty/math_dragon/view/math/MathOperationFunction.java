@@ -1,6 +1,9 @@
 package org.teaminfty.math_dragon.view.math;
 
+import java.util.List;
 
+
+import org.teaminfty.math_dragon.model.Expression;
 import org.teaminfty.math_dragon.view.TypefaceHolder;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -120,9 +123,9 @@ public class MathOperationFunction extends MathObject
     { return type; }
     
     @Override
-    public String toString()
+    protected String toString(List<String> children)
     {
-        String childString = getChild(0).toString();
+        String childString = children.get(0);
         if(childString.startsWith("(") && childString.endsWith(")"))
             childString = childString.substring(1, childString.length() - 1);
         return type.getXmlName() + '(' + childString + ')';
@@ -284,11 +287,22 @@ public class MathOperationFunction extends MathObject
     public static final String ATTR_TYPE = "type";
 
     @Override
-    public final void writeToXML(Document doc, Element el)
+    protected Element createXMLElement(Document doc)
     {
         Element e = doc.createElement(NAME);
         e.setAttribute(ATTR_TYPE, type.getXmlName());
-        getChild(0).writeToXML(doc, el);
-        el.appendChild(e);
+        return e;
     }
+    
+    @Override
+    protected boolean writesChildrenToXML()
+    { return true; }
+    
+    @Override
+    public Expression.Type getExpressionType()
+    { return Expression.Type.FUNCTION; }
+    
+    @Override
+    protected Expression createExpression(Expression[] children)
+    { return new Expression(Expression.Type.FUNCTION, type, children); }
 }
@@ -1,7 +1,8 @@
 package org.teaminfty.math_dragon.view.math;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
+import java.util.List;
+
+import org.teaminfty.math_dragon.model.Expression;
 
 import android.graphics.Canvas;
 import android.graphics.Paint;
@@ -48,13 +49,13 @@ public class MathOperationIntegral extends MathOperation
 		set( integrate, over, from, to);
 	}
 	
-	public String toString()
+	protected String toString(List<String> children)
 	{
 		//TODO: Add the correct if statement
 		// Check if the children 2 and 3 are empty
-			return "Integrate(" + getChild(0).toString() + "," + getChild(1).toString() + ")";
+			return "Integrate(" + children.get(0) + "," + children.get(1) + ")";
 		//else
-			//return "Integrate(" + getChild(0).toString() + ",{" + getChild(1).toString() + "," + getChild(2).toString() + "," + getChild(3).toString() "})";
+			//return "Integrate(" + children.get(0) + ",{" + children.get(1) + "," + children.get(2) + "," + children.get(3) "})";
 	}
 	
 	public Rect[] getSizes()
@@ -264,16 +265,11 @@ public class MathOperationIntegral extends MathOperation
     }
 	
 	@Override
-  	public void setLevel(int l)
-  	{
-		// Set the level of the children
-  		level = l;
-  		getChild(0).setLevel(level+1);
-  		getChild(1).setLevel(level+1);
-  		
-  		getChild(2).setLevel(level+1);
-  		getChild(3).setLevel(level+1);
-  	}
+	protected int getChildLevel(int index)
+	{
+		// All children are one level deeper
+		return level + 1;
+	}
 	
 	@Override
 	protected String getType() {
@@ -281,8 +277,16 @@ public class MathOperationIntegral extends MathOperation
 	}
 
 	@Override
-	protected void writeChildrenToXML(Document doc, Element el) {
-		// TODO Auto-generated method stub
-		
+	protected boolean writesChildrenToXML() {
+		// TODO Write the children
+		return false;
 	}
+
+	@Override
+	public Expression.Type getExpressionType()
+	{ return Expression.Type.INTEGRAL; }
+
+	@Override
+	protected Expression createExpression(Expression[] children)
+	{ return new Expression(Expression.Type.INTEGRAL, null, children); }
 }
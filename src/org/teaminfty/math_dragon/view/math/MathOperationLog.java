@@ -1,5 +1,7 @@
 package org.teaminfty.math_dragon.view.math;
 
+import org.teaminfty.math_dragon.model.Expression;
+
 import android.graphics.Canvas;
 import android.graphics.Rect;
 
@@ -43,5 +45,11 @@ public class MathOperationLog extends MathObjectLog
         return null;
     }
 
-}
+	@Override
+	public Expression.Type getExpressionType()
+	{ return Expression.Type.LOG; }
 
+	@Override
+	protected Expression createExpression(Expression[] children)
+	{ return new Expression(Expression.Type.LOG, null, children); }
+}
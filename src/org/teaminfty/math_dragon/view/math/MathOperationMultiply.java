@@ -1,5 +1,9 @@
 package org.teaminfty.math_dragon.view.math;
 
+import java.util.List;
+
+import org.teaminfty.math_dragon.model.Expression;
+
 import android.graphics.Canvas;
 import android.graphics.Rect;
 
@@ -15,9 +19,9 @@ public class MathOperationMultiply extends MathBinaryOperationLinear
         super(left, right);
     }
     
-    public String toString()
+    protected String toString(List<String> children)
     {
-        return "(" + getLeft().toString() + "*" + getRight().toString() + ")";
+        return "(" + children.get(0) + "*" + children.get(1) + ")";
     }
 
     @Override
@@ -56,4 +60,12 @@ public class MathOperationMultiply extends MathBinaryOperationLinear
     {
         return TYPE;
     }
+
+    @Override
+    public Expression.Type getExpressionType()
+    { return Expression.Type.MULTIPLY; }
+
+    @Override
+    protected Expression createExpression(Expression[] children)
+    { return new Expression(Expression.Type.MULTIPLY, null, children); }
 }
@@ -1,5 +1,8 @@
 package org.teaminfty.math_dragon.view.math;
 
+import java.util.List;
+
+import org.teaminfty.math_dragon.model.Expression;
 import org.teaminfty.math_dragon.view.HoverState;
 
 import android.graphics.Canvas;
@@ -25,9 +28,9 @@ public class MathOperationPower extends MathBinaryOperation
         operatorPaint.setColor(0xcc4444ff);
     }
     
-    public String toString()
+    protected String toString(List<String> children)
     {
-        return "(" + getLeft().toString() + "^" + getRight().toString() + ")";
+        return "(" + children.get(0) + "^" + children.get(1) + ")";
     }
     
     @Override
@@ -139,11 +142,10 @@ public class MathOperationPower extends MathBinaryOperation
     }
     
     @Override
-    public void setLevel(int l)
+    protected int getChildLevel(int index)
     {
-        level = l;
-        getBase().setLevel(level);
-        getExponent().setLevel(level + 1);
+        // The exponent is one level deeper than the base
+        return index == 1 ? level + 1 : level;
     }
     
     //We regard the base operand as the vertical center of the mathObject
@@ -182,4 +184,12 @@ public class MathOperationPower extends MathBinaryOperation
     {
         return TYPE;
     }
+
+    @Override
+    public Expression.Type getExpressionType()
+    { return Expression.Type.POWER; }
+
+    @Override
+    protected Expression createExpression(Expression[] children)
+    { return new Expression(Expression.Type.POWER, null, children); }
 }
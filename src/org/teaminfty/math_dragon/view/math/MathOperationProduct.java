@@ -0,0 +1,59 @@
+package org.teaminfty.math_dragon.view.math;
+
+import org.teaminfty.math_dragon.model.Expression;
+
+import android.graphics.Canvas;
+import android.graphics.Rect;
+
+/** A product of any number (2 or more) of factors, the n-ary version of {@link MathOperationMultiply} */
+public class MathOperationProduct extends MathNaryOperationLinear
+{
+    /** Products are written to XML as multiply operations with more than two operands */
+    public static final String TYPE = MathOperationMultiply.TYPE;
+
+    /** Constructor
+     * @param operands The number of (empty) factors */
+    public MathOperationProduct(int operands)
+    { super(operands); }
+
+    /** Constructor
+     * @param operands The factors */
+    public MathOperationProduct(MathObject... operands)
+    { super(operands); }
+
+    @Override
+    protected String getOperator()
+    { return "*"; }
+
+    @Override
+    protected Rect getOperatorSize()
+    {
+        final int size = (int) (18 * lineWidth);
+        return new Rect(0, 0, size, size);
+    }
+
+    @Override
+    public int getPrecedence()
+    { return MathObjectPrecedence.MULTIPLY; }
+
+    @Override
+    protected void drawOperator(Canvas canvas, Rect operator)
+    {
+        operatorPaint.setAntiAlias(true);
+        canvas.drawCircle(operator.centerX(), operator.centerY(), 2 * lineWidth, operatorPaint);
+    }
+
+    @Override
+    protected String getType()
+    {
+        return TYPE;
+    }
+
+    @Override
+    public Expression.Type getExpressionType()
+    { return Expression.Type.MULTIPLY; }
+
+    @Override
+    protected Expression createExpression(Expression[] children)
+    { return new Expression(Expression.Type.MULTIPLY, null, children); }
+}
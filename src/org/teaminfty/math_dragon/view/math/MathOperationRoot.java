@@ -1,5 +1,9 @@
 package org.teaminfty.math_dragon.view.math;
 
+import java.util.List;
+
+import org.teaminfty.math_dragon.model.Expression;
+
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Path;
@@ -44,9 +48,9 @@ public class MathOperationRoot extends MathBinaryOperation
     { return getChild(1); }
 
     @Override
-    public String toString()
+    protected String toString(List<String> children)
     {
-        return "(" + getBase().toString() + "^ (1/" + getExponent().toString() + "))";
+        return "(" + children.get(1) + "^ (1/" + children.get(0) + "))";
     }
     
     /**
@@ -131,12 +135,11 @@ public class MathOperationRoot extends MathBinaryOperation
     }
     
     @Override
-	public void setLevel(int l)
-	{
-		level = l;
-		getChild(0).setLevel(level + 1);
-		getChild(1).setLevel(level);
-	}
+    protected int getChildLevel(int index)
+    {
+        // The exponent is one level deeper than the base
+        return index == 0 ? level + 1 : level;
+    }
     
     @Override
     public Point getCenter()
@@ -190,4 +193,12 @@ public class MathOperationRoot extends MathBinaryOperation
     {
         return TYPE;
     }
+
+    @Override
+    public Expression.Type getExpressionType()
+    { return Expression.Type.ROOT; }
+
+    @Override
+    protected Expression createExpression(Expression[] children)
+    { return new Expression(Expression.Type.ROOT, null, children); }
 }
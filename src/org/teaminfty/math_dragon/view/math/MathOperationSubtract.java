@@ -1,5 +1,7 @@
 package org.teaminfty.math_dragon.view.math;
 
+import org.teaminfty.math_dragon.model.Expression;
+
 import android.graphics.Canvas;
 import android.graphics.Rect;
 
@@ -45,4 +47,12 @@ public class MathOperationSubtract extends MathBinaryOperationLinear
     {
         return TYPE;
     }
+
+    @Override
+    public Expression.Type getExpressionType()
+    { return Expression.Type.SUBTRACT; }
+
+    @Override
+    protected Expression createExpression(Expression[] children)
+    { return new Expression(Expression.Type.SUBTRACT, null, children); }
 }
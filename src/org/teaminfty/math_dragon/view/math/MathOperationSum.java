@@ -0,0 +1,57 @@
+package org.teaminfty.math_dragon.view.math;
+
+import org.teaminfty.math_dragon.model.Expression;
+
+import android.graphics.Canvas;
+import android.graphics.Rect;
+
+/** A sum of any number (2 or more) of terms, the n-ary version of {@link MathOperationAdd} */
+public class MathOperationSum extends MathNaryOperationLinear
+{
+    /** Sums are written to XML as add operations with more than two operands */
+    public static final String TYPE = MathOperationAdd.TYPE;
+
+    /** Constructor
+     * @param operands The number of (empty) terms */
+    public MathOperationSum(int operands)
+    { super(operands); }
+
+    /** Constructor
+     * @param operands The terms */
+    public MathOperationSum(MathObject... operands)
+    { super(operands); }
+
+    @Override
+    protected String getOperator()
+    { return "+"; }
+
+    @Override
+    public int getPrecedence()
+    { return MathObjectPrecedence.ADD; }
+
+    @Override
+    protected void drawOperator(Canvas canvas, Rect operator)
+    {
+        operator.inset(operator.width() / 10, operator.height() / 10);      // Padding
+        canvas.save();
+        canvas.translate(operator.left, operator.top);
+        operatorPaint.setStrokeWidth(lineWidth);
+        canvas.drawLine(0, operator.height() / 2, operator.width(), operator.height() / 2, operatorPaint);
+        canvas.drawLine(operator.width() / 2, 0, operator.width() / 2, operator.height(), operatorPaint);
+        canvas.restore();
+    }
+
+    @Override
+    protected String getType()
+    {
+        return TYPE;
+    }
+
+    @Override
+    public Expression.Type getExpressionType()
+    { return Expression.Type.ADD; }
+
+    @Override
+    protected Expression createExpression(Expression[] children)
+    { return new Expression(Expression.Type.ADD, null, children); }
+}
@@ -1,5 +1,6 @@
 package org.teaminfty.math_dragon.view.math;
 
+import org.teaminfty.math_dragon.model.Expression;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
@@ -117,10 +118,20 @@ public class MathParentheses extends MathObject
     }
 
     @Override
-    public void writeToXML(Document doc, Element el)
+    protected Element createXMLElement(Document doc)
     {
-        Element e = doc.createElement(NAME);
-        children.get(0).writeToXML(doc, e);
-        el.appendChild(e);
+        return doc.createElement(NAME);
     }
+    
+    @Override
+    protected boolean writesChildrenToXML()
+    { return true; }
+
+    @Override
+    public Expression.Type getExpressionType()
+    { return Expression.Type.PARENTHESES; }
+
+    @Override
+    protected Expression createExpression(Expression[] children)
+    { return new Expression(Expression.Type.PARENTHESES, null, children); }
 }
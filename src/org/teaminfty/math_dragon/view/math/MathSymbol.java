@@ -1,7 +1,10 @@
 package org.teaminfty.math_dragon.view.math;
 
-import java.util.Arrays;
+import java.math.BigInteger;
+import java.util.List;
 
+import org.teaminfty.math_dragon.model.Expression;
+import org.teaminfty.math_dragon.model.Monomial;
 import org.teaminfty.math_dragon.view.TypefaceHolder;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -13,16 +16,8 @@ import android.graphics.Rect;
 /** This class represents a math constant */
 public class MathSymbol extends MathObject
 {
-    /** The factor of this constant */
-    private long factor = 0;
-    /** The power of the E constant */
-    private long ePow = 0;
-    /** The power of the PI constant */
-    private long piPow = 0;
-    /** The power of the imaginary unit */
-    private long iPow = 0;
-    /** The powers of the variables */
-    private long varPows[] = new long[26];
+    /** The value of this symbol */
+    private Monomial monomial;
     
     /** The paint that is used to draw the factor and the constants */
     protected Paint paint = new Paint();
@@ -45,6 +40,15 @@ public class MathSymbol extends MathObject
         this(factor, 0, 0, 0);
     }
     
+    /**
+     * Simple constructor with a factor of any size.
+     * @param factor The base number
+     */
+    public MathSymbol(BigInteger factor)
+    {
+        this(new Monomial(factor));
+    }
+    
     /** Construct mathematical constant using specified values for simplicity.
      * @param factor The base number
      * @param ePow The Euler power
@@ -53,7 +57,7 @@ public class MathSymbol extends MathObject
      */
     public MathSymbol(long factor, long ePow, long piPow, long iPow)
     {
-        this(factor, ePow, piPow, iPow, new long[0]);
+        this(new Monomial(factor, ePow, piPow, iPow));
     }
     
     /** Construct mathematical constant using specified values.
@@ -65,16 +69,16 @@ public class MathSymbol extends MathObject
      */
     public MathSymbol(long factor, long ePow, long piPow, long iPow, long[] varPows)
     {
-    	initPaints();
-    	this.factor = factor;
-    	this.ePow = ePow;
-    	this.piPow = piPow;
-    	this.iPow = iPow;
-    	if(varPows != null)
-    	{
-    	    // arraycopy is safer and more efficient.
-    	    System.arraycopy(varPows, 0, this.varPows, 0, Math.min(varPows.length, this.varPows.length));
-    	}
+        this(new Monomial(factor, ePow, piPow, iPow, varPows));
+    }
+    
+    /** Construct mathematical constant with the given value.
+     * @param monomial The value of the symbol
+     */
+    public MathSymbol(Monomial monomial)
+    {
+        initPaints();
+        this.monomial = monomial;
     }
     
     /** Initialises the paints */
@@ -197,102 +201,121 @@ public class MathSymbol extends MathObject
         canvas.restore();
     }
     
-    /**
-     * Check whether the current instance and <tt>o</tt> are identical. It is
-     * heavily called by unit test cases, so do not remove this method!
-     * @param o the instance to compare with
-     * @return <tt>true</tt> when equal, <tt>false</tt> otherwise.
-     */
-    public boolean equals(Object o)
-    {
-        if(!(o instanceof MathSymbol))
-            return false;
-        MathSymbol c = (MathSymbol) o;
-
-        return c.factor == factor && c.ePow == ePow && c.piPow == piPow && c.iPow == iPow && Arrays.equals(c.varPows, varPows);
-    }
-    
     /**
      * Gives the constant as a string
      * @return The constant as a string
      */
     @Override
-    public String toString()
+    protected String toString(List<String> children)
     {
         StringBuilder sb = new StringBuilder();
-
-        if(symbolVisible())
-            sb.append(factor == -1 ? '-' : (factor == 1 ? "" : Long.toString(factor)) );
+        
+        if(monomial.isBigFactor())
+            sb.append(monomial.getBigFactor().toString());
         else
-            sb.append(Long.toString(factor));
+        {
+            final long factor = monomial.getFactor();
+            if(symbolVisible())
+                sb.append(factor == -1 ? '-' : (factor == 1 ? "" : Long.toString(factor)) );
+            else
+                sb.append(Long.toString(factor));
+        }
         
-        if(factor != 0)
+        if(monomial.getFactorSign() != 0)
         {
-            appendLit(sb, '\u03c0', piPow);
-            appendLit(sb, 'e', ePow);
-            appendLit(sb, '\u03b9', iPow);
-            for(int i = 0; i < varPows.length; i++)
-                appendLit(sb, (char) (i + 'a'), varPows[i]);
+            appendLit(sb, '\u03c0', monomial.getPiPow());
+            appendLit(sb, 'e', monomial.getEPow());
+            appendLit(sb, '\u03b9', monomial.getIPow());
+            for(int mask = monomial.getVarMask(); mask != 0; mask &= mask - 1)
+            {
+                final int i = Integer.numberOfTrailingZeros(mask);
+                appendLit(sb, (char) (i + 'a'), monomial.getVarPow(i));
+            }
         }
         return "(" + sb.toString() + ")";
     }
 
     /** Retrieve the ground base number factor.
+     * @return The base number.
+     * @throws ArithmeticException If the factor doesn't fit in a <tt>long</tt>, use {@link MathSymbol#getBigFactor() getBigFactor()} instead
+     */
+	public long getFactor() throws ArithmeticException
+	{ return monomial.getFactor(); }
+
+    /** Retrieve the ground base number factor, this works for factors of any size.
      * @return The base number.
      */
-	public long getFactor()
-	{ return factor; }
+	public BigInteger getBigFactor()
+	{ return monomial.getBigFactor(); }
 
 	/** Assign the new factor to <tt>factor</tt>
 	 * @param factor the new <tt>factor</tt> */
 	public void setFactor(long factor)
-	{ this.factor = factor; }
+	{ setMonomial(monomial.withFactor(factor)); }
+
+	/** Assign the new factor to <tt>factor</tt>
+	 * @param factor the new <tt>factor</tt> */
+	public void setFactor(BigInteger factor)
+	{ setMonomial(monomial.withFactor(factor)); }
 
 	/** Get the current power for <tt>pi</tt>
 	 * @return The current power for <tt>pi</tt> */
 	public long getPiPow()
-	{ return piPow; }
+	{ return monomial.getPiPow(); }
 
     /** Set the new power for <tt>pi</tt>
      * @param factor the new power for <tt>pi</tt> */
 	public void setPiPow(long piPow)
-	{ this.piPow = piPow; }
+	{ setMonomial(monomial.withPiPow(piPow)); }
 
     /** Get the current power for <tt>e</tt>
      * @return The current power for <tt>e</tt> */
 	public long getEPow()
-	{ return ePow; }
+	{ return monomial.getEPow(); }
 
     /** Set the new power for <tt>e</tt>
      * @param factor the new power for <tt>e</tt> */
 	public void setEPow(long ePow)
-	{ this.ePow = ePow; }
+	{ setMonomial(monomial.withEPow(ePow)); }
 
     /** Get the current power for <tt>i</tt>
      * @return The current power for <tt>i</tt> */
 	public long getIPow()
-	{ return iPow; }
+	{ return monomial.getIPow(); }
 
     /** Set the new power for <tt>i</tt>
      * @param factor the new power for <tt>i</tt> */
 	public void setIPow(long iPow)
-	{ this.iPow = iPow; }
+	{ setMonomial(monomial.withIPow(iPow)); }
 
     /** Get the current power for the given variable
      * @param index The variable index
      * @return The current power for the given variable */
     public long getVarPow(int index)
-    { return varPows[index]; }
+    { return monomial.getVarPow(index); }
 
     /** Set the new power for the given variable
      * @param index The variable index
      * @param factor the new power for the variable */
 	public void setVarPow(int index, long pow)
-	{ varPows[index] = pow; }
+	{ setMonomial(monomial.withVarPow(index, pow)); }
 	
 	/** The amount of variables that this symbol supports */
 	public int varPowCount()
-	{ return varPows.length; }
+	{ return Monomial.VAR_COUNT; }
+	
+	/** Retrieve the value of this symbol.
+	 * @return The value of this symbol */
+	public Monomial getMonomial()
+	{ return monomial; }
+	
+	/** Assign a new value to this symbol.
+	 * @param monomial The new value */
+	public void setMonomial(Monomial monomial)
+	{
+	    this.monomial = monomial;
+	    invalidate();
+	}
 
 	/**
 	 * Reset all numerical values to new specified values.
@@ -303,25 +326,13 @@ public class MathSymbol extends MathObject
 	 */
 	public void set(long factor, long ePow, long piPow, long iPow)
 	{
-		setFactor(factor);
-		setEPow(ePow);
-		setPiPow(piPow);
-		setIPow(iPow);
+		setMonomial(monomial.withConstants(factor, ePow, piPow, iPow));
 	}
 
     /** Returns whether or not some symbols (i.e. variables or the constants pi, e, i) are visible (i.e. their power >= 1)
      * @return True if one or more symbols are visible, false otherwise */
     public boolean symbolVisible()
-    {
-        if((piPow | ePow | iPow) != 0)
-            return true;
-        for(int i = 0; i < varPows.length; ++i)
-        {
-            if(varPows[i] != 0)
-                return true;
-        }
-        return false;
-    }
+    { return monomial.symbolVisible(); }
 	
 	/** The XML element name */
     public static final String NAME = "constant";
@@ -337,18 +348,26 @@ public class MathSymbol extends MathObject
     public static final String ATTR_VAR = "var_";
     
 	@Override
-    public void writeToXML(Document doc, Element el)
+    protected Element createXMLElement(Document doc)
     {
         Element e = doc.createElement(NAME);
-        e.setAttribute(ATTR_FACTOR, String.valueOf(factor));
-        e.setAttribute(ATTR_E, String.valueOf(ePow));
-        e.setAttribute(ATTR_PI, String.valueOf(piPow));
-        e.setAttribute(ATTR_I, String.valueOf(iPow));
-        for(int i = 0; i < varPows.length; i++)
+        e.setAttribute(ATTR_FACTOR, monomial.isBigFactor() ? monomial.getBigFactor().toString() : String.valueOf(monomial.getFactor()));
+        e.setAttribute(ATTR_E, String.valueOf(monomial.getEPow()));
+        e.setAttribute(ATTR_PI, String.valueOf(monomial.getPiPow()));
+        e.setAttribute(ATTR_I, String.valueOf(monomial.getIPow()));
+        for(int mask = monomial.getVarMask(); mask != 0; mask &= mask - 1)
         {
-            if(varPows[i] != 0)
-                e.setAttribute(ATTR_VAR + (char) ('a' + i), String.valueOf(varPows[i]));
+            final int i = Integer.numberOfTrailingZeros(mask);
+            e.setAttribute(ATTR_VAR + (char) ('a' + i), String.valueOf(monomial.getVarPow(i)));
         }
-        el.appendChild(e);
+        return e;
     }
+    
+    @Override
+    public Expression.Type getExpressionType()
+    { return Expression.Type.SYMBOL; }
+    
+    @Override
+    protected Expression createExpression(Expression[] children)
+    { return new Expression(Expression.Type.SYMBOL, monomial); }
 }
@@ -0,0 +1,93 @@
+package org.teaminfty.math_dragon.view.math;
+
+/**
+ * Groups a number of changes to a tree of {@link MathObject}s.
+ * <p>
+ * Normally, every call to {@link MathObject#setChild(int, MathObject) setChild()} refreshes the level and the
+ * default height of the subtree that is placed. When a tree is built or rearranged with a lot of these calls, most
+ * of that work is thrown away again. While a transaction is open on the current thread, <tt>setChild()</tt> skips
+ * that refresh. When the transaction is committed, the whole tree is refreshed in a single pass.
+ * <p>
+ * Transactions should always be closed, like this:
+ * <pre>
+ * MathTransaction transaction = MathTransaction.begin();
+ * try
+ * {
+ *     // Build or change the tree
+ *     transaction.commit(root);
+ * }
+ * finally
+ * { transaction.end(); }
+ * </pre>
+ * Transactions can be nested, only the outermost transaction refreshes the tree.
+ */
+public final class MathTransaction
+{
+    /** The number of open transactions for each thread */
+    private static final ThreadLocal<int[]> depth = new ThreadLocal<int[]>()
+    {
+        @Override
+        protected int[] initialValue()
+        { return new int[1]; }
+    };
+    
+    /** Whether or not this transaction is still open */
+    private boolean open = true;
+    
+    /** Private constructor, use {@link MathTransaction#begin()} */
+    private MathTransaction()
+    {}
+    
+    /** Opens a new transaction on the current thread
+     * @return The new transaction */
+    public static MathTransaction begin()
+    {
+        ++depth.get()[0];
+        return new MathTransaction();
+    }
+    
+    /** Whether or not a transaction is open on the current thread
+     * @return <tt>true</tt> if a transaction is open, <tt>false</tt> otherwise */
+    public static boolean isActive()
+    { return depth.get()[0] != 0; }
+    
+    /** Closes this transaction and, if it's the outermost transaction, refreshes the given tree
+     * using the current level and default height of its root.
+     * @param root The root of the tree that was changed (may be <tt>null</tt>)
+     * @return The given root */
+    public <T extends MathObject> T commit(T root)
+    {
+        if(root == null)
+            return commit(root, 0, 0);
+        return commit(root, root.level, root.defaultHeight);
+    }
+    
+    /** Closes this transaction and, if it's the outermost transaction, gives the root of the given tree
+     * the given level and default height and refreshes the rest of the tree.
+     * @param root The root of the tree that was changed (may be <tt>null</tt>)
+     * @param level The level for the root
+     * @param defaultHeight The default height for the tree
+     * @return The given root */
+    public <T extends MathObject> T commit(T root, int level, int defaultHeight)
+    {
+        // Close the transaction
+        end();
+        
+        // Refresh the tree in one pass
+        if(root != null && !isActive())
+            root.refreshTree(level, defaultHeight);
+        
+        // Return the root
+        return root;
+    }
+    
+    /** Closes this transaction without refreshing anything.
+     * Calling this method on a transaction that is already closed does nothing. */
+    public void end()
+    {
+        if(!open)
+            return;
+        open = false;
+        --depth.get()[0];
+    }
+}
@@ -0,0 +1,172 @@
+package org.teaminfty.math_dragon.view.math;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Walks through a tree of {@link MathObject}s without using recursion.
+ * <p>
+ * Trees can get very deep (e.g. long sums are built as right-deep chains), and the stack of a thread on Android is
+ * small. Therefore the walker keeps its own stack on the heap, so the depth of a tree is only limited by the amount of
+ * memory that's available.
+ */
+public final class MathTreeWalker
+{
+    /** The initial size of the stack */
+    private static final int INITIAL_STACK_SIZE = 16;
+
+    /** Private constructor, this class only has static methods */
+    private MathTreeWalker()
+    {}
+
+    /** Receives the {@link MathObject}s in a tree while it's walked through */
+    public static abstract class Visitor
+    {
+        /** Called when a {@link MathObject} is entered, before any of its children
+         * @param mathObject The {@link MathObject}
+         * @return <tt>true</tt> if the children of the {@link MathObject} should be visited, <tt>false</tt> if they should be skipped */
+        public abstract boolean enter(MathObject mathObject);
+
+        /** Called when a {@link MathObject} is left, after all of its children.
+         * Only called for {@link MathObject}s for which {@link Visitor#enter(MathObject) enter()} returned <tt>true</tt>.
+         * @param mathObject The {@link MathObject} */
+        public void leave(MathObject mathObject)
+        {}
+    }
+
+    /** Combines the results of the children of a {@link MathObject} into the result for that {@link MathObject}
+     * @param <T> The type of the results
+     * @param <E> The type of exception that can be thrown while folding */
+    public interface Folder<T, E extends Exception>
+    {
+        /** Calculates the result for the given {@link MathObject}
+         * @param mathObject The {@link MathObject}
+         * @param children The results of the children of the {@link MathObject}, in the same order as the children
+         * @return The result for the given {@link MathObject}
+         * @throws E If the result can't be calculated */
+        public T fold(MathObject mathObject, List<T> children) throws E;
+    }
+
+    /** Walks through the tree with the given root in pre-order and post-order at the same time
+     * @param root The root of the tree
+     * @param visitor The {@link Visitor} that receives the {@link MathObject}s */
+    public static void walk(MathObject root, Visitor visitor)
+    {
+        // Enter the root
+        if(!visitor.enter(root))
+            return;
+
+        // The stack of entered MathObjects and the index of the next child to visit for each of them
+        MathObject[] objects = new MathObject[INITIAL_STACK_SIZE];
+        int[] nextChild = new int[INITIAL_STACK_SIZE];
+        int top = 0;
+        objects[0] = root;
+
+        while(top >= 0)
+        {
+            MathObject mathObject = objects[top];
+            if(nextChild[top] < mathObject.children.size())
+            {
+                // Enter the next child
+                MathObject child = mathObject.children.get(nextChild[top]++);
+                if(!visitor.enter(child))
+                    continue;
+
+                // Push the child on the stack
+                if(++top == objects.length)
+                {
+                    objects = grow(objects);
+                    nextChild = grow(nextChild);
+                }
+                objects[top] = child;
+                nextChild[top] = 0;
+            }
+            else
+            {
+                // All children have been visited, leave the MathObject
+                visitor.leave(mathObject);
+                objects[top--] = null;
+            }
+        }
+    }
+
+    /** Calculates a result for the tree with the given root by combining the results of the children of every
+     * {@link MathObject} in post-order
+     * @param root The root of the tree
+     * @param folder The {@link Folder} that calculates the result for every {@link MathObject}
+     * @return The result for the root
+     * @throws E If the {@link Folder} throws it */
+    public static <T, E extends Exception> T fold(MathObject root, Folder<T, E> folder) throws E
+    {
+        // Leaves don't need a stack
+        if(root.children.isEmpty())
+            return folder.fold(root, Collections.<T>emptyList());
+
+        // The results that haven't been combined yet
+        ArrayList<T> results = new ArrayList<T>();
+
+        // The stack of MathObjects and the index of the next child to visit for each of them
+        MathObject[] objects = new MathObject[INITIAL_STACK_SIZE];
+        int[] nextChild = new int[INITIAL_STACK_SIZE];
+        int top = 0;
+        objects[0] = root;
+
+        while(true)
+        {
+            MathObject mathObject = objects[top];
+            final int childCount = mathObject.children.size();
+            if(nextChild[top] < childCount)
+            {
+                MathObject child = mathObject.children.get(nextChild[top]++);
+
+                // Leaves can be folded right away, otherwise we push the child on the stack
+                if(child.children.isEmpty())
+                    results.add(folder.fold(child, Collections.<T>emptyList()));
+                else
+                {
+                    if(++top == objects.length)
+                    {
+                        objects = grow(objects);
+                        nextChild = grow(nextChild);
+                    }
+                    objects[top] = child;
+                    nextChild[top] = 0;
+                }
+            }
+            else
+            {
+                // Combine the results of the children
+                List<T> childResults = results.subList(results.size() - childCount, results.size());
+                T result = folder.fold(mathObject, new ArrayList<T>(childResults));
+                childResults.clear();
+
+                // Return the result if this was the root, otherwise hand it to the parent
+                objects[top] = null;
+                if(top-- == 0)
+                    return result;
+                results.add(result);
+            }
+        }
+    }
+
+    /** Doubles the size of the given stack
+     * @param stack The stack
+     * @return The new stack */
+    private static MathObject[] grow(MathObject[] stack)
+    {
+        MathObject[] out = new MathObject[stack.length * 2];
+        System.arraycopy(stack, 0, out, 0, stack.length);
+        return out;
+    }
+
+    /** Doubles the size of the given stack
+     * @param stack The stack
+     * @return The new stack */
+    private static int[] grow(int[] stack)
+    {
+        int[] out = new int[stack.length * 2];
+        System.arraycopy(stack, 0, out, 0, stack.length);
+        return out;
+    }
+}